@@ -0,0 +1,84 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.entity.minecart.StorageMinecart;
+
+/**
+ * This class sets the destination of storage carts from what they carry
+ * whenever a chest transfer finishes with them. Rules are checked in a
+ * fixed order: full carts, then empty carts, then the material the cart
+ * carries the most of. Carts matching no rule keep their destination.
+ *
+ * The contents of a cart are given as an {@link InventorySummary} built
+ * from the cart's inventory at each station visit and updated with the
+ * items moved by the transfer. Summaries are never kept between visits,
+ * since hoppers and other plug-ins can change a cart's contents at any
+ * time. Routing at junctions only ever sees the resulting destination.
+ * @author Eric Mertens
+ */
+public final class AutoDestinations {
+
+	private final DestinationStore store;
+	private final RoutingProfiles profiles;
+	private final int fullId;
+	private final int emptyId;
+	private final Map<Material, Integer> itemIds;
+
+	private long applied = 0;
+
+	/**
+	 * Construct a new AutoDestinations.
+	 * @param store Destination preferences of carts
+	 * @param profiles Routing profiles to invalidate on changes
+	 * @param fullId Destination of full carts, or {@link DestinationRegistry#UNKNOWN}
+	 * @param emptyId Destination of empty carts, or {@link DestinationRegistry#UNKNOWN}
+	 * @param itemIds Destinations by the material a cart carries the most of
+	 */
+	public AutoDestinations(final DestinationStore store, final RoutingProfiles profiles,
+			final int fullId, final int emptyId, final Map<Material, Integer> itemIds) {
+		this.store = store;
+		this.profiles = profiles;
+		this.fullId = fullId;
+		this.emptyId = emptyId;
+		this.itemIds = itemIds.isEmpty() ? itemIds : new EnumMap<Material, Integer>(itemIds);
+	}
+
+	/**
+	 * Set the destination of a cart whose transfer has finished.
+	 * @param cart Storage cart leaving a station
+	 * @param summary Contents of the cart after the transfer
+	 * @param full true if the cart has no room left
+	 */
+	public void apply(final StorageMinecart cart, final InventorySummary summary, final boolean full) {
+		int destination = DestinationRegistry.UNKNOWN;
+		if (full) {
+			destination = fullId;
+		}
+		if (destination == DestinationRegistry.UNKNOWN && summary.getTotal() == 0) {
+			destination = emptyId;
+		}
+		if (destination == DestinationRegistry.UNKNOWN && !itemIds.isEmpty()) {
+			final Integer id = itemIds.get(summary.getDominant());
+			if (id != null) {
+				destination = id;
+			}
+		}
+
+		if (destination != DestinationRegistry.UNKNOWN && store.get(cart) != destination) {
+			store.set(cart, destination);
+			profiles.invalidate(cart);
+			applied++;
+		}
+	}
+
+	/**
+	 * Return the number of destinations set by the rules.
+	 * @return the number of destination changes
+	 */
+	public long getApplied() {
+		return applied;
+	}
+}
@@ -21,6 +21,39 @@ public final class BlockFaceUtils {
 	public static final BlockFace[] ORDINAL_DIRECTIONS
 	  = new BlockFace[] {BlockFace.NORTH_EAST, BlockFace.SOUTH_EAST, BlockFace.NORTH_WEST, BlockFace.SOUTH_WEST};
 
+	/**
+	 * Cardinal directions in the order used by {@link #cardinalIndex(BlockFace)}.
+	 */
+	private static final BlockFace[] CARDINALS_BY_INDEX
+	  = new BlockFace[] {BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST};
+
+	/**
+	 * Return a small array index for a cardinal direction
+	 * @param a A direction
+	 * @return 0 to 3 for north, east, south, and west; -1 otherwise
+	 */
+	public static int cardinalIndex(final BlockFace a) {
+		if (a == null) {
+			return -1;
+		}
+		switch (a) {
+		case NORTH: return 0;
+		case EAST: return 1;
+		case SOUTH: return 2;
+		case WEST: return 3;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Return the cardinal direction for an index from {@link #cardinalIndex(BlockFace)}
+	 * @param index Index from 0 to 3
+	 * @return The cardinal direction
+	 */
+	public static BlockFace fromCardinalIndex(final int index) {
+		return CARDINALS_BY_INDEX[index];
+	}
+
 	/**
 	 * Translate a direction string into a block face
 	 * @param c String describing a direction
@@ -0,0 +1,60 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.block.Block;
+
+/**
+ * This class packs block coordinates into single long values so that
+ * they can be used as cheap map keys and compared without allocating
+ * Block objects.
+ * @author Eric Mertens
+ */
+public final class BlockKey {
+
+	private BlockKey() {
+	}
+
+	/**
+	 * Pack block coordinates into a single value. X and Z use 26 bits
+	 * each and Y uses the remaining 12 bits.
+	 * @param x Block x coordinate
+	 * @param y Block y coordinate
+	 * @param z Block z coordinate
+	 * @return packed coordinates
+	 */
+	public static long pack(final int x, final int y, final int z) {
+		return ((long) (x & 0x3FFFFFF) << 38)
+		     | ((long) (z & 0x3FFFFFF) << 12)
+		     | (y & 0xFFF);
+	}
+
+	/**
+	 * Pack the coordinates of a block.
+	 * @param block Block whose coordinates should be packed
+	 * @return packed coordinates
+	 */
+	public static long pack(final Block block) {
+		return pack(block.getX(), block.getY(), block.getZ());
+	}
+
+	public static int unpackX(final long key) {
+		return (int) (key >> 38);
+	}
+
+	public static int unpackY(final long key) {
+		return (int) (key << 52 >> 52);
+	}
+
+	public static int unpackZ(final long key) {
+		return (int) (key << 26 >> 38);
+	}
+
+	/**
+	 * Pack the horizontal coordinates of a block column.
+	 * @param x Block x coordinate
+	 * @param z Block z coordinate
+	 * @return packed column coordinates
+	 */
+	public static long column(final int x, final int z) {
+		return ((long) x << 32) | (z & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,46 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+/**
+ * This interface provides read access to the blocks of a world by
+ * coordinates. Implementations may read the live world, which is only
+ * safe on the main thread, or a captured copy of it on any thread.
+ * @author Eric Mertens
+ */
+public interface BlockProbe {
+
+	/**
+	 * Return the world the blocks belong to.
+	 * @return the world being read
+	 */
+	World getWorld();
+
+	/**
+	 * Return the material of a block.
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return the block's material, AIR outside of the world
+	 */
+	Material getType(int x, int y, int z);
+
+	/**
+	 * Return the raw data value of a block.
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return the block's data value
+	 */
+	byte getData(int x, int y, int z);
+
+	/**
+	 * Return the lines of a sign.
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return the four lines of the sign, or null if the block is not a sign
+	 */
+	String[] getSignLines(int x, int y, int z);
+}
@@ -0,0 +1,117 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.material.MaterialData;
+import org.bukkit.material.Rails;
+
+/**
+ * This class provides the questions routing asks about blocks in terms of
+ * a {@link BlockProbe}. Each answer is decided by the block's material
+ * first, so rails are read from their data value and sign text is only
+ * read from blocks which are signs.
+ * @author Eric Mertens
+ */
+public final class BlockProbeUtils {
+
+	private BlockProbeUtils() {
+	}
+
+	/**
+	 * Determine if a material is a sign.
+	 * @param material Material to check
+	 * @return true for sign posts and wall signs
+	 */
+	public static boolean isSign(final Material material) {
+		return material == Material.SIGN_POST || material == Material.WALL_SIGN;
+	}
+
+	/**
+	 * Determine if a material is any kind of rail.
+	 * @param material Material to check
+	 * @return true for plain, powered, detector and activator rails
+	 */
+	public static boolean isRail(final Material material) {
+		switch (material) {
+		case RAILS:
+		case POWERED_RAIL:
+		case DETECTOR_RAIL:
+		case ACTIVATOR_RAIL:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Return the rail data of a block, or null if it is not a rail
+	 * @param probe Source of the block
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return Rail data of the block or null
+	 */
+	@SuppressWarnings("deprecation")
+	public static Rails railData(final BlockProbe probe, final int x, final int y, final int z) {
+		final Material type = probe.getType(x, y, z);
+		if (!isRail(type)) {
+			return null;
+		}
+		final MaterialData d = type.getNewData(probe.getData(x, y, z));
+		return d instanceof Rails ? (Rails) d : null;
+	}
+
+	/**
+	 * Return the orientation of a rail block, or null if it is not a rail
+	 * @param probe Source of the block
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return Orientation of rail block or null
+	 */
+	public static BlockFace railDirection(final BlockProbe probe, final int x, final int y, final int z) {
+		final Rails rails = railData(probe, x, y, z);
+		return rails == null ? null : rails.getDirection();
+	}
+
+	/**
+	 * Determine if a block is a sloped rail.
+	 * @param probe Source of the block
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return true if the block is a rail on a slope
+	 */
+	public static boolean isOnSlope(final BlockProbe probe, final int x, final int y, final int z) {
+		final Rails rails = railData(probe, x, y, z);
+		return rails != null && rails.isOnSlope();
+	}
+
+	/**
+	 * Return the lines of a block if it is a sign.
+	 * @param probe Source of the block
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return the four lines of the sign, or null if the block is not a sign
+	 */
+	public static String[] signLines(final BlockProbe probe, final int x, final int y, final int z) {
+		if (!isSign(probe.getType(x, y, z))) {
+			return null;
+		}
+		return probe.getSignLines(x, y, z);
+	}
+
+	/**
+	 * Determine if a block is the header sign of a junction.
+	 * @param probe Source of the block
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 * @return true if the block is a sign with a junction header
+	 */
+	public static boolean isJunctionHeader(final BlockProbe probe, final int x, final int y, final int z) {
+		final String[] lines = signLines(probe, x, y, z);
+		return lines != null && PdxTrackRouter.isJunctionHeader(lines[0]);
+	}
+}
@@ -0,0 +1,305 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.entity.minecart.StorageMinecart;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.util.Vector;
+
+/**
+ * This class runs the chest transfers of storage carts passing trigger
+ * blocks under a shared budget of inventory slots per tick, so that a
+ * train passing a row of chests spreads its transfers over several ticks.
+ * A transfer carries over to the next tick for as long as its cart stays
+ * on the trigger rail and is abandoned when the cart moves on.
+ *
+ * Transfers are served in the order their carts arrived. When carts are
+ * held, as they are by default, they are stopped on the trigger rail
+ * until their transfer finishes and then sent on at their original
+ * velocity, so that carts at speed still get a full transfer. The
+ * {@link AutoDestinations} rules, when given, are applied to each cart
+ * as its transfer ends.
+ * @author Eric Mertens
+ */
+public final class ChestTransferScheduler implements Runnable {
+
+	/**
+	 * Number of ticks the items per second are averaged over
+	 */
+	private static final int TICKS_PER_SECOND = 20;
+
+	private final Plugin plugin;
+	private final int slotsPerTick;
+	private final boolean holdCarts;
+	private final AutoDestinations autoDestinations;
+	private final Queue<Job> jobs = new LinkedList<Job>();
+	private final IntIntMap queued = new IntIntMap();
+	private final int[] recentItems = new int[TICKS_PER_SECOND];
+
+	private BukkitTask task = null;
+	private int tick = 0;
+	private int tickItems = 0;
+	private long itemsMoved = 0;
+	private long completed = 0;
+	private long abandoned = 0;
+
+	/**
+	 * The transfer between one cart and the chests beside its trigger.
+	 */
+	private static final class Job {
+		private final StorageMinecart cart;
+		private final Block rail;
+		private final List<Inventory> chests;
+		private final boolean loadCart;
+		private final Vector velocity;
+
+		private int chest = 0;
+		private int slot = 0;
+
+		Job(final StorageMinecart cart, final Block rail, final List<Inventory> chests,
+				final boolean loadCart, final Vector velocity) {
+			this.cart = cart;
+			this.rail = rail;
+			this.chests = chests;
+			this.loadCart = loadCart;
+			this.velocity = velocity;
+		}
+
+		/**
+		 * Determine if the cart is still on the trigger rail.
+		 */
+		boolean inPlace() {
+			if (!cart.isValid()) {
+				return false;
+			}
+			final Location location = cart.getLocation();
+			return location.getWorld().equals(rail.getWorld())
+					&& location.getBlockX() == rail.getX()
+					&& location.getBlockY() == rail.getY()
+					&& location.getBlockZ() == rail.getZ();
+		}
+	}
+
+	/**
+	 * Construct a new ChestTransferScheduler.
+	 * @param plugin Plug-in used to schedule the transfers with
+	 * @param slotsPerTick Number of source slots all transfers together may move each tick
+	 * @param holdCarts Stop carts until their transfer finishes
+	 * @param autoDestinations Rules to apply when a transfer ends, or null
+	 */
+	public ChestTransferScheduler(final Plugin plugin, final int slotsPerTick, final boolean holdCarts,
+			final AutoDestinations autoDestinations) {
+		this.plugin = plugin;
+		this.slotsPerTick = slotsPerTick;
+		this.holdCarts = holdCarts;
+		this.autoDestinations = autoDestinations;
+	}
+
+	/**
+	 * Queue a transfer between a cart and the chests beside its trigger.
+	 * A cart already waiting for a transfer is not queued again.
+	 * @param cart Storage cart on the trigger rail
+	 * @param rail Rail block the cart is on
+	 * @param chests Distinct chest inventories to transfer with, in order
+	 * @param loadCart true to move items into the cart, false to move them out
+	 * @return true if the transfer was queued
+	 */
+	public boolean submit(final StorageMinecart cart, final Block rail, final List<Inventory> chests,
+			final boolean loadCart) {
+		if (chests.isEmpty() || queued.containsKey(cart.getEntityId())) {
+			return false;
+		}
+
+		Vector velocity = null;
+		if (holdCarts) {
+			velocity = cart.getVelocity();
+			cart.setVelocity(new Vector(0, 0, 0));
+		}
+
+		jobs.add(new Job(cart, rail, new ArrayList<Inventory>(chests), loadCart, velocity));
+		queued.put(cart.getEntityId(), 1);
+
+		if (task == null) {
+			task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Advance the queued transfers in turn until this tick's budget is used.
+	 */
+	@Override
+	public void run() {
+		int budget = slotsPerTick;
+		tickItems = 0;
+
+		final Iterator<Job> i = jobs.iterator();
+		while (i.hasNext() && budget > 0) {
+			final Job job = i.next();
+
+			if (!job.inPlace()) {
+				i.remove();
+				queued.remove(job.cart.getEntityId());
+				if (autoDestinations != null && job.cart.isValid()) {
+					final Inventory cart = job.cart.getInventory();
+					final ItemStack[] contents = cart.getContents();
+					autoDestinations.apply(job.cart, InventorySummary.of(contents),
+							InventoryTransfer.isFull(contents, cart.getMaxStackSize()));
+				}
+				abandoned++;
+				continue;
+			}
+
+			budget = step(job, budget);
+
+			if (job.chest >= job.chests.size()) {
+				i.remove();
+				queued.remove(job.cart.getEntityId());
+				if (job.velocity != null) {
+					job.cart.setVelocity(job.velocity);
+				}
+				completed++;
+			} else if (job.velocity != null) {
+				// Keep held carts from drifting off the trigger
+				job.cart.setVelocity(new Vector(0, 0, 0));
+			}
+		}
+
+		// Held carts still waiting for their turn must not drift either
+		while (i.hasNext()) {
+			final Job job = i.next();
+			if (job.velocity != null) {
+				job.cart.setVelocity(new Vector(0, 0, 0));
+			}
+		}
+
+		itemsMoved += tickItems;
+		recentItems[tick] = tickItems;
+		tick = (tick + 1) % TICKS_PER_SECOND;
+
+		if (jobs.isEmpty()) {
+			task.cancel();
+			task = null;
+			for (int t = 0; t < TICKS_PER_SECOND; t++) {
+				recentItems[t] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Move up to a budget of source slots for a job. Each inventory
+	 * touched is read and written back once.
+	 * @return the budget left over
+	 */
+	private int step(final Job job, int budget) {
+		final Inventory cart = job.cart.getInventory();
+		final ItemStack[] cartContents = cart.getContents();
+		final int cartLimit = cart.getMaxStackSize();
+		// The contents may have changed since the last tick, so the summary
+		// is rebuilt whenever the cart is read
+		final InventorySummary summary = autoDestinations == null ? null : InventorySummary.of(cartContents);
+		boolean cartChanged = false;
+
+		while (budget > 0 && job.chest < job.chests.size()) {
+			// Stop once there is nothing left to move
+			if (job.loadCart ? InventoryTransfer.isFull(cartContents, cartLimit)
+					: InventoryTransfer.isEmpty(cartContents)) {
+				job.chest = job.chests.size();
+				break;
+			}
+
+			final Inventory chest = job.chests.get(job.chest);
+			final ItemStack[] chestContents = chest.getContents();
+			final ItemStack[] source = job.loadCart ? chestContents : cartContents;
+			final int end = Math.min(source.length, job.slot + budget);
+
+			final int moved = job.loadCart
+					? InventoryTransfer.transfer(chestContents, job.slot, end, cartContents, cartLimit, null, summary)
+					: InventoryTransfer.transfer(cartContents, job.slot, end, chestContents, chest.getMaxStackSize(),
+							summary, null);
+
+			budget -= end - job.slot;
+			job.slot = end;
+			if (moved > 0) {
+				chest.setContents(chestContents);
+				cartChanged = true;
+				tickItems += moved;
+			}
+
+			if (job.slot >= source.length) {
+				job.chest++;
+				job.slot = 0;
+			}
+		}
+
+		if (cartChanged) {
+			cart.setContents(cartContents);
+		}
+		if (autoDestinations != null && job.chest >= job.chests.size()) {
+			autoDestinations.apply(job.cart, summary, InventoryTransfer.isFull(cartContents, cartLimit));
+		}
+		return budget;
+	}
+
+	/**
+	 * Drop every queued transfer and send held carts on at their
+	 * original velocity. Called when the plug-in is disabled, since
+	 * held carts would otherwise stay stopped on their triggers.
+	 */
+	public void shutdown() {
+		for (Job job : jobs) {
+			if (job.velocity != null && job.cart.isValid()) {
+				job.cart.setVelocity(job.velocity);
+			}
+			queued.remove(job.cart.getEntityId());
+		}
+		abandoned += jobs.size();
+		jobs.clear();
+
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+	}
+
+	/**
+	 * Return the number of transfers waiting or running.
+	 * @return the number of queued transfers
+	 */
+	public int getQueueDepth() {
+		return jobs.size();
+	}
+
+	/**
+	 * Return the number of items moved over the last second.
+	 * @return the number of items moved in the last 20 ticks
+	 */
+	public int getItemsPerSecond() {
+		int items = 0;
+		for (int moved : recentItems) {
+			items += moved;
+		}
+		return items;
+	}
+
+	public long getItemsMoved() {
+		return itemsMoved;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getAbandoned() {
+		return abandoned;
+	}
+}
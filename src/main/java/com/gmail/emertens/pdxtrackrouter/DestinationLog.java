@@ -0,0 +1,411 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps the destinations of minecarts on disk so that they
+ * survive server restarts. Every change is appended to a binary log by a
+ * writer thread, and once the log holds many more records than there
+ * are carts with destinations it is rewritten with only the latest
+ * record of each cart.
+ *
+ * At startup the log is read in chunks and replayed in slices, so that a
+ * large log is read over several ticks instead of stalling one. The file
+ * is closed as soon as the replay ends, before the writer may replace it.
+ * Changes made while the replay is in progress are queued and written
+ * after it.
+ *
+ * The file holds a header followed by records of the cart's unique id,
+ * the length of the destination name and the name in UTF-8. An empty
+ * name records that the destination was cleared.
+ * @author Eric Mertens
+ */
+public final class DestinationLog {
+
+	private static final int MAGIC = 0x50544443; // "PTDC"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 18;
+
+	/**
+	 * Number of records replayed between checks of the time budget
+	 */
+	private static final int REPLAY_SLICE = 1024;
+
+	/**
+	 * Size of the replay buffer, which holds at least one whole record
+	 */
+	private static final int REPLAY_BUFFER_SIZE = 1 << 17;
+
+	/**
+	 * Smallest log which is considered for compaction
+	 */
+	private static final int MIN_COMPACTION_RECORDS = 4096;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A single change of a cart's destination.
+	 */
+	private static final class Record {
+		private final UUID cart;
+
+		/**
+		 * Normalized destination name or null when cleared
+		 */
+		private final String destination;
+
+		Record(final UUID cart, final String destination) {
+			this.cart = cart;
+			this.destination = destination;
+		}
+	}
+
+	private static final Record STOP = new Record(null, null);
+
+	private final File file;
+	private final Logger logger;
+	private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+
+	/**
+	 * Latest destination of every cart, filled by the replay and then
+	 * owned by the writer thread
+	 */
+	private final Map<UUID, String> latest = new HashMap<UUID, String>();
+
+	private FileChannel replayChannel = null;
+	private ByteBuffer replayBuffer = null;
+	private boolean replayed = false;
+	private boolean valid = false;
+	private long records = 0;
+	private Thread writer = null;
+
+	private volatile long written = 0;
+	private volatile int compactions = 0;
+
+	/**
+	 * Construct a new DestinationLog.
+	 * @param file Log file
+	 * @param logger Logger to report write failures to
+	 */
+	public DestinationLog(final File file, final Logger logger) {
+		this.file = file;
+		this.logger = logger;
+	}
+
+	/**
+	 * Replay part of the log. Must be called until it returns true
+	 * before {@link #start()}.
+	 * @param budget Nanoseconds this call may use
+	 * @return true when the whole log has been replayed
+	 */
+	public boolean replay(final long budget) {
+		if (replayed) {
+			return true;
+		}
+
+		final long deadline = System.nanoTime() + budget;
+		if (replayChannel == null && !openReplay()) {
+			replayed = true;
+			return true;
+		}
+
+		final ByteBuffer buffer = replayBuffer;
+		int count = 0;
+		try {
+			while (true) {
+				if (!hasRecord(buffer)) {
+					if (readMore(buffer)) {
+						continue;
+					}
+					break;
+				}
+				if (++count % REPLAY_SLICE == 0 && System.nanoTime() - deadline > 0) {
+					return false;
+				}
+
+				final UUID cart = new UUID(buffer.getLong(), buffer.getLong());
+				final int length = buffer.getShort() & 0xFFFF;
+				if (length == 0) {
+					latest.remove(cart);
+				} else {
+					final byte[] name = new byte[length];
+					buffer.get(name);
+					latest.put(cart, new String(name, UTF8));
+				}
+				records++;
+			}
+
+			// A record cut short by a crash ends the log, and anything
+			// left over is rewritten away before appending
+			valid = !buffer.hasRemaining();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to read destination log " + file, e);
+			valid = false;
+		}
+
+		endReplay();
+		replayed = true;
+		return true;
+	}
+
+	/**
+	 * Return the destinations read from the log. Only valid between the
+	 * end of the replay and {@link #start()}.
+	 * @return the destination of every cart in the log
+	 */
+	public Map<UUID, String> getReplayed() {
+		return latest;
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public void start() {
+		if (writer != null) {
+			return;
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() { write(); }
+		}, "PdxTrackRouter destination log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Record a new destination for a cart.
+	 * @param cart Unique id of the cart
+	 * @param destination Normalized destination name
+	 */
+	public void set(final UUID cart, final String destination) {
+		queue.add(new Record(cart, destination));
+	}
+
+	/**
+	 * Record that a cart no longer has a destination.
+	 * @param cart Unique id of the cart
+	 */
+	public void clear(final UUID cart) {
+		queue.add(new Record(cart, null));
+	}
+
+	/**
+	 * Write every queued change and stop the writer thread. A replay
+	 * still in progress is finished first so that nothing is lost.
+	 * @param timeout Milliseconds to wait for the writer to finish
+	 */
+	public void close(final long timeout) {
+		if (writer == null) {
+			replay(Long.MAX_VALUE);
+			start();
+		}
+
+		queue.add(STOP);
+		try {
+			writer.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	public int getCompactions() {
+		return compactions;
+	}
+
+	/**
+	 * Open the log file for reading and check its header.
+	 * @return false if there is nothing to replay
+	 */
+	private boolean openReplay() {
+		if (!file.exists()) {
+			return false;
+		}
+
+		try {
+			replayChannel = new FileInputStream(file).getChannel();
+			replayBuffer = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+			replayBuffer.flip();
+			while (replayBuffer.remaining() < HEADER_SIZE && readMore(replayBuffer)) {
+				// Keep reading until the header is complete
+			}
+			if (replayBuffer.remaining() < HEADER_SIZE
+					|| replayBuffer.getInt() != MAGIC || replayBuffer.getInt() != VERSION) {
+				logger.warning("Ignoring unrecognized destination log " + file);
+				endReplay();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to read destination log " + file, e);
+			endReplay();
+			return false;
+		}
+	}
+
+	/**
+	 * Read more of the log after the bytes still in the buffer.
+	 * @return false at the end of the file
+	 */
+	private boolean readMore(final ByteBuffer buffer) throws IOException {
+		buffer.compact();
+		final int count = replayChannel.read(buffer);
+		buffer.flip();
+		return count > 0;
+	}
+
+	private static boolean hasRecord(final ByteBuffer buffer) {
+		return buffer.remaining() >= RECORD_HEADER_SIZE
+				&& buffer.remaining() >= RECORD_HEADER_SIZE + (buffer.getShort(buffer.position() + 16) & 0xFFFF);
+	}
+
+	private void endReplay() {
+		if (replayChannel != null) {
+			try {
+				replayChannel.close();
+			} catch (IOException e) {
+				// Nothing more is read from it
+			}
+		}
+		replayChannel = null;
+		replayBuffer = null;
+	}
+
+	/**
+	 * Body of the writer thread. Changes are written in batches of
+	 * whatever has been queued, with one flush per batch. The log is
+	 * compacted as soon as it grows too large, even part way through a
+	 * batch. After a failure the whole log is rewritten from the latest
+	 * destinations with the next batch.
+	 */
+	private void write() {
+		DataOutputStream out = null;
+		try {
+			while (true) {
+				Record record = queue.take();
+				try {
+					if (out == null) {
+						if (!valid) {
+							compact();
+						}
+						out = openAppend();
+					}
+
+					do {
+						if (record == STOP) {
+							out.close();
+							return;
+						}
+						apply(out, record);
+						if (records > MIN_COMPACTION_RECORDS && records > 2L * latest.size()) {
+							out.close();
+							out = null;
+							compact();
+							out = openAppend();
+						}
+						record = queue.poll();
+					} while (record != null);
+					out.flush();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Unable to write destination log " + file, e);
+					closeQuietly(out);
+					out = null;
+					valid = false;
+					if (record == STOP) {
+						return;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			closeQuietly(out);
+		}
+	}
+
+	private void apply(final DataOutputStream out, final Record record) throws IOException {
+		if (record.destination == null) {
+			if (latest.remove(record.cart) == null) {
+				return;
+			}
+		} else if (record.destination.equals(latest.put(record.cart, record.destination))) {
+			return;
+		}
+		writeRecord(out, record.cart, record.destination);
+		records++;
+		written++;
+	}
+
+	/**
+	 * Replace the log with one holding only the latest destination of
+	 * each cart. The new log is first written to a temporary file which
+	 * then replaces the log in a single move.
+	 */
+	private void compact() throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Map.Entry<UUID, String> entry : latest.entrySet()) {
+				writeRecord(out, entry.getKey(), entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+
+		try {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		records = latest.size();
+		valid = true;
+		compactions++;
+	}
+
+	private DataOutputStream openAppend() throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+
+	private static void writeRecord(final DataOutputStream out, final UUID cart, final String destination)
+			throws IOException {
+		final byte[] name = destination == null ? new byte[0] : destination.getBytes(UTF8);
+		out.writeLong(cart.getMostSignificantBits());
+		out.writeLong(cart.getLeastSignificantBits());
+		out.writeShort(name.length);
+		out.write(name);
+	}
+
+	private static void closeQuietly(final DataOutputStream out) {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Already reporting a failure
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.block.BlockFace;
+
+/**
+ * This class matches destination names against the wildcard rules of a
+ * routing table, such as <code>farm*:e</code> or <code>*-north:n</code>,
+ * where each <code>*</code> stands for any run of characters.
+ *
+ * The rules are compiled together into a deterministic automaton whose
+ * states are built the first time a name reaches them, so a match takes
+ * time linear in the length of the name however many rules there are.
+ * Each state remembers, for every travel slot, the exit and sign
+ * position of the first rule it accepts. Characters which appear in no
+ * rule all behave the same and share a single transition.
+ *
+ * Tables are shared with searches on worker threads, so matching is
+ * synchronized while the automaton grows.
+ * @author Eric Mertens
+ */
+final class DestinationPatterns {
+
+	/**
+	 * Result of matching a name: the first matching rule for each
+	 * travel slot.
+	 */
+	static final class Match {
+		private final BlockFace[] exits;
+		private final int[] positions;
+
+		Match(final BlockFace[] exits, final int[] positions) {
+			this.exits = exits;
+			this.positions = positions;
+		}
+
+		/**
+		 * Returns the exit of the first matching rule.
+		 * @param slot Travel slot
+		 * @return the exit, or null if no rule matches for that slot
+		 */
+		BlockFace getExit(final int slot) {
+			return exits[slot];
+		}
+
+		/**
+		 * Returns the sign position of the first matching rule.
+		 * @param slot Travel slot
+		 * @return the line index, or Integer.MAX_VALUE if no rule matches
+		 */
+		int getPosition(final int slot) {
+			return positions[slot];
+		}
+	}
+
+	/**
+	 * A state of the automaton: the positions reached in every pattern.
+	 */
+	private static final class State {
+		private final BitSet reached;
+		private final Match match;
+		private final Map<Character, State> next = new HashMap<Character, State>();
+		private State other = null;
+
+		State(final BitSet reached, final Match match) {
+			this.reached = reached;
+			this.match = match;
+		}
+	}
+
+	private final String[] patterns;
+	private final BlockFace[][] exits;
+	private final int[] positions;
+	private final int slots;
+
+	/**
+	 * Index of each pattern's first position in the reached sets
+	 */
+	private final int[] offsets;
+	private final Set<Character> alphabet = new HashSet<Character>();
+	private final Map<BitSet, State> states = new HashMap<BitSet, State>();
+	private final State start;
+
+	/**
+	 * Compile wildcard rules in sign order.
+	 * @param patterns Normalized destination pattern of each rule
+	 * @param exits Exit of each rule for each travel slot, null where unusable
+	 * @param positions Sign line index of each rule
+	 */
+	DestinationPatterns(final List<String> patterns, final List<BlockFace[]> exits, final List<Integer> positions) {
+		final int count = patterns.size();
+		this.patterns = patterns.toArray(new String[count]);
+		this.exits = exits.toArray(new BlockFace[count][]);
+		this.positions = new int[count];
+		this.slots = count == 0 ? 0 : this.exits[0].length;
+		this.offsets = new int[count];
+
+		int offset = 0;
+		for (int rule = 0; rule < count; rule++) {
+			this.positions[rule] = positions.get(rule);
+			offsets[rule] = offset;
+			offset += this.patterns[rule].length() + 1;
+			for (char c : this.patterns[rule].toCharArray()) {
+				if (c != '*') {
+					alphabet.add(c);
+				}
+			}
+		}
+
+		final BitSet initial = new BitSet(offset);
+		for (int rule = 0; rule < count; rule++) {
+			reach(initial, rule, 0);
+		}
+		start = intern(initial);
+	}
+
+	/**
+	 * Determine if a destination written on a sign is a pattern.
+	 * @param destination Normalized destination
+	 * @return true if the destination contains a wildcard
+	 */
+	static boolean isPattern(final String destination) {
+		return destination.indexOf('*') >= 0;
+	}
+
+	/**
+	 * Find the first rules matching a destination name.
+	 * @param name Normalized destination name
+	 * @return the first matching rule for each travel slot
+	 */
+	synchronized Match match(final String name) {
+		State state = start;
+		for (int i = 0; i < name.length() && !state.reached.isEmpty(); i++) {
+			state = step(state, name.charAt(i));
+		}
+		return state.match;
+	}
+
+	/**
+	 * Add the exits some rule can take for a travel slot.
+	 * @param slot Travel slot
+	 * @param out Collection receiving the exits
+	 */
+	void collectExits(final int slot, final Set<BlockFace> out) {
+		for (BlockFace[] ruleExits : exits) {
+			if (ruleExits[slot] != null) {
+				out.add(ruleExits[slot]);
+			}
+		}
+	}
+
+	private State step(final State state, final char c) {
+		final boolean known = alphabet.contains(c);
+		State target = known ? state.next.get(c) : state.other;
+		if (target != null) {
+			return target;
+		}
+
+		final BitSet reached = new BitSet();
+		for (int rule = 0; rule < patterns.length; rule++) {
+			final String pattern = patterns[rule];
+			final int base = offsets[rule];
+			for (int i = state.reached.nextSetBit(base); i >= 0 && i < base + pattern.length(); i = state.reached.nextSetBit(i + 1)) {
+				final char p = pattern.charAt(i - base);
+				if (p == '*') {
+					reach(reached, rule, i - base);
+				} else if (known && p == c) {
+					reach(reached, rule, i - base + 1);
+				}
+			}
+		}
+
+		target = intern(reached);
+		if (known) {
+			state.next.put(c, target);
+		} else {
+			state.other = target;
+		}
+		return target;
+	}
+
+	/**
+	 * Mark a position of a pattern as reached, along with the positions
+	 * after any wildcards which may match nothing.
+	 */
+	private void reach(final BitSet reached, final int rule, final int position) {
+		final String pattern = patterns[rule];
+		int i = position;
+		reached.set(offsets[rule] + i);
+		while (i < pattern.length() && pattern.charAt(i) == '*') {
+			i++;
+			reached.set(offsets[rule] + i);
+		}
+	}
+
+	private State intern(final BitSet reached) {
+		State state = states.get(reached);
+		if (state != null) {
+			return state;
+		}
+
+		// Rules are in sign order, so the first accepted rule wins
+		final BlockFace[] stateExits = new BlockFace[slots];
+		final int[] statePositions = new int[slots];
+		for (int slot = 0; slot < slots; slot++) {
+			statePositions[slot] = Integer.MAX_VALUE;
+		}
+		for (int rule = 0; rule < patterns.length; rule++) {
+			if (!reached.get(offsets[rule] + patterns[rule].length())) {
+				continue;
+			}
+			for (int slot = 0; slot < slots; slot++) {
+				if (stateExits[slot] == null && exits[rule][slot] != null) {
+					stateExits[slot] = exits[rule][slot];
+					statePositions[slot] = positions[rule];
+				}
+			}
+		}
+
+		state = new State(reached, new Match(stateExits, statePositions));
+		states.put(reached, state);
+		return state;
+	}
+}
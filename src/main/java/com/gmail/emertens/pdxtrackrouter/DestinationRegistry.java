@@ -0,0 +1,116 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class assigns every normalized destination name a small integer
+ * identifier, so that destinations can be compared with a single integer
+ * comparison and sets of destinations can be stored as bit sets.
+ * Identifiers are assigned in order of first use and never change while
+ * the plug-in is running. Aliases map additional names onto the
+ * identifier of an existing destination.
+ *
+ * A single registry is shared by the whole plug-in, including searches
+ * running on worker threads, so lookups never block and registration of
+ * new names is synchronized.
+ * @author Eric Mertens
+ */
+public final class DestinationRegistry {
+
+	/**
+	 * Identifier returned for names which have not been registered
+	 */
+	public static final int UNKNOWN = -1;
+
+	private static final DestinationRegistry GLOBAL = new DestinationRegistry();
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Canonical name of each identifier, replaced whenever it grows
+	 */
+	private volatile String[] names = new String[16];
+	private volatile int count = 0;
+
+	/**
+	 * Return the registry shared by the plug-in.
+	 * @return the global registry
+	 */
+	public static DestinationRegistry global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Return the identifier of a destination, registering it if needed.
+	 * @param destination Normalized destination name
+	 * @return the destination's identifier
+	 */
+	public int intern(final String destination) {
+		final Integer id = ids.get(destination);
+		return id != null ? id : register(destination);
+	}
+
+	/**
+	 * Return the identifier of a destination without registering it.
+	 * @param destination Normalized destination name
+	 * @return the destination's identifier or UNKNOWN
+	 */
+	public int lookup(final String destination) {
+		final Integer id = ids.get(destination);
+		return id == null ? UNKNOWN : id;
+	}
+
+	/**
+	 * Make an alternative name refer to the same identifier as a
+	 * destination. Aliases should be registered before any routing
+	 * table using the alternative name is compiled.
+	 * @param alias Normalized alternative name
+	 * @param destination Normalized destination name
+	 * @return the shared identifier
+	 */
+	public int alias(final String alias, final String destination) {
+		final int id = intern(destination);
+		ids.put(alias, id);
+		return id;
+	}
+
+	/**
+	 * Return the canonical name of a destination. Aliases are reported
+	 * by the name of the destination they refer to.
+	 * @param id Identifier of the destination
+	 * @return the normalized destination name
+	 */
+	public String getName(final int id) {
+		return names[id];
+	}
+
+	/**
+	 * Return the number of registered destinations, not counting aliases.
+	 * @return the number of destinations
+	 */
+	public int size() {
+		return count;
+	}
+
+	private synchronized int register(final String destination) {
+		final Integer existing = ids.get(destination);
+		if (existing != null) {
+			return existing;
+		}
+
+		final int id = count;
+		String[] current = names;
+		if (id == current.length) {
+			current = Arrays.copyOf(current, id * 2);
+		}
+		current[id] = destination;
+
+		// Publish the name before the identifier can be seen
+		names = current;
+		count = id + 1;
+		ids.put(destination, id);
+		return id;
+	}
+}
@@ -0,0 +1,157 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Minecart;
+
+/**
+ * This class holds the destination preference of every player and
+ * minecart as a {@link DestinationRegistry} identifier. Live entities are
+ * kept in an open-addressing table from entity id to destination id, so a
+ * lookup is a few array reads and allocates nothing.
+ *
+ * Entity ids are only valid while an entity is loaded, so entities which
+ * leave the world without being destroyed (minecarts in unloading chunks
+ * and players logging out) are parked under their unique id and restored
+ * when they are loaded again. An entity changing dimension is re-created
+ * with the same unique id and a new entity id; its preference is parked
+ * as it leaves and recovered by unique id the first time a lookup of the
+ * new entity misses. Changes to the destinations of minecarts are also
+ * recorded in a {@link DestinationLog} when one is given.
+ * @author Eric Mertens
+ */
+public final class DestinationStore {
+
+	private final IntIntMap live = new IntIntMap();
+	private final Map<UUID, Integer> parked = new HashMap<UUID, Integer>();
+	private final DestinationLog log;
+
+	/**
+	 * Construct a new empty DestinationStore.
+	 * @param log Log to record minecart destinations in, or null
+	 */
+	public DestinationStore(final DestinationLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Return the destination preference of an entity.
+	 * @param entity Player or minecart
+	 * @return the destination identifier or {@link DestinationRegistry#UNKNOWN}
+	 */
+	public int get(final Entity entity) {
+		final int destination = live.get(entity.getEntityId(), DestinationRegistry.UNKNOWN);
+		if (destination != DestinationRegistry.UNKNOWN || parked.isEmpty()) {
+			return destination;
+		}
+		return recover(entity);
+	}
+
+	/**
+	 * Determine if an entity has a destination preference.
+	 * @param entity Player or minecart
+	 * @return true if a destination is set
+	 */
+	public boolean has(final Entity entity) {
+		return get(entity) != DestinationRegistry.UNKNOWN;
+	}
+
+	/**
+	 * Set the destination preference of an entity.
+	 * @param entity Player or minecart
+	 * @param destination Destination identifier
+	 */
+	public void set(final Entity entity, final int destination) {
+		if (log != null && entity instanceof Minecart) {
+			log.set(entity.getUniqueId(), DestinationRegistry.global().getName(destination));
+		}
+		live.put(entity.getEntityId(), destination);
+	}
+
+	/**
+	 * Clear the destination preference of an entity.
+	 * @param entity Player or minecart
+	 * @return true if a destination was set
+	 */
+	public boolean remove(final Entity entity) {
+		if (!live.remove(entity.getEntityId())) {
+			return false;
+		}
+		if (log != null && entity instanceof Minecart) {
+			log.clear(entity.getUniqueId());
+		}
+		return true;
+	}
+
+	/**
+	 * Move the preference of an entity leaving the world to storage
+	 * keyed by its unique id.
+	 * @param entity Entity being unloaded
+	 */
+	public void park(final Entity entity) {
+		final int destination = live.get(entity.getEntityId(), DestinationRegistry.UNKNOWN);
+		if (destination != DestinationRegistry.UNKNOWN) {
+			parked.put(entity.getUniqueId(), destination);
+			live.remove(entity.getEntityId());
+		}
+	}
+
+	/**
+	 * Park the preference of an entity which is not loaded.
+	 * @param entity Unique id of the entity
+	 * @param destination Destination identifier
+	 */
+	public void park(final UUID entity, final int destination) {
+		parked.put(entity, destination);
+	}
+
+	/**
+	 * Restore the parked preference of an entity which has been loaded
+	 * again under a new entity id. A preference set since the entity was
+	 * loaded takes precedence.
+	 * @param entity Entity being loaded
+	 */
+	public void restore(final Entity entity) {
+		if (parked.isEmpty()) {
+			return;
+		}
+		if (live.containsKey(entity.getEntityId())) {
+			parked.remove(entity.getUniqueId());
+		} else {
+			recover(entity);
+		}
+	}
+
+	/**
+	 * Move the parked preference of an entity to its current entity id.
+	 * @param entity Entity which has no live preference
+	 * @return the destination identifier or {@link DestinationRegistry#UNKNOWN}
+	 */
+	private int recover(final Entity entity) {
+		final Integer destination = parked.remove(entity.getUniqueId());
+		if (destination == null) {
+			return DestinationRegistry.UNKNOWN;
+		}
+		live.put(entity.getEntityId(), destination);
+		return destination;
+	}
+
+	/**
+	 * Return the number of loaded entities with a preference.
+	 * @return the number of live entries
+	 */
+	public int size() {
+		return live.size();
+	}
+
+	/**
+	 * Return the number of unloaded entities with a preference.
+	 * @return the number of parked entries
+	 */
+	public int getParked() {
+		return parked.size();
+	}
+}
@@ -0,0 +1,139 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.Arrays;
+
+/**
+ * This class is an open-addressing hash table from non-negative int keys,
+ * such as entity ids, to int values. Lookups are a few array reads and
+ * never allocate, and removal shifts entries back instead of leaving
+ * tombstones.
+ * @author Eric Mertens
+ */
+final class IntIntMap {
+
+	private static final int FREE = -1;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int[] keys;
+	private int[] values;
+	private int size = 0;
+
+	IntIntMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Return the value of a key.
+	 * @param key Non-negative key
+	 * @param missing Value returned if the key is absent
+	 * @return the value of the key or missing
+	 */
+	int get(final int key, final int missing) {
+		final int slot = find(key);
+		return slot < 0 ? missing : values[slot];
+	}
+
+	boolean containsKey(final int key) {
+		return find(key) >= 0;
+	}
+
+	void put(final int key, final int value) {
+		int slot = slotOf(key);
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & (keys.length - 1);
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key Key to remove
+	 * @return true if the key was present
+	 */
+	boolean remove(final int key) {
+		final int slot = find(key);
+		if (slot < 0) {
+			return false;
+		}
+		delete(slot);
+		return true;
+	}
+
+	void clear() {
+		Arrays.fill(keys, FREE);
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int find(final int key) {
+		int slot = slotOf(key);
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Empty a slot and shift back the entries of the probe sequence
+	 * behind it, so that lookups never need tombstones.
+	 */
+	private void delete(int slot) {
+		final int mask = keys.length - 1;
+		int next = (slot + 1) & mask;
+		while (keys[next] != FREE) {
+			final int home = slotOf(keys[next]);
+			// Move the entry back unless its home lies cyclically in (slot, next]
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				values[slot] = values[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[slot] = FREE;
+		size--;
+	}
+
+	private void resize(final int capacity) {
+		final int[] oldKeys = keys;
+		final int[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int slot = slotOf(oldKeys[i]);
+				while (keys[slot] != FREE) {
+					slot = (slot + 1) & (keys.length - 1);
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(final int capacity) {
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+	}
+
+	private int slotOf(final int key) {
+		// Entity ids are sequential, so scramble them before masking
+		final int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+}
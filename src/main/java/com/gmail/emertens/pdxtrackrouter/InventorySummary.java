@@ -0,0 +1,82 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * This class counts the items of each material held by an inventory. A
+ * summary is built from an inventory's contents at the start of a
+ * transfer and kept up to date with the amounts moved by
+ * {@link InventoryTransfer}, so that it can be consulted when the
+ * transfer ends without looking at the inventory again.
+ * @author Eric Mertens
+ */
+public final class InventorySummary {
+
+	private static final Material[] MATERIALS = Material.values();
+
+	private final int[] counts = new int[MATERIALS.length];
+	private int total = 0;
+
+	/**
+	 * Build the summary of an inventory's contents.
+	 * @param contents Contents of an inventory
+	 * @return a summary of the contents
+	 */
+	public static InventorySummary of(final ItemStack[] contents) {
+		final InventorySummary summary = new InventorySummary();
+		for (ItemStack stack : contents) {
+			if (stack != null && stack.getType() != Material.AIR && stack.getAmount() > 0) {
+				summary.add(stack.getType(), stack.getAmount());
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Record items added to or removed from the inventory.
+	 * @param material Material of the items
+	 * @param amount Number of items added, negative for items removed
+	 */
+	public void add(final Material material, final int amount) {
+		final int ordinal = material.ordinal();
+		final int count = Math.max(0, counts[ordinal] + amount);
+		total += count - counts[ordinal];
+		counts[ordinal] = count;
+	}
+
+	/**
+	 * Return the number of items of a material.
+	 * @param material Material to count
+	 * @return the number of items
+	 */
+	public int getCount(final Material material) {
+		return counts[material.ordinal()];
+	}
+
+	/**
+	 * Return the number of items of every material.
+	 * @return the total number of items
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the material with the most items.
+	 * @return the most common material, or null if there are no items
+	 */
+	public Material getDominant() {
+		if (total == 0) {
+			return null;
+		}
+
+		int best = 0;
+		for (int i = 1; i < counts.length; i++) {
+			if (counts[i] > counts[best]) {
+				best = i;
+			}
+		}
+		return MATERIALS[best];
+	}
+}
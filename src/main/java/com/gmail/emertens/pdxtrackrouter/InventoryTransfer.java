@@ -0,0 +1,159 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * This class moves items between the contents of two inventories. The
+ * contents are worked on as arrays taken with {@link Inventory#getContents()}
+ * so that a transfer allocates nothing per item and the caller decides
+ * when to write the arrays back, once per inventory.
+ *
+ * Each source stack is topped up into matching target stacks and then
+ * into empty target slots, filling slots in order as
+ * {@link Inventory#addItem(ItemStack...)} would. Items which do not fit
+ * stay in the source. The transfer stops as soon as the source has no
+ * items left or the target has no room left. Summaries of either
+ * inventory can be given to be kept up to date with the items moved.
+ * @author Eric Mertens
+ */
+public final class InventoryTransfer {
+
+	private InventoryTransfer() {
+	}
+
+	/**
+	 * Move as many items as possible from one contents array to another.
+	 * Stacks which change are replaced by copies, so the arrays may hold
+	 * stacks still backed by an inventory.
+	 * @param source Contents to remove items from
+	 * @param target Contents to add items to
+	 * @param targetLimit Largest stack the target inventory accepts
+	 * @param sourceSummary Summary of the source to update, or null
+	 * @param targetSummary Summary of the target to update, or null
+	 * @return the number of items moved
+	 */
+	public static int transfer(final ItemStack[] source, final ItemStack[] target, final int targetLimit,
+			final InventorySummary sourceSummary, final InventorySummary targetSummary) {
+		return transfer(source, 0, source.length, target, targetLimit, sourceSummary, targetSummary);
+	}
+
+	/**
+	 * Move as many items as possible from a range of source slots to
+	 * another contents array.
+	 * @param source Contents to remove items from
+	 * @param start First source slot to move
+	 * @param end Source slot after the last one to move
+	 * @param target Contents to add items to
+	 * @param targetLimit Largest stack the target inventory accepts
+	 * @param sourceSummary Summary of the source to update, or null
+	 * @param targetSummary Summary of the target to update, or null
+	 * @return the number of items moved
+	 */
+	public static int transfer(final ItemStack[] source, final int start, final int end,
+			final ItemStack[] target, final int targetLimit,
+			final InventorySummary sourceSummary, final InventorySummary targetSummary) {
+		int open = 0;
+		for (ItemStack stack : target) {
+			if (isEmpty(stack) || stack.getAmount() < limit(stack, targetLimit)) {
+				open++;
+			}
+		}
+
+		int moved = 0;
+		for (int slot = start; slot < end && open > 0; slot++) {
+			final ItemStack stack = source[slot];
+			if (isEmpty(stack)) {
+				continue;
+			}
+
+			final int limit = limit(stack, targetLimit);
+			int remaining = stack.getAmount();
+
+			// Top up matching stacks first
+			for (int i = 0; i < target.length && remaining > 0; i++) {
+				final ItemStack existing = target[i];
+				if (isEmpty(existing) || existing.getAmount() >= limit || !existing.isSimilar(stack)) {
+					continue;
+				}
+				final int amount = Math.min(remaining, limit - existing.getAmount());
+				target[i] = withAmount(existing, existing.getAmount() + amount);
+				remaining -= amount;
+				if (target[i].getAmount() >= limit) {
+					open--;
+				}
+			}
+
+			// Then start new stacks in empty slots
+			for (int i = 0; i < target.length && remaining > 0; i++) {
+				if (!isEmpty(target[i])) {
+					continue;
+				}
+				final int amount = Math.min(remaining, limit);
+				target[i] = withAmount(stack, amount);
+				remaining -= amount;
+				if (amount >= limit) {
+					open--;
+				}
+			}
+
+			final int amount = stack.getAmount() - remaining;
+			if (amount > 0) {
+				moved += amount;
+				source[slot] = remaining == 0 ? null : withAmount(stack, remaining);
+				if (sourceSummary != null) {
+					sourceSummary.add(stack.getType(), -amount);
+				}
+				if (targetSummary != null) {
+					targetSummary.add(stack.getType(), amount);
+				}
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Determine if contents hold no items.
+	 * @param contents Contents of an inventory
+	 * @return true if every slot is empty
+	 */
+	public static boolean isEmpty(final ItemStack[] contents) {
+		for (ItemStack stack : contents) {
+			if (!isEmpty(stack)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if contents have no room for more items.
+	 * @param contents Contents of an inventory
+	 * @param limit Largest stack the inventory accepts
+	 * @return true if every slot holds a full stack
+	 */
+	public static boolean isFull(final ItemStack[] contents, final int limit) {
+		for (ItemStack stack : contents) {
+			if (isEmpty(stack) || stack.getAmount() < limit(stack, limit)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEmpty(final ItemStack stack) {
+		return stack == null || stack.getType() == Material.AIR || stack.getAmount() <= 0;
+	}
+
+	private static int limit(final ItemStack stack, final int targetLimit) {
+		final int max = stack.getMaxStackSize();
+		return max > 0 ? Math.min(max, targetLimit) : targetLimit;
+	}
+
+	private static ItemStack withAmount(final ItemStack stack, final int amount) {
+		final ItemStack copy = stack.clone();
+		copy.setAmount(amount);
+		return copy;
+	}
+}
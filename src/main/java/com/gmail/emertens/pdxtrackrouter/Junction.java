@@ -4,11 +4,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
-import org.bukkit.block.Sign;
-import org.bukkit.material.MaterialData;
 import org.bukkit.material.Rails;
 
 /**
@@ -17,31 +15,42 @@ import org.bukkit.material.Rails;
  * @author Eric Mertens
  */
 public final class Junction {
-	private final Collection<String> lines;
-	private final Block block;
+	private final RoutingTable routingTable;
+	private final World world;
+	private final long block;
 	private final BlockFace openSide;
-	private final Block topSign;
+	private final long topSign;
+	private final boolean virtual;
 
 	/**
-	 * Class constructor specifying junction block, routing lines, and open face.
-	 * @param block the rails block of the junction
-	 * @param lines the lines of the routing signs
+	 * Class constructor specifying junction block, routing table, and open face.
+	 * @param world the world containing the junction
+	 * @param block packed coordinates of the rails block of the junction
+	 * @param routingTable the compiled lines of the routing signs
+	 * @param topSign packed coordinates of the junction header sign
 	 * @param openSide The face corresponding to the open end of the
 	 *                 junction, if one exists; null otherwise.
 	 */
-	public Junction(Block block, Collection<String> lines, Block topSign, BlockFace openSide) {
-		this.lines = lines;
+	public Junction(World world, long block, RoutingTable routingTable, long topSign, BlockFace openSide) {
+		this(world, block, routingTable, topSign, openSide, false);
+	}
+
+	private Junction(World world, long block, RoutingTable routingTable, long topSign, BlockFace openSide,
+			boolean virtual) {
+		this.routingTable = routingTable;
+		this.world = world;
 		this.block = block;
 		this.openSide = openSide;
 		this.topSign = topSign;
+		this.virtual = virtual;
 	}
 
 	/**
-	 * Returns the lines of the routing signs for this junction.
-	 * @returns the lines of the routing signs for this junction
+	 * Returns the compiled routing table for this junction.
+	 * @returns the compiled routing table for this junction
 	 */
-	public Collection<String> getLines() {
-		return lines;
+	public RoutingTable getRoutingTable() {
+		return routingTable;
 	}
 
 	/**
@@ -53,98 +62,128 @@ public final class Junction {
 		return openSide;
 	}
 
+	/**
+	 * Returns the junction header sign.
+	 * @return the header sign, or null for a virtual junction
+	 */
 	public Block getTopSign() {
-		return topSign;
+		return virtual ? null : blockAt(topSign);
+	}
+
+	/**
+	 * Returns whether the routing lines come from {@link VirtualJunctions}
+	 * rather than a sign stack.
+	 * @return true for a virtual junction
+	 */
+	public boolean isVirtual() {
+		return virtual;
 	}
 
 	/**
 	 * Construct a junction starting at a given block if possible.
 	 * @param block The candidate junction block
+	 * @param defaultDestination Normalized name of the default destination
 	 * @return Junction object if block is a routed junction
 	 */
-	public static Junction makeJunction(Block block) {
+	public static Junction makeJunction(Block block, String defaultDestination) {
+		return makeJunction(new WorldBlockProbe(block.getWorld()),
+				block.getX(), block.getY(), block.getZ(), defaultDestination);
+	}
+
+	/**
+	 * Construct a junction starting at a given position if possible.
+	 * @param probe Source of the blocks around the junction
+	 * @param x X coordinate of the candidate junction block
+	 * @param y Y coordinate of the candidate junction block
+	 * @param z Z coordinate of the candidate junction block
+	 * @param defaultDestination Normalized name of the default destination
+	 * @return Junction object if the position is a routed junction
+	 */
+	public static Junction makeJunction(BlockProbe probe, int x, int y, int z, String defaultDestination) {
 		// Only check when arriving at a rails block
-		if (block.getType() != Material.RAILS) {
+		if (probe.getType(x, y, z) != Material.RAILS) {
 			return null;
 		}
 
 		// Check that this is a 3-way intersection with a junction sign
 		BlockFace openEnd = null;
-		Block openBlock = null;
 
 		// Verify that this block's neighbors are all rails
 		// or a junction sign stack, but nothing else.
 		for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
-			Block neighbor = block.getRelative(d);
-			if (isConnectedRail(neighbor,d)
-			 || neighbor.getType() == Material.AIR
-			    && isConnectedSlopeRail(neighbor.getRelative(BlockFace.DOWN), d)) {
+			final int nx = x + d.getModX();
+			final int nz = z + d.getModZ();
+			if (isConnectedRail(probe, nx, y, nz, d)
+			 || probe.getType(nx, y, nz) == Material.AIR
+			    && isConnectedSlopeRail(probe, nx, y - 1, nz, d)) {
 				// Do nothing
 			} else if (openEnd == null) {
 				openEnd = d;
-				openBlock = neighbor;
 			} else {
 				// Abort after two non-rails
 				return null;
 			}
 		}
 
-		final Block signBlock = findJunctionSignsHelper(block, openBlock);
+		// Virtual junctions are routed without any signs
+		final long key = BlockKey.pack(x, y, z);
+		final RoutingTable virtualTable = VirtualJunctions.global().lookup(probe.getWorld(), key);
+		if (virtualTable != null) {
+			return new Junction(probe.getWorld(), key, virtualTable, key, openEnd, true);
+		}
+
+		final Long signBlock = findJunctionSignsHelper(probe, x, y, z, openEnd);
 		if (signBlock == null) {
 			return null;
 		}
 
-		final Collection<String> routingLines = collectJunctionSignLines(signBlock);
+		final Collection<String> routingLines = collectJunctionSignLines(probe,
+				BlockKey.unpackX(signBlock), BlockKey.unpackY(signBlock), BlockKey.unpackZ(signBlock));
 		if (routingLines == null) {
 			return null;
 		}
 
-		return new Junction(block, routingLines, signBlock, openEnd);
+		final RoutingTable table = RoutingTable.compile(routingLines, defaultDestination);
+		return new Junction(probe.getWorld(), key, table, signBlock, openEnd);
 	}
 
-	private static Block findJunctionSignsHelper(Block block,
-			Block openBlock) {
+	private static Long findJunctionSignsHelper(BlockProbe probe, int x, int y, int z,
+			BlockFace openEnd) {
 
-		Block b;
+		Long b;
 
-		b = block.getRelative(BlockFace.DOWN, 2);
-		if (isJunctionBlock(b)) return b;
+		if (isJunctionBlock(probe, x, y - 2, z)) return BlockKey.pack(x, y - 2, z);
 
-		b = block.getRelative(BlockFace.UP);
-		b = searchJunctionSignUp(b);
+		b = searchJunctionSignUp(probe, x, y + 1, z);
 		if (b != null) return b;
 
-		if (openBlock != null) {
-			b = searchJunctionSignUp(openBlock);
+		if (openEnd != null) {
+			b = searchJunctionSignUp(probe, x + openEnd.getModX(), y, z + openEnd.getModZ());
 			if (b != null) return b;
 		}
 
-		b = findCornerSigns(block);
+		b = findCornerSigns(probe, x, y, z);
 		return b;
 	}
 
 	public static boolean isJunctionBlock(Block block) {
-		final BlockState state = block.getState();
-
-		if (!(state instanceof Sign)) {
-			return false;
-		}
+		return isJunctionBlock(new WorldBlockProbe(block.getWorld()),
+				block.getX(), block.getY(), block.getZ());
+	}
 
-		final Sign sign = (Sign) state;
-		return PdxTrackRouter.isJunctionHeader(sign.getLine(0));
+	private static boolean isJunctionBlock(BlockProbe probe, int x, int y, int z) {
+		return BlockProbeUtils.isJunctionHeader(probe, x, y, z);
 	}
 
 	/**
 	 * Search the sign locations for a unique junction sign
-	 * @param block Center block to search from
-	 * @return Unique lines found or an empty array otherwise
+	 * @return Position of the unique header sign found, null otherwise
 	 */
-	private static Block findCornerSigns(Block block) {
-		Block result = null;
+	private static Long findCornerSigns(BlockProbe probe, int x, int y, int z) {
+		Long result = null;
 
 		for (BlockFace d : BlockFaceUtils.ORDINAL_DIRECTIONS) {
-			final Block bottom = block.getRelative(d);
-			final Block top = searchJunctionSignUp(bottom);
+			final Long top = searchJunctionSignUp(probe, x + d.getModX(), y, z + d.getModZ());
 
 			if (top != null) {
 				if (result == null) {
@@ -157,51 +196,49 @@ public final class Junction {
 		return result;
 	}
 
-	private static Block searchJunctionSignUp(final Block bottomBlock) {
+	private static Long searchJunctionSignUp(BlockProbe probe, int x, int bottomY, int z) {
 		// Search upwards collecting all the sign lines,
 		// stop when the junction header is found
 
-		for (Block block = bottomBlock; block != null; block = block.getRelative(BlockFace.UP)) {
-			final BlockState state = block.getState();
+		for (int y = bottomY; ; y++) {
+			final String[] lines = BlockProbeUtils.signLines(probe, x, y, z);
 
-			if (!(state instanceof Sign)) {
+			if (lines == null) {
 				return null;
 			}
 
-			final Sign sign = (Sign) state;
-
-			if (PdxTrackRouter.isJunctionHeader(sign.getLine(0))) {
-				return block;
+			if (PdxTrackRouter.isJunctionHeader(lines[0])) {
+				return BlockKey.pack(x, y, z);
 			}
 		}
-		return null;
 	}
 
 	/**
 	 * Collect the concatenated lines from a stack of signs
 	 *
 	 * @param block The topmost of the potential stack of signs
-	 * @param searchDirection When true start the search at the bottom sign, otherwise search down from the top
 	 * @return An array of the lines of the sign stack
 	 */
 	public static Collection<String> collectJunctionSignLines(Block block) {
+		return collectJunctionSignLines(new WorldBlockProbe(block.getWorld()),
+				block.getX(), block.getY(), block.getZ());
+	}
+
+	private static Collection<String> collectJunctionSignLines(BlockProbe probe, int x, int topY, int z) {
 		final Collection<String> stack = new ArrayList<String>();
 
 		// Search downward collecting all the sign lines
 		boolean firstSign = true;
 
-		for (;;) {
-			final BlockState state = block.getState();
+		for (int y = topY; ; y--) {
+			final String[] lines = BlockProbeUtils.signLines(probe, x, y, z);
 
 			// Not a junction sign stack if you find a non-sign before
 			// a junction header
-			if (!(state instanceof Sign)) {
+			if (lines == null) {
 				return firstSign ? null : stack;
 			}
 
-			final Sign sign = (Sign) state;
-			final String[] lines = sign.getLines();
-
 			if (firstSign) {
 				firstSign = false;
 				if (!PdxTrackRouter.isJunctionHeader(lines[0])) {
@@ -214,21 +251,15 @@ public final class Junction {
 			stack.add(lines[1]);
 			stack.add(lines[2]);
 			stack.add(lines[3]);
-
-			block = block.getRelative(BlockFace.DOWN);
 		}
 	}
 
 	/**
-	 * Treat a block like a rail and set its direction. Ignore nulls.
-	 * @param block A block which is a rail
-	 * @param newDirection new direction that rail should be set to
+	 * Returns the rail block of the junction.
+	 * @return the block whose rail is switched
 	 */
-	public void setRailDirection(final BlockFace newDirection) {
-		final BlockState state = block.getState();
-		final Rails rails = (Rails) state.getData();
-		rails.setDirection(newDirection, false);
-		state.update();
+	public Block getBlock() {
+		return blockAt(block);
 	}
 
 	/**
@@ -237,29 +268,25 @@ public final class Junction {
 	 * @return Orientation of rail block or null
 	 */
 	public static BlockFace railDirection(final Block b) {
-		final MaterialData d = b.getState().getData();
-		if (d instanceof Rails) {
-			final Rails r = (Rails) d;
-			return r.getDirection();
-		}
-		return null;
+		return BlockProbeUtils.railDirection(new WorldBlockProbe(b.getWorld()), b.getX(), b.getY(), b.getZ());
 	}
 
-	private static boolean isConnectedSlopeRail(final Block b, final BlockFace dir) {
-		final MaterialData d = b.getState().getData();
-		if (d instanceof Rails) {
-			final Rails r = (Rails) d;
-			return r.isOnSlope() && r.getDirection() == BlockFaceUtils.opposite(dir);
-		}
-		return false;
+	private static boolean isConnectedSlopeRail(final BlockProbe probe, final int x, final int y, final int z, final BlockFace dir) {
+		final Rails r = BlockProbeUtils.railData(probe, x, y, z);
+		return r != null && r.isOnSlope() && r.getDirection() == BlockFaceUtils.opposite(dir);
 	}
 
-	private static boolean isConnectedRail(final Block b, final BlockFace dir) {
-		final BlockFace blockDir = railDirection(b);
+	private static boolean isConnectedRail(final BlockProbe probe, final int x, final int y, final int z, final BlockFace dir) {
+		final Rails r = BlockProbeUtils.railData(probe, x, y, z);
+		final BlockFace blockDir = r == null ? null : r.getDirection();
 		return blockDir != null // shortcut for non-rails
 				&& (blockDir == dir
 				 || blockDir == BlockFaceUtils.opposite(dir)
 				 || blockDir == BlockFaceUtils.turnFortyFiveDegreesCCW(dir)
 				 || blockDir == BlockFaceUtils.turnFortyFiveDegreesCW(dir));
 	}
+
+	private Block blockAt(final long key) {
+		return world.getBlockAt(BlockKey.unpackX(key), BlockKey.unpackY(key), BlockKey.unpackZ(key));
+	}
 }
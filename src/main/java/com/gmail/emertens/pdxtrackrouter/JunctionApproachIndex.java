@@ -0,0 +1,326 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * This class keeps, for every loaded chunk, a bit set marking the blocks
+ * from which a minecart traveling in a given cardinal direction could
+ * step onto a junction next. Minecarts on plain track can then be
+ * dismissed with a single bit test.
+ *
+ * The index is conservative: a set bit only means that a junction might
+ * be ahead, and must be confirmed with {@link Junction#makeJunction}.
+ * Candidate junction blocks are derived from the positions of junction
+ * header signs and of {@link VirtualJunctions}, so the index only has to
+ * change when signs or the virtual junctions change.
+ * @author Eric Mertens
+ */
+public final class JunctionApproachIndex {
+
+	private static final int WORLD_HEIGHT = 256;
+
+	private final Plugin plugin;
+	private final Map<UUID, Map<Long, ChunkEntry>> worlds = new HashMap<UUID, Map<Long, ChunkEntry>>();
+	private final Set<Block> dirtyBlocks = new HashSet<Block>();
+	private final Runnable rescanTask = new Runnable() {
+		@Override
+		public void run() { rescanDirtyChunks(); }
+	};
+
+	private long rejected = 0;
+	private long accepted = 0;
+
+	/**
+	 * Index information for a single chunk.
+	 */
+	private static final class ChunkEntry {
+		/**
+		 * Packed coordinates of the blocks which could be junctions
+		 * because of the junction signs in this chunk.
+		 */
+		private long[] candidates = new long[0];
+
+		/**
+		 * Approach bits for the blocks inside this chunk, or null if
+		 * no junction can be approached from this chunk.
+		 */
+		private BitSet approaches = null;
+	}
+
+	/**
+	 * Construct a new JunctionApproachIndex.
+	 * @param plugin Plug-in used to schedule deferred rescans
+	 */
+	public JunctionApproachIndex(final Plugin plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Determine if a minecart entering a block in a given direction could
+	 * reach a junction with its next step.
+	 * @param block Block the minecart entered
+	 * @param traveling Direction the minecart is traveling
+	 * @return false when no junction can be next, true otherwise
+	 */
+	public boolean mightApproach(final Block block, final BlockFace traveling) {
+		final int direction = BlockFaceUtils.cardinalIndex(traveling);
+		final int y = block.getY();
+		if (y < 0 || y >= WORLD_HEIGHT) {
+			rejected++;
+			return false;
+		}
+
+		if (direction < 0) {
+			// Vertical movement is rare, leave it to the full check
+			accepted++;
+			return true;
+		}
+
+		final Map<Long, ChunkEntry> chunks = worlds.get(block.getWorld().getUID());
+		if (chunks != null) {
+			final int x = block.getX();
+			final int z = block.getZ();
+			final ChunkEntry entry = chunks.get(BlockKey.column(x >> 4, z >> 4));
+			if (entry != null && entry.approaches != null
+					&& entry.approaches.get(bitIndex(x, y, z, direction))) {
+				accepted++;
+				return true;
+			}
+		}
+
+		rejected++;
+		return false;
+	}
+
+	/**
+	 * Index every chunk which is already loaded.
+	 * @param world World to index
+	 */
+	public void indexWorld(final World world) {
+		for (Chunk chunk : world.getLoadedChunks()) {
+			indexChunk(chunk);
+		}
+	}
+
+	/**
+	 * Find the junction signs in a newly loaded chunk and update the
+	 * approach bits of it and its loaded neighbors.
+	 * @param chunk Chunk to index
+	 */
+	public void indexChunk(final Chunk chunk) {
+		final Map<Long, ChunkEntry> chunks = getWorldChunks(chunk.getWorld());
+		final Long key = BlockKey.column(chunk.getX(), chunk.getZ());
+
+		ChunkEntry entry = chunks.get(key);
+		if (entry == null) {
+			entry = new ChunkEntry();
+			chunks.put(key, entry);
+		}
+		entry.candidates = findCandidates(chunk);
+
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				final int chunkX = chunk.getX() + dx;
+				final int chunkZ = chunk.getZ() + dz;
+				if (chunk.getWorld().isChunkLoaded(chunkX, chunkZ)) {
+					rebuildApproaches(chunks, chunkX, chunkZ);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the index information of an unloaded chunk. Bits which the
+	 * chunk's signs contributed to its neighbors are left in place; they
+	 * only cause extra junction checks until those neighbors are rebuilt.
+	 * @param chunk Chunk being unloaded
+	 */
+	public void unloadChunk(final Chunk chunk) {
+		final Map<Long, ChunkEntry> chunks = worlds.get(chunk.getWorld().getUID());
+		if (chunks != null) {
+			chunks.remove(BlockKey.column(chunk.getX(), chunk.getZ()));
+		}
+	}
+
+	/**
+	 * Schedule the chunk containing a changed sign to be indexed again.
+	 * The rescan happens on the next tick so that the change has been
+	 * applied to the world by then.
+	 * @param block Sign block which changed
+	 */
+	public void markDirty(final Block block) {
+		if (dirtyBlocks.isEmpty()) {
+			plugin.getServer().getScheduler().runTask(plugin, rescanTask);
+		}
+		dirtyBlocks.add(block);
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	public long getAccepted() {
+		return accepted;
+	}
+
+	private void rescanDirtyChunks() {
+		final Set<Chunk> chunks = new HashSet<Chunk>();
+		for (Block block : dirtyBlocks) {
+			chunks.add(block.getChunk());
+		}
+		dirtyBlocks.clear();
+
+		for (Chunk chunk : chunks) {
+			if (chunk.isLoaded()) {
+				indexChunk(chunk);
+			}
+		}
+	}
+
+	private Map<Long, ChunkEntry> getWorldChunks(final World world) {
+		final UUID id = world.getUID();
+		Map<Long, ChunkEntry> chunks = worlds.get(id);
+		if (chunks == null) {
+			chunks = new HashMap<Long, ChunkEntry>();
+			worlds.put(id, chunks);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Recompute the approach bits of one chunk from the candidates of
+	 * the surrounding chunks.
+	 */
+	private static void rebuildApproaches(final Map<Long, ChunkEntry> chunks, final int chunkX, final int chunkZ) {
+		BitSet approaches = null;
+
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				final ChunkEntry source = chunks.get(BlockKey.column(chunkX + dx, chunkZ + dz));
+				if (source == null) {
+					continue;
+				}
+
+				for (long candidate : source.candidates) {
+					final int x = BlockKey.unpackX(candidate);
+					final int y = BlockKey.unpackY(candidate);
+					final int z = BlockKey.unpackZ(candidate);
+
+					// A cart reaches the candidate by leaving a neighbor
+					// toward it, which it can do from any direction of
+					// travel except the opposite one.
+					for (BlockFace exit : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+						final int fromX = x - exit.getModX();
+						final int fromZ = z - exit.getModZ();
+						if (fromX >> 4 != chunkX || fromZ >> 4 != chunkZ) {
+							continue;
+						}
+
+						for (BlockFace traveling : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+							if (traveling == BlockFaceUtils.opposite(exit)) {
+								continue;
+							}
+							if (approaches == null) {
+								approaches = new BitSet();
+							}
+							approaches.set(bitIndex(fromX, y, fromZ, BlockFaceUtils.cardinalIndex(traveling)));
+						}
+					}
+				}
+			}
+		}
+
+		ChunkEntry entry = chunks.get(BlockKey.column(chunkX, chunkZ));
+		if (entry == null) {
+			if (approaches == null) {
+				return;
+			}
+			entry = new ChunkEntry();
+			chunks.put(BlockKey.column(chunkX, chunkZ), entry);
+		}
+		entry.approaches = approaches;
+	}
+
+	/**
+	 * Find every block which a junction sign in this chunk could
+	 * belong to, following the placements accepted by
+	 * {@link Junction#makeJunction}: two blocks above the top sign,
+	 * directly below the sign stack, or beside or diagonal to any
+	 * sign of the stack. The virtual junctions of the chunk are
+	 * candidates as they are.
+	 * @param chunk Chunk to scan
+	 * @return packed coordinates of candidate junction blocks
+	 */
+	private static long[] findCandidates(final Chunk chunk) {
+		final List<Long> candidates = new ArrayList<Long>();
+
+		for (BlockState state : chunk.getTileEntities()) {
+			if (!(state instanceof Sign)
+					|| !PdxTrackRouter.isJunctionHeader(((Sign) state).getLine(0))) {
+				continue;
+			}
+
+			final Block top = state.getBlock();
+			Block bottom = top;
+			while (isSign(bottom.getRelative(BlockFace.DOWN).getType())) {
+				bottom = bottom.getRelative(BlockFace.DOWN);
+			}
+
+			final int x = top.getX();
+			final int z = top.getZ();
+			addCandidate(candidates, x, top.getY() + 2, z);
+			addCandidate(candidates, x, bottom.getY() - 1, z);
+
+			for (int y = bottom.getY(); y <= top.getY(); y++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					for (int dz = -1; dz <= 1; dz++) {
+						if (dx != 0 || dz != 0) {
+							addCandidate(candidates, x + dx, y, z + dz);
+						}
+					}
+				}
+			}
+		}
+
+		// Virtual junctions have no signs to be found by
+		for (long key : VirtualJunctions.global().inChunk(chunk.getWorld(), chunk.getX(), chunk.getZ())) {
+			candidates.add(key);
+		}
+
+		final long[] result = new long[candidates.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = candidates.get(i);
+		}
+		return result;
+	}
+
+	private static void addCandidate(final List<Long> candidates, final int x, final int y, final int z) {
+		if (y >= 0 && y < WORLD_HEIGHT) {
+			candidates.add(BlockKey.pack(x, y, z));
+		}
+	}
+
+	private static boolean isSign(final Material material) {
+		return material == Material.SIGN_POST || material == Material.WALL_SIGN;
+	}
+
+	private static int bitIndex(final int x, final int y, final int z, final int direction) {
+		return (((y << 8) | ((z & 15) << 4) | (x & 15)) << 2) | direction;
+	}
+}
@@ -0,0 +1,222 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+/**
+ * This class remembers the result of {@link Junction#makeJunction(Block, String)}
+ * for recently visited blocks, including blocks which turned out not to
+ * be junctions. Entries are keyed by world and packed block coordinates
+ * and must be invalidated whenever a nearby block changes.
+ * @author Eric Mertens
+ */
+public final class JunctionCache {
+
+	/**
+	 * Marker stored for blocks which are known not to be junctions.
+	 */
+	private static final Junction NOT_A_JUNCTION = new Junction(null, 0, null, 0, null);
+
+	private final int capacity;
+	private final String defaultDestination;
+	private final TickBlockCache tickCache;
+	private final Map<UUID, WorldCache> worlds = new HashMap<UUID, WorldCache>();
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Construct a new JunctionCache.
+	 * @param capacity Maximum number of entries remembered per world
+	 * @param defaultDestination Normalized name of the default destination
+	 * @param tickCache Cache to read the blocks of missed junctions through
+	 */
+	public JunctionCache(final int capacity, final String defaultDestination, final TickBlockCache tickCache) {
+		this.capacity = capacity;
+		this.defaultDestination = defaultDestination;
+		this.tickCache = tickCache;
+	}
+
+	/**
+	 * Return the junction at the given block, consulting the cache first.
+	 * @param block The candidate junction block
+	 * @return Junction object if block is a routed junction, null otherwise
+	 */
+	public Junction lookup(final Block block) {
+		final WorldCache cache = getWorldCache(block.getWorld());
+		final Long key = BlockKey.pack(block);
+
+		Junction junction = cache.get(key);
+		if (junction != null) {
+			hits++;
+		} else {
+			misses++;
+			junction = Junction.makeJunction(tickCache.probe(block.getWorld()),
+					block.getX(), block.getY(), block.getZ(), defaultDestination);
+			if (junction == null) {
+				junction = NOT_A_JUNCTION;
+			}
+			cache.insert(key, block.getX(), block.getZ(), junction);
+		}
+
+		return junction == NOT_A_JUNCTION ? null : junction;
+	}
+
+	/**
+	 * Forget every entry which could depend on the given block. Junction
+	 * signs can be stacked arbitrarily high, so this clears the whole
+	 * column of the block and all of its neighboring columns.
+	 * @param block Block which has changed
+	 */
+	public void invalidateAround(final Block block) {
+		final WorldCache cache = worlds.get(block.getWorld().getUID());
+		if (cache == null) {
+			return;
+		}
+
+		final int x = block.getX();
+		final int z = block.getZ();
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				cache.removeColumn(BlockKey.column(x + dx, z + dz));
+			}
+		}
+	}
+
+	/**
+	 * Forget the entries of the four blocks beside a rail whose direction
+	 * changed. Only junctions directly beside a rail depend on its
+	 * direction, unlike the signs handled by {@link #invalidateAround}.
+	 * @param block Rail which has been switched
+	 */
+	public void invalidateAdjacent(final Block block) {
+		final WorldCache cache = worlds.get(block.getWorld().getUID());
+		if (cache == null) {
+			return;
+		}
+
+		for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			cache.remove(BlockKey.pack(block.getX() + d.getModX(), block.getY(), block.getZ() + d.getModZ()));
+		}
+	}
+
+	/**
+	 * Forget every entry inside a chunk.
+	 * @param chunk Chunk being unloaded
+	 */
+	public void invalidateChunk(final Chunk chunk) {
+		final WorldCache cache = worlds.get(chunk.getWorld().getUID());
+		if (cache == null) {
+			return;
+		}
+
+		final int baseX = chunk.getX() << 4;
+		final int baseZ = chunk.getZ() << 4;
+		for (int dx = 0; dx < 16; dx++) {
+			for (int dz = 0; dz < 16; dz++) {
+				cache.removeColumn(BlockKey.column(baseX + dx, baseZ + dz));
+			}
+		}
+	}
+
+	/**
+	 * Forget every entry in every world.
+	 */
+	public void clear() {
+		worlds.clear();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the number of entries currently cached across all worlds.
+	 * @return the number of cached entries
+	 */
+	public int size() {
+		int size = 0;
+		for (WorldCache cache : worlds.values()) {
+			size += cache.size();
+		}
+		return size;
+	}
+
+	private WorldCache getWorldCache(final World world) {
+		final UUID id = world.getUID();
+		WorldCache cache = worlds.get(id);
+		if (cache == null) {
+			cache = new WorldCache(capacity);
+			worlds.put(id, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Least-recently-used map of the entries for a single world. A
+	 * secondary index from block column to cached keys makes column
+	 * invalidation independent of the cache size.
+	 */
+	@SuppressWarnings("serial")
+	private static final class WorldCache extends LinkedHashMap<Long, Junction> {
+		private final int capacity;
+		private final Map<Long, Set<Long>> columns = new HashMap<Long, Set<Long>>();
+
+		WorldCache(final int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		void insert(final Long key, final int x, final int z, final Junction junction) {
+			put(key, junction);
+
+			final Long column = BlockKey.column(x, z);
+			Set<Long> keys = columns.get(column);
+			if (keys == null) {
+				keys = new HashSet<Long>();
+				columns.put(column, keys);
+			}
+			keys.add(key);
+		}
+
+		void removeColumn(final long column) {
+			final Set<Long> keys = columns.remove(column);
+			if (keys != null) {
+				for (Long key : keys) {
+					remove(key);
+				}
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Long, Junction> eldest) {
+			if (size() <= capacity) {
+				return false;
+			}
+
+			final long key = eldest.getKey();
+			final Long column = BlockKey.column(BlockKey.unpackX(key), BlockKey.unpackZ(key));
+			final Set<Long> keys = columns.get(column);
+			if (keys != null) {
+				keys.remove(eldest.getKey());
+				if (keys.isEmpty()) {
+					columns.remove(column);
+				}
+			}
+			return true;
+		}
+	}
+}
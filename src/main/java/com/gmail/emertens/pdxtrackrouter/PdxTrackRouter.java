@@ -1,32 +1,44 @@
 package com.gmail.emertens.pdxtrackrouter;
 
-import java.util.Collection;
+import java.io.File;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.Sign;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.entity.Minecart;
-import org.bukkit.entity.minecart.PoweredMinecart;
-import org.bukkit.entity.minecart.RideableMinecart;
-import org.bukkit.entity.minecart.StorageMinecart;
 import org.bukkit.event.Listener;
-import org.bukkit.metadata.FixedMetadataValue;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
+import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockDispatcher;
+import com.gmail.emertens.pdxtrackrouter.graph.RailGraph;
+import com.gmail.emertens.pdxtrackrouter.graph.RailNetwork;
+import com.gmail.emertens.pdxtrackrouter.graph.ReachabilityAnalyzer;
+import com.gmail.emertens.pdxtrackrouter.listeners.BlockChangeListener;
 import com.gmail.emertens.pdxtrackrouter.listeners.ChestTransferListener;
 import com.gmail.emertens.pdxtrackrouter.listeners.CommandSignListener;
+import com.gmail.emertens.pdxtrackrouter.listeners.DestinationStoreListener;
 import com.gmail.emertens.pdxtrackrouter.listeners.JunctionEditor;
 import com.gmail.emertens.pdxtrackrouter.listeners.PlayerListener;
+import com.gmail.emertens.pdxtrackrouter.listeners.StationListener;
 import com.gmail.emertens.pdxtrackrouter.listeners.TrackListener;
 import com.gmail.emertens.pdxtrackrouter.listeners.VehicleMoveBlockListener;
 
@@ -45,10 +57,51 @@ public final class PdxTrackRouter extends JavaPlugin {
 	private String EMPTY_DESTINATION;
 	private String CHEST_DESTINATION;
 	private String ENGINE_DESTINATION;
+	private int defaultId;
+	private int emptyId;
+	private int chestId;
+	private int engineId;
 	private boolean chestTransferEnabled;
+	private boolean chestTransferDeferred;
+	private int chestTransferSlotsPerTick;
+	private boolean chestTransferHoldCarts;
+	private ChestTransferScheduler chestTransferScheduler;
+	private StationIndex stationIndex;
+	private String autoFullDestination;
+	private String autoEmptyDestination;
+	private Map<Material, String> autoItemDestinations;
+	private AutoDestinations autoDestinations;
+	private long virtualJunctionPollTicks;
 	private Material transferTool;
+	private int junctionCacheSize;
+	private TickBlockCache tickCache;
+	private JunctionCache junctionCache;
+	private SwitchWriter switchWriter;
+	private JunctionApproachIndex approachIndex;
+	private DestinationStore destinationStore;
+	private RoutingProfiles routingProfiles;
+	private boolean destinationLogEnabled;
+	private long destinationReplayBudget;
+	private DestinationLog destinationLog;
+	private BukkitTask destinationReplayTask;
+	private RailNetwork railNetwork;
+	private boolean snapshotSearch;
+	private boolean graphSearch;
+	private int searchThreads;
+	private int searchPrefetch;
+	private ExecutorService searchExecutor;
+	private long searchTickBudget;
+	private RailSearchScheduler searchScheduler;
+
+	private static final String DESTINATION_LOG = "destinations.log";
+	private static final String VIRTUAL_JUNCTION_FOLDER = "junctions";
+	private static final long DESTINATION_LOG_TIMEOUT = 5000;
 
-	private static final String TRACKROUTER_DESTINATION = "trackrouter.destination";
+	/**
+	 * Longest destination name a player may set. Every name set is
+	 * registered for as long as the server runs.
+	 */
+	private static final int MAX_DESTINATION_LENGTH = 32;
 
 	private static final String DESTINATION_HEADER = "[destination]";
 	private static final String JUNCTION_HEADER = "[junction]";
@@ -64,20 +117,81 @@ public final class PdxTrackRouter extends JavaPlugin {
 		saveDefaultConfig();
 
 		loadConfigurables();
-		// TrackListener needs VehicleMoveBlockEvents
-		final Listener moveBlockListener = new VehicleMoveBlockListener();
-		pm.registerEvents(moveBlockListener, this);
-		
+		tickCache = new TickBlockCache(this);
+		junctionCache = new JunctionCache(junctionCacheSize, DEFAULT_DESTINATION, tickCache);
+		switchWriter = new SwitchWriter(this, junctionCache, tickCache);
+
+		// Virtual junctions must be loaded before junctions are indexed
+		final VirtualJunctions virtualJunctions = VirtualJunctions.global();
+		virtualJunctions.configure(new File(getDataFolder(), VIRTUAL_JUNCTION_FOLDER), DEFAULT_DESTINATION,
+				getLogger());
+		virtualJunctions.poll(getServer().getWorlds());
+
+		approachIndex = new JunctionApproachIndex(this);
+		for (World world : getServer().getWorlds()) {
+			approachIndex.indexWorld(world);
+		}
+
+		if (snapshotSearch) {
+			searchExecutor = new ForkJoinPool(searchThreads);
+		}
+		searchScheduler = new RailSearchScheduler(this, DEFAULT_DESTINATION, searchTickBudget, tickCache,
+				searchExecutor, searchThreads, searchPrefetch);
+
+		// Pick up edits to the virtual junction files
+		getServer().getScheduler().runTaskTimer(this, new Runnable() {
+			@Override
+			public void run() { pollVirtualJunctions(); }
+		}, virtualJunctionPollTicks, virtualJunctionPollTicks);
+
+		// Load the stored rail networks
+		railNetwork = new RailNetwork(this, DEFAULT_DESTINATION);
+		for (World world : getServer().getWorlds()) {
+			railNetwork.getGraph(world);
+		}
+
+		// Destination preferences follow entities in and out of the world
+		if (destinationLogEnabled) {
+			getDataFolder().mkdirs();
+			destinationLog = new DestinationLog(new File(getDataFolder(), DESTINATION_LOG), getLogger());
+			destinationReplayTask = getServer().getScheduler().runTaskTimer(this, new Runnable() {
+				@Override
+				public void run() { replayDestinationLog(); }
+			}, 0, 1);
+		}
+		destinationStore = new DestinationStore(destinationLog);
+		routingProfiles = new RoutingProfiles(destinationStore, defaultId, emptyId, chestId, engineId);
+		pm.registerEvents(new DestinationStoreListener(destinationStore, routingProfiles), this);
+
+		// Keep cached junctions consistent with the world
+		final Listener blockChangeListener = new BlockChangeListener(junctionCache, approachIndex, railNetwork, tickCache);
+		pm.registerEvents(blockChangeListener, this);
+
 		final Listener commandSigns = new CommandSignListener();
 		pm.registerEvents(commandSigns, this);
 
+		// Plug-in components receive minecart moves directly
+		final VehicleMoveBlockDispatcher dispatcher = new VehicleMoveBlockDispatcher();
+		final Listener moveBlockListener = new VehicleMoveBlockListener(dispatcher);
+		pm.registerEvents(moveBlockListener, this);
+
 		// Listen for mine cart events
-		final Listener trackListener = new TrackListener(this);
+		final TrackListener trackListener = new TrackListener(this, junctionCache, approachIndex, tickCache);
 		pm.registerEvents(trackListener, this);
+		dispatcher.register(trackListener);
 
 		if (chestTransferEnabled) {
-			final Listener chestTransferListener = new ChestTransferListener(LOAD_TRIGGER_BLOCK, UNLOAD_TRIGGER_BLOCK);
-			pm.registerEvents(chestTransferListener, this);
+			autoDestinations = makeAutoDestinations();
+			if (chestTransferDeferred) {
+				chestTransferScheduler = new ChestTransferScheduler(this,
+						chestTransferSlotsPerTick, chestTransferHoldCarts, autoDestinations);
+			}
+			stationIndex = new StationIndex(this, LOAD_TRIGGER_BLOCK, UNLOAD_TRIGGER_BLOCK);
+			for (World world : getServer().getWorlds()) {
+				stationIndex.indexWorld(world);
+			}
+			pm.registerEvents(new StationListener(stationIndex), this);
+			dispatcher.register(new ChestTransferListener(stationIndex, chestTransferScheduler, autoDestinations));
 		}
 
 		// Listen for player events
@@ -85,31 +199,120 @@ public final class PdxTrackRouter extends JavaPlugin {
 		pm.registerEvents(playerListener, this);
 		
 		// Install the junction editor
-		final JunctionEditor junctionEditor = new JunctionEditor();
+		final JunctionEditor junctionEditor = new JunctionEditor(this);
 		pm.registerEvents(junctionEditor, this);
 		getCommand("junction").setExecutor(junctionEditor);
 		
 	}
 
+	/**
+	 * This method is called when the plug-in is disabled. It saves the
+	 * rail network graphs, releases held carts and stops the search threads.
+	 */
+	@Override
+	public void onDisable() {
+		if (chestTransferScheduler != null) {
+			chestTransferScheduler.shutdown();
+		}
+		if (railNetwork != null) {
+			railNetwork.saveAll();
+		}
+		if (destinationLog != null) {
+			destinationLog.close(DESTINATION_LOG_TIMEOUT);
+			destinationLog = null;
+		}
+		if (searchExecutor != null) {
+			searchExecutor.shutdownNow();
+			searchExecutor = null;
+		}
+	}
+
 	private void loadConfigurables() {
 		final FileConfiguration c = getConfig();
 
 		chestTransferEnabled = c.getBoolean("chest-transfer.enabled");
 		LOAD_TRIGGER_BLOCK = Material.matchMaterial(c.getString("chest-transfer.load-material"));
 		UNLOAD_TRIGGER_BLOCK = Material.matchMaterial(c.getString("chest-transfer.unload-material"));
+		chestTransferDeferred = c.getBoolean("chest-transfer.deferred", true);
+		chestTransferSlotsPerTick = Math.max(1, c.getInt("chest-transfer.slots-per-tick", 54));
+		chestTransferHoldCarts = c.getBoolean("chest-transfer.hold-carts", true);
+
+		autoFullDestination = normalizeDestination(c.getString("auto-destinations.full", ""));
+		autoEmptyDestination = normalizeDestination(c.getString("auto-destinations.empty", ""));
+		autoItemDestinations = new HashMap<Material, String>();
+		final ConfigurationSection items = c.getConfigurationSection("auto-destinations.items");
+		if (items != null) {
+			for (String name : items.getKeys(false)) {
+				final Material material = Material.matchMaterial(name);
+				if (material == null) {
+					getLogger().warning("Unknown material in auto-destinations: " + name);
+				} else {
+					autoItemDestinations.put(material, normalizeDestination(items.getString(name)));
+				}
+			}
+		}
 
-		DEFAULT_DESTINATION = c.getString("default-destinations.default");
-		EMPTY_DESTINATION = c.getString("default-destinations.empty");
-		CHEST_DESTINATION = c.getString("default-destinations.chest");
-		ENGINE_DESTINATION = c.getString("default-destinations.engine");
+		DEFAULT_DESTINATION = normalizeDestination(c.getString("default-destinations.default"));
+		EMPTY_DESTINATION = normalizeDestination(c.getString("default-destinations.empty"));
+		CHEST_DESTINATION = normalizeDestination(c.getString("default-destinations.chest"));
+		ENGINE_DESTINATION = normalizeDestination(c.getString("default-destinations.engine"));
+
+		// Aliases must be known before any junction is compiled
+		final DestinationRegistry registry = DestinationRegistry.global();
+		final ConfigurationSection aliases = c.getConfigurationSection("destination-aliases");
+		if (aliases != null) {
+			for (String destination : aliases.getKeys(false)) {
+				for (String alias : aliases.getStringList(destination)) {
+					registry.alias(normalizeDestination(alias), normalizeDestination(destination));
+				}
+			}
+		}
+		defaultId = registry.intern(DEFAULT_DESTINATION);
+		emptyId = registry.intern(EMPTY_DESTINATION);
+		chestId = registry.intern(CHEST_DESTINATION);
+		engineId = registry.intern(ENGINE_DESTINATION);
 
 		transferTool = Material.matchMaterial(c.getString("transfer-tool"));
+		junctionCacheSize = c.getInt("junction-cache.size", 4096);
+		snapshotSearch = c.getBoolean("junction-search.snapshots", true);
+		graphSearch = c.getBoolean("junction-search.full-branch", true);
+		searchThreads = Math.max(1, c.getInt("junction-search.threads", 4));
+		searchPrefetch = Math.max(1, c.getInt("junction-search.prefetch", 8));
+		searchTickBudget = Math.max(1, c.getLong("junction-search.tick-budget-nanos", 2000000));
+		destinationLogEnabled = c.getBoolean("destination-log.enabled", true);
+		destinationReplayBudget = Math.max(1, c.getLong("destination-log.replay-budget-nanos", 5000000));
+		virtualJunctionPollTicks = Math.max(1, c.getLong("virtual-junctions.poll-ticks", 40));
+	}
+
+	/**
+	 * Build the automatic storage cart destinations from the configuration.
+	 * @return the rules, or null when none are configured
+	 */
+	private AutoDestinations makeAutoDestinations() {
+		if (autoFullDestination.isEmpty() && autoEmptyDestination.isEmpty() && autoItemDestinations.isEmpty()) {
+			return null;
+		}
+
+		final DestinationRegistry registry = DestinationRegistry.global();
+		final Map<Material, Integer> itemIds = new HashMap<Material, Integer>();
+		for (Map.Entry<Material, String> entry : autoItemDestinations.entrySet()) {
+			itemIds.put(entry.getKey(), registry.intern(entry.getValue()));
+		}
+		return new AutoDestinations(destinationStore, routingProfiles,
+				autoFullDestination.isEmpty() ? DestinationRegistry.UNKNOWN : registry.intern(autoFullDestination),
+				autoEmptyDestination.isEmpty() ? DestinationRegistry.UNKNOWN : registry.intern(autoEmptyDestination),
+				itemIds);
 	}
 
 	@Override
 	public boolean onCommand(final CommandSender sender, final Command command,
 			final String label, final String[] args) {
 
+		if (command.getName().equalsIgnoreCase("routerstats")) {
+			statsCommand(sender);
+			return true;
+		}
+
 		if (!(sender instanceof Player)) {
 			sender.sendMessage(ChatColor.RED
 					+ "This command can only be run by a player");
@@ -146,6 +349,9 @@ public final class PdxTrackRouter extends JavaPlugin {
 			}
 		} else if (command.getName().equalsIgnoreCase("junctions")) {
 			junctionsCommand(player);
+		} else if (command.getName().equalsIgnoreCase("railgraph")
+				&& args.length == 1) {
+			return railGraphCommand(player, args[0]);
 		} else {
 			return false;
 		}
@@ -154,13 +360,173 @@ public final class PdxTrackRouter extends JavaPlugin {
 
 	private void junctionsCommand(final Player player) {
 
-		player.sendMessage(ChatColor.GREEN + "Junction search started");
-
 		final Block block = player.getWorld().getBlockAt(player.getLocation());
-		RailSearch.findRoute(block, player, this);
+		if (graphSearch && graphJunctionsReport(player, block)) {
+			return;
+		}
+
+		final int ahead = searchScheduler.submit(block, player);
+		if (ahead < 0) {
+			player.sendMessage(ChatColor.GREEN + "Joined junction search already running here");
+		} else if (ahead == 0) {
+			player.sendMessage(ChatColor.GREEN + "Junction search started");
+		} else {
+			player.sendMessage(ChatColor.GREEN + "Junction search started, sharing time with "
+					+ ChatColor.YELLOW + ahead + ChatColor.GREEN + " other searches");
+		}
 	}
 
-	private static void signChangeCommand(final Player player, final int lineNo, final String line) {
+	/**
+	 * Report every destination reachable from a block using the rail
+	 * network graph, following all branches rather than only the
+	 * default route.
+	 * @return false if the block is not part of the graph
+	 */
+	private boolean graphJunctionsReport(final Player player, final Block block) {
+		final ReachabilityAnalyzer analyzer = railNetwork.getAnalyzer(block.getWorld());
+		final long key = BlockKey.pack(block);
+		if (!analyzer.covers(key)) {
+			return false;
+		}
+
+		for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final BitSet reachable = analyzer.departing(key, direction);
+			if (!reachable.isEmpty()) {
+				player.sendMessage(RailSearch.formatReport(direction, reachable));
+			}
+		}
+
+		player.sendMessage(ChatColor.GREEN + "Search complete");
+		return true;
+	}
+
+	private boolean railGraphCommand(final Player player, final String action) {
+		final World world = player.getWorld();
+
+		if (action.equalsIgnoreCase("build")) {
+			final Block block = world.getBlockAt(player.getLocation());
+			player.sendMessage(ChatColor.GREEN + "Rail graph build started");
+			railNetwork.build(block, new Runnable() {
+				@Override
+				public void run() {
+					player.sendMessage(ChatColor.GREEN + "Rail graph build complete");
+					railGraphInfo(player, world);
+				}
+			});
+		} else if (action.equalsIgnoreCase("info")) {
+			railGraphInfo(player, world);
+		} else if (action.equalsIgnoreCase("save")) {
+			if (railNetwork.save(world)) {
+				player.sendMessage(ChatColor.GREEN + "Rail graph saved");
+			} else {
+				player.sendMessage(ChatColor.RED + "Unable to save rail graph");
+			}
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void railGraphInfo(final Player player, final World world) {
+		final RailGraph graph = railNetwork.getGraph(world);
+		player.sendMessage(ChatColor.GREEN + "Rail graph: "
+				+ ChatColor.YELLOW + graph.getNodeCount() + ChatColor.GREEN + " nodes, "
+				+ ChatColor.YELLOW + graph.getEdgeCount() + ChatColor.GREEN + " edges, "
+				+ ChatColor.YELLOW + railNetwork.getRepairs(world) + ChatColor.GREEN + " repairs"
+				+ (railNetwork.isBuilding(world) ? " (walking)" : ""));
+	}
+
+	private void statsCommand(final CommandSender sender) {
+		sender.sendMessage(ChatColor.GREEN + "Junction cache: "
+				+ ChatColor.YELLOW + junctionCache.size() + ChatColor.GREEN + " entries, "
+				+ ChatColor.YELLOW + junctionCache.getHits() + ChatColor.GREEN + " hits, "
+				+ ChatColor.YELLOW + junctionCache.getMisses() + ChatColor.GREEN + " misses");
+		sender.sendMessage(ChatColor.GREEN + "Tick block cache: "
+				+ ChatColor.YELLOW + tickCache.getHits() + ChatColor.GREEN + " hits, "
+				+ ChatColor.YELLOW + tickCache.getMisses() + ChatColor.GREEN + " misses");
+		sender.sendMessage(ChatColor.GREEN + "Block snapshots: "
+				+ ChatColor.YELLOW + tickCache.getSnapshots() + ChatColor.GREEN + " taken, "
+				+ ChatColor.YELLOW + tickCache.getSnapshotsAvoided() + ChatColor.GREEN + " avoided");
+		sender.sendMessage(ChatColor.GREEN + "Virtual junctions: "
+				+ ChatColor.YELLOW + VirtualJunctions.global().size() + ChatColor.GREEN + " loaded, "
+				+ ChatColor.YELLOW + VirtualJunctions.global().getReloads() + ChatColor.GREEN + " file loads");
+		sender.sendMessage(ChatColor.GREEN + "Junction switches: "
+				+ ChatColor.YELLOW + switchWriter.getLastTickApplied() + ChatColor.GREEN + " written and "
+				+ ChatColor.YELLOW + switchWriter.getLastTickSuppressed() + ChatColor.GREEN + " skipped last tick, "
+				+ ChatColor.YELLOW + switchWriter.getApplied() + ChatColor.GREEN + " written and "
+				+ ChatColor.YELLOW + switchWriter.getSuppressed() + ChatColor.GREEN + " skipped in total");
+		sender.sendMessage(ChatColor.GREEN + "Junction approach index: "
+				+ ChatColor.YELLOW + approachIndex.getAccepted() + ChatColor.GREEN + " checked, "
+				+ ChatColor.YELLOW + approachIndex.getRejected() + ChatColor.GREEN + " skipped");
+		sender.sendMessage(ChatColor.GREEN + "Junction searches: "
+				+ ChatColor.YELLOW + searchScheduler.getQueueDepth() + ChatColor.GREEN + " queued with "
+				+ ChatColor.YELLOW + searchScheduler.getDirectionsLeft() + ChatColor.GREEN + " directions left, "
+				+ ChatColor.YELLOW + searchScheduler.getCompleted() + ChatColor.GREEN + " completed, "
+				+ ChatColor.YELLOW + searchScheduler.getCancelled() + ChatColor.GREEN + " cancelled, "
+				+ ChatColor.YELLOW + searchScheduler.getBlocksWalked() + ChatColor.GREEN + " blocks walked, "
+				+ ChatColor.YELLOW + searchScheduler.getChunksCaptured() + ChatColor.GREEN + " chunks captured, "
+				+ ChatColor.YELLOW + searchScheduler.getMainThreadBacklog() + ChatColor.GREEN + " captures waiting");
+		if (autoDestinations != null) {
+			sender.sendMessage(ChatColor.GREEN + "Automatic destinations: "
+					+ ChatColor.YELLOW + autoDestinations.getApplied() + ChatColor.GREEN + " destinations set");
+		}
+		if (stationIndex != null) {
+			sender.sendMessage(ChatColor.GREEN + "Chest stations: "
+					+ ChatColor.YELLOW + stationIndex.size() + ChatColor.GREEN + " indexed, "
+					+ ChatColor.YELLOW + stationIndex.getHits() + ChatColor.GREEN + " hits, "
+					+ ChatColor.YELLOW + stationIndex.getMisses() + ChatColor.GREEN + " misses");
+		}
+		if (chestTransferScheduler != null) {
+			sender.sendMessage(ChatColor.GREEN + "Chest transfers: "
+					+ ChatColor.YELLOW + chestTransferScheduler.getQueueDepth() + ChatColor.GREEN + " queued, "
+					+ ChatColor.YELLOW + chestTransferScheduler.getItemsPerSecond() + ChatColor.GREEN + " items/s, "
+					+ ChatColor.YELLOW + chestTransferScheduler.getItemsMoved() + ChatColor.GREEN + " items moved, "
+					+ ChatColor.YELLOW + chestTransferScheduler.getCompleted() + ChatColor.GREEN + " completed, "
+					+ ChatColor.YELLOW + chestTransferScheduler.getAbandoned() + ChatColor.GREEN + " abandoned");
+		}
+		sender.sendMessage(ChatColor.GREEN + "Destinations: "
+				+ ChatColor.YELLOW + destinationStore.size() + ChatColor.GREEN + " loaded, "
+				+ ChatColor.YELLOW + destinationStore.getParked() + ChatColor.GREEN + " unloaded");
+		sender.sendMessage(ChatColor.GREEN + "Routing profiles: "
+				+ ChatColor.YELLOW + routingProfiles.size() + ChatColor.GREEN + " cached, "
+				+ ChatColor.YELLOW + routingProfiles.getHits() + ChatColor.GREEN + " hits, "
+				+ ChatColor.YELLOW + routingProfiles.getMisses() + ChatColor.GREEN + " misses");
+		if (destinationLog != null) {
+			sender.sendMessage(ChatColor.GREEN + "Destination log: "
+					+ ChatColor.YELLOW + destinationLog.getWritten() + ChatColor.GREEN + " records written, "
+					+ ChatColor.YELLOW + destinationLog.getCompactions() + ChatColor.GREEN + " compactions");
+		}
+	}
+
+	/**
+	 * Replay part of the destination log. Once it has been read, the
+	 * stored destinations are parked until their carts are loaded and
+	 * the carts which already are are restored straight away.
+	 */
+	private void replayDestinationLog() {
+		if (!destinationLog.replay(destinationReplayBudget)) {
+			return;
+		}
+
+		final DestinationRegistry registry = DestinationRegistry.global();
+		for (Map.Entry<UUID, String> entry : destinationLog.getReplayed().entrySet()) {
+			destinationStore.park(entry.getKey(), registry.intern(entry.getValue()));
+		}
+		for (World world : getServer().getWorlds()) {
+			for (Entity entity : world.getEntities()) {
+				if (entity instanceof Minecart) {
+					destinationStore.restore(entity);
+				}
+			}
+		}
+
+		routingProfiles.clear();
+		destinationLog.start();
+		destinationReplayTask.cancel();
+		destinationReplayTask = null;
+	}
+
+	private void signChangeCommand(final Player player, final int lineNo, final String line) {
 
 		if (lineNo < 1 || lineNo > 4) {
 			player.sendMessage(ChatColor.RED + "Line number out of range");
@@ -182,72 +548,52 @@ public final class PdxTrackRouter extends JavaPlugin {
 		final Sign sign = (Sign) state;
 		sign.setLine(lineNo-1, ChatColor.translateAlternateColorCodes('&', line));
 		sign.update();
+		signsChanged(block);
 	}
 
 	/**
-	 * Determine the destination for a given entity
-	 * @param entity Entity to find the destination for
-	 * @return A normalized destination for that entity
+	 * Load the virtual junction files which changed and update every
+	 * cache and index holding the junctions they define.
 	 */
-	private String minecartToPreference(final Minecart minecart) {
-		final Entity passenger = minecart.getPassenger();
-
-		if (passenger != null) {
-			if (entityHasDestination(passenger)) {
-				return entityToDestination(passenger);
-			} else {
-				return DEFAULT_DESTINATION;
+	private void pollVirtualJunctions() {
+		final Map<World, Set<Long>> changes = VirtualJunctions.global().poll(getServer().getWorlds());
+		for (Map.Entry<World, Set<Long>> entry : changes.entrySet()) {
+			final World world = entry.getKey();
+			for (long key : entry.getValue()) {
+				final int x = BlockKey.unpackX(key);
+				final int z = BlockKey.unpackZ(key);
+				if (world.isChunkLoaded(x >> 4, z >> 4)) {
+					signsChanged(world.getBlockAt(x, BlockKey.unpackY(key), z));
+				} else {
+					railNetwork.virtualJunctionChanged(world, key, VirtualJunctions.global().lookup(world, key));
+				}
 			}
-		} else if (entityHasDestination(minecart)) {
-			return entityToDestination(minecart);
-		} else if (minecart instanceof StorageMinecart) {
-			return CHEST_DESTINATION;
-		} else if (minecart instanceof PoweredMinecart) {
-			return ENGINE_DESTINATION;
-		} else if (minecart instanceof RideableMinecart) {
-			return EMPTY_DESTINATION;
-		} else {
-			return DEFAULT_DESTINATION;
+			getLogger().info("Reloaded " + entry.getValue().size() + " virtual junctions in " + world.getName());
 		}
 	}
 
 	/**
-	 * Find a target direction given a junction sign line array and a destination name. If no rules
-	 * match continue forward.
-	 * @param destination Destination label to search for
-	 * @param lines Lines of sign to search in
-	 * @param direction
-	 * @return first matching direction or first default direction
+	 * Notify the plug-in that signs were changed in place without
+	 * generating any block events.
+	 * @param block A sign block that changed
 	 */
-	public BlockFace findDestination(final String destination, final Collection<String> lines, final BlockFace direction) {
-		final String prefix = normalizeDestination(destination) + ":";
-		final String defaultPrefix = DEFAULT_DESTINATION + ":";
-
-		// Search through the sign lines for a valid, matching route
-		for (String line : lines) {
-			final String current = normalizeDestination(line);
-			final int prefixLength;
-
-			if (current.startsWith(prefix)) {
-				prefixLength = prefix.length();
-			} else if (current.startsWith(defaultPrefix)) {
-				prefixLength = defaultPrefix.length();
-			} else {
-				continue;
-			}
+	public void signsChanged(final Block block) {
+		junctionCache.invalidateAround(block);
+		tickCache.invalidate(block);
+		approachIndex.markDirty(block);
+		railNetwork.blockChanged(block);
+	}
 
-			final String directionPart = current.substring(prefixLength);
-			final BlockFace routeDir = BlockFaceUtils.charToDirection(directionPart);
+	public JunctionCache getJunctionCache() {
+		return junctionCache;
+	}
 
-			// Ignore invalid and unusable routes
-			if (routeDir == null || routeDir == BlockFaceUtils.opposite(direction)) {
-				continue;
-			}
+	public RailSearchScheduler getSearchScheduler() {
+		return searchScheduler;
+	}
 
-			return routeDir;
-		}
-		// If no rules match default to continuing forward.
-		return direction;
+	public RailNetwork getRailNetwork() {
+		return railNetwork;
 	}
 
 	/**
@@ -294,10 +640,10 @@ public final class PdxTrackRouter extends JavaPlugin {
 	 * Determine the target destination for a player. Assume that null means
 	 * that there is no player and the cart is empty.
 	 * @param player Player in the cart or null for empty carts
-	 * @return The label of the preferred destination if found, default otherwise
+	 * @return Identifier of the preferred destination or UNKNOWN
 	 */
-	private String entityToDestination(final Entity entity) {
-		return entity.getMetadata(TRACKROUTER_DESTINATION).get(0).asString();
+	private int entityToDestination(final Entity entity) {
+		return destinationStore.get(entity);
 	}
 
 	/**
@@ -322,7 +668,16 @@ public final class PdxTrackRouter extends JavaPlugin {
 	public void setPlayerDestination(final Player player, final String destination) {
 		final String uncolored = ChatColor.stripColor(destination);
 		final String normalized = normalizeDestination(uncolored);
-		setEntityDestination(player, normalized);
+
+		// Junction rules only register the name before a colon
+		if (normalized.isEmpty() || normalized.length() > MAX_DESTINATION_LENGTH
+				|| normalized.indexOf(':') >= 0) {
+			player.sendMessage(ChatColor.RED + "Invalid destination");
+			return;
+		}
+
+		final int destinationId = DestinationRegistry.global().intern(normalized);
+		setEntityDestination(player, destinationId);
 		player.sendMessage(ChatColor.GREEN + "Destination set to "
 				+ ChatColor.YELLOW + uncolored);
 	}
@@ -345,8 +700,8 @@ public final class PdxTrackRouter extends JavaPlugin {
 	 * @param traveling Direction the entity will travel into the junction
 	 */
 	public void updateJunction(final Minecart minecart, final Junction junction, final BlockFace traveling) {
-		final String destination = minecartToPreference(minecart);
-		final BlockFace target = findDestination(destination, junction.getLines(), traveling);
+		final int destination = routingProfiles.get(minecart);
+		final BlockFace target = junction.getRoutingTable().route(destination, traveling);
 		final BlockFace open = junction.getOpenSide();
 
 		final BlockFace newDirection;
@@ -357,7 +712,7 @@ public final class PdxTrackRouter extends JavaPlugin {
 		}
 
 		if (newDirection != null) {
-			junction.setRailDirection(newDirection);
+			switchWriter.request(junction.getBlock(), newDirection);
 		}
 	}
 
@@ -371,10 +726,10 @@ public final class PdxTrackRouter extends JavaPlugin {
 	public boolean transferDestination(final Player player, final Entity entity) {
 
 		if (entityHasDestination(player)) {
-			final String destination = entityToDestination(player);
+			final int destination = entityToDestination(player);
 			player.sendMessage(ChatColor.GREEN
 					+ "Transfering destination preference " + ChatColor.YELLOW
-					+ destination + ChatColor.GREEN + " to minecart");
+					+ DestinationRegistry.global().getName(destination) + ChatColor.GREEN + " to minecart");
 			setEntityDestination(entity, destination);
 			return true;
 		} else {
@@ -388,10 +743,11 @@ public final class PdxTrackRouter extends JavaPlugin {
 	/**
 	 * Set the destination preference for an cart without a player
 	 * @param entityId Identity of the cart
-	 * @param destination Destination preference
+	 * @param destination Identifier of the destination preference
 	 */
-	private void setEntityDestination(final Entity entity, final String destination) {
-		entity.setMetadata(TRACKROUTER_DESTINATION, new FixedMetadataValue(this, destination));
+	private void setEntityDestination(final Entity entity, final int destination) {
+		destinationStore.set(entity, destination);
+		routingProfiles.invalidate(entity);
 	}
 
 	/**
@@ -399,12 +755,13 @@ public final class PdxTrackRouter extends JavaPlugin {
 	 * @param entityId Identity of the cart
 	 */
 	public void clearEntityDestination(final Entity entity) {
-		entity.removeMetadata(TRACKROUTER_DESTINATION, this);
+		destinationStore.remove(entity);
+		routingProfiles.invalidate(entity);
 	}
 
 
 	public boolean entityHasDestination(final Entity entity) {
-		return entity.hasMetadata(TRACKROUTER_DESTINATION);
+		return destinationStore.has(entity);
 	}
 
 	public static boolean isJunctionHeader(final String line) {
@@ -1,101 +1,18 @@
 package com.gmail.emertens.pdxtrackrouter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 
 import org.bukkit.ChatColor;
-import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Player;
-import org.bukkit.material.MaterialData;
-import org.bukkit.material.Rails;
-
-final class RailVector {
-	private final Block block;
-	private final BlockFace travelDirection;
-	private final transient Rails rails;
-
-	/**
-	 * Construct a new RailVector
-	 * @param block Rail block
-	 * @param rails Rail block's data
-	 * @param travelDirection Player's direction of travel
-	 */
-	private RailVector(Block block, final Rails rails, BlockFace travelDirection) {
-		this.block = block;
-		this.travelDirection = travelDirection;
-		this.rails = rails;
-	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public boolean equals(Object other) {
-		if (!(other instanceof RailVector)) {
-			return false;
-		}
-		RailVector o = (RailVector) other;
-		return block.equals(o.block) && travelDirection.equals(o.travelDirection);
-	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public int hashCode() {
-		return block.hashCode() + travelDirection.hashCode() * 13;
-	}
-
-	/**
-	 * Attempt to construct a RailVector for the given Block. Return null if the
-	 * given block is not a rail, powered rail, or detector rail. This
-	 * method will search downward until a non-air block is found.
-	 * @param block Block to start search for rail block from
-	 * @param travelDirection Direction player is traveling
-	 * @return a RailVector representing the found rail block, if possible
-	 */
-	public static RailVector makeRailVector(
-			Block block,
-			final BlockFace travelDirection) {
-
-		// Search downward to find the nearest block
-		while (block.getType() == Material.AIR) {
-			block = block.getRelative(BlockFace.DOWN);
-		}
-
-		final MaterialData d = block.getState().getData();
-		if (d instanceof Rails) {
-			return new RailVector(block, (Rails) d, travelDirection);
-		} else {
-			return null;
-		}
-	}
-
-	public Block getBlock() {
-		return block;
-	}
-
-	public BlockFace getTravelDirection() {
-		return travelDirection;
-	}
-
-	public BlockFace getRailDirection() {
-		return rails.getDirection();
-	}
-
-	public boolean isOnSlope() {
-		return rails.isOnSlope();
-	}
-
-	public BlockFace getExitDirection() {
-		return RailSearch.checkTurn(travelDirection, rails.getDirection());
-	}
-}
 
 /**
  * This class encapsulates a rail network traversal collecting the
@@ -104,46 +21,52 @@ final class RailVector {
  *
  * This class is designed to break the search up into several runs
  * to compensate for the non-thread-safe nature of Minecraft/Bukkit.
+ * The runs are scheduled by a {@link RailSearchScheduler}.
  *
  * @author Eric Mertens
  *
  */
 public final class RailSearch {
 
-	private static final int BLOCKS_PER_ITERATION = 100;
-	private static final int ITERATION_TICK_DELAY = 10;
-
 	/**
 	 * Block in which the search started
 	 */
 	private final Block firstBlock;
 
-	private final Player player;
-	private final Set<String> result = new HashSet<String>();
+	private final List<Player> players = new ArrayList<Player>();
+	private final List<String> reports = new ArrayList<String>();
+	private final BitSet result = new BitSet();
 	private final Set<RailVector> visited = new HashSet<RailVector>();
 	private final Queue<BlockFace> faces = new LinkedList<BlockFace>();
-	private final PdxTrackRouter plugin;
+	private final String defaultDestination;
+	private final int defaultId;
+	private final TickBlockCache tickCache;
 
 	/**
 	 * Direction that the current search left the firstBlock in
 	 */
-	private BlockFace firstDirection;
+	private BlockFace firstDirection = null;
 
 	/**
 	 * Current position and traveling direction of the search
 	 */
 	private RailVector cursor = null;
 
+	private long blocksWalked = 0;
+
 	/**
 	 * Construct a new RailSearch
 	 * @param block Starting block for the search
 	 * @param player Player to notify with search results
-	 * @param plugin Plugin used to schedule delayed computations with.
+	 * @param defaultDestination Normalized name of the default destination
+	 * @param tickCache Cache to read the blocks walked through
 	 */
-	private RailSearch(Block block, Player player, PdxTrackRouter plugin) {
+	RailSearch(Block block, Player player, String defaultDestination, TickBlockCache tickCache) {
 		this.firstBlock = block;
-		this.player = player;
-		this.plugin = plugin;
+		this.defaultDestination = defaultDestination;
+		this.tickCache = tickCache;
+		this.defaultId = DestinationRegistry.global().intern(defaultDestination);
+		players.add(player);
 		faces.addAll(Arrays.asList(BlockFaceUtils.CARDINAL_DIRECTIONS));
 	}
 
@@ -151,73 +74,73 @@ public final class RailSearch {
 	 * Advance the search.
 	 *
 	 * This method will perform a chunk of the rail network traversal
-	 * and schedule subsequent searches and notify the player when
-	 * appropriate. This method will perform one search for every
-	 * element of the faces field, reporting to the player as each completes.
+	 * and notify the players when appropriate. The search is performed
+	 * once for every element of the faces field, reporting to the players
+	 * as each completes.
+	 *
+	 * @param blocks Number of blocks to visit before returning
+	 * @return true when the search is complete
 	 */
-	private void step() {
-
-		if (cursor == null) {
-			firstDirection = faces.poll();
-			result.clear();
-			visited.clear();
-			cursor = RailVector.makeRailVector(
-					firstBlock.getRelative(firstDirection), firstDirection);
-		}
+	boolean step(final int blocks) {
 
-		int cutoff = 0;
+		for (int i = 0; i < blocks; i++) {
+			if (cursor == null) {
+				if (firstDirection != null && !result.isEmpty()) {
+					reportToPlayers();
+				}
+
+				firstDirection = faces.poll();
+				if (firstDirection == null) {
+					sendToPlayers(ChatColor.GREEN + "Search complete");
+					return true;
+				}
 
-		while (cursor != null) {
-			if (visited.contains(cursor)) {
-				cursor = null;
-				break;
+				result.clear();
+				visited.clear();
+				cursor = RailVector.makeRailVector(tickCache.probe(firstBlock.getWorld()),
+						firstBlock.getRelative(firstDirection), firstDirection);
+			} else {
+				advance();
 			}
+		}
 
-			visited.add(cursor);
+		return false;
+	}
 
-			//Compute the direction that we will depart from this block
+	private void advance() {
+		if (!visited.add(cursor)) {
+			cursor = null;
+			return;
+		}
 
-			final Junction junction = Junction.makeJunction(cursor.getBlock());
-			final BlockFace newDirection;
+		blocksWalked++;
 
-			if (junction == null) {
-				newDirection = cursor.getExitDirection();
-			} else {
-				recordDestinations(junction);
-				newDirection = plugin.findDestination(
-						plugin.DEFAULT_DESTINATION,
-						junction.getLines(), cursor.getTravelDirection());
-			}
+		//Compute the direction that we will depart from this block
 
-			// Compute the next block we will arrive at
-			Block nextBlock = cursor.getBlock().getRelative(newDirection);
+		final Block block = cursor.getBlock();
+		final BlockProbe probe = tickCache.probe(block.getWorld());
+		final Junction junction = Junction.makeJunction(probe,
+				block.getX(), block.getY(), block.getZ(), defaultDestination);
+		final BlockFace newDirection;
 
-			// Correct for slopes
-			if (cursor.isOnSlope()) {
-				if (cursor.getRailDirection() == newDirection) {
-					nextBlock = nextBlock.getRelative(BlockFace.UP);
-				}
-			}
+		if (junction == null) {
+			newDirection = cursor.getExitDirection();
+		} else {
+			recordDestinations(junction);
+			newDirection = junction.getRoutingTable().route(cursor.getTravelDirection());
+		}
 
-			cursor = RailVector.makeRailVector(nextBlock, newDirection);
+		// Compute the next block we will arrive at
+		Block nextBlock = block.getRelative(newDirection);
 
-			// Ensure we don't hold the main thread for too long
-			cutoff++;
-			if (cutoff > BLOCKS_PER_ITERATION) {
-				yield();
-				return;
+		// Correct for slopes
+		if (cursor.isOnSlope()) {
+			if (cursor.getRailDirection() == newDirection) {
+				nextBlock = nextBlock.getRelative(BlockFace.UP);
 			}
 		}
 
-		if (!result.isEmpty()) {
-			reportToPlayer();
-		}
-
-		if (!faces.isEmpty()) {
-			yield();
-		} else {
-			player.sendMessage(ChatColor.GREEN + "Search complete");
-		}
+		cursor = RailVector.makeRailVector(probe, nextBlock, newDirection);
 	}
 
 	/**
@@ -227,57 +150,86 @@ public final class RailSearch {
 	 */
 	private void recordDestinations(final Junction junction) {
 		final BlockFace backward = BlockFaceUtils.opposite(cursor.getTravelDirection());
-		for (final String s : junction.getLines()) {
-			final String[] parts = PdxTrackRouter.normalizeDestination(s).split(":");
-			if (parts.length == 2) {
-				if (BlockFaceUtils.charToDirection(parts[1]) != backward
-						&& !parts[0].equals(plugin.DEFAULT_DESTINATION)) {
-					result.add(parts[0]);
-				}
+		for (final RoutingTable.Route route : junction.getRoutingTable().getRoutes()) {
+			if (route.getExit() != backward && route.getDestinationId() != defaultId) {
+				result.set(route.getDestinationId());
 			}
 		}
 	}
 
 	/**
-	 * Report to player all of the unique destinations reached by departing
+	 * Report to players all of the unique destinations reached by departing
 	 * firstBlock in firstDirection.
 	 */
-	private void reportToPlayer() {
+	private void reportToPlayers() {
+		final String report = formatReport(firstDirection, result);
+		reports.add(report);
+		sendToPlayers(report);
+	}
+
+	/**
+	 * Format the destinations reached by departing in a direction.
+	 * @param direction Direction of departure
+	 * @param destinations Identifiers of the destinations reached
+	 * @return the report line for that direction
+	 */
+	static String formatReport(final BlockFace direction, final BitSet destinations) {
+		final DestinationRegistry registry = DestinationRegistry.global();
 		final StringBuilder builder = new StringBuilder();
 
-		builder.append(BlockFaceUtils.toCorrectString(firstDirection) + ": ");
-		for (String s : result) {
-			builder.append(ChatColor.YELLOW + s);
+		builder.append(BlockFaceUtils.toCorrectString(direction) + ": ");
+		for (int id = destinations.nextSetBit(0); id >= 0; id = destinations.nextSetBit(id + 1)) {
+			builder.append(ChatColor.YELLOW + registry.getName(id));
 			builder.append(ChatColor.GRAY + "; ");
 		}
-		player.sendMessage(builder.toString());
+		return builder.toString();
+	}
+
+	private void sendToPlayers(final String message) {
+		for (Player player : players) {
+			player.sendMessage(message);
+		}
 	}
 
 	/**
-	 * Schedule a run of the step method to be run after a short delay
+	 * Add a player to be notified of the results. The player is sent
+	 * the reports of the directions already searched.
+	 * @param player Player to notify
 	 */
-	private void yield() {
-		Runnable task = new Runnable() {
-			@Override
-			public void run() { step(); }
-		};
-		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, task, ITERATION_TICK_DELAY);
+	void addPlayer(final Player player) {
+		if (players.contains(player)) {
+			return;
+		}
+		players.add(player);
+		for (String report : reports) {
+			player.sendMessage(report);
+		}
 	}
 
 	/**
-	 * Start a new destination search in all cardinal directions departing from
-	 * the starting block. The search will report all destinations which a
-	 * player could specify which would have a routing effect. The report will
-	 * be sent to the given player.
-	 *
-	 * @param block Staring block
-	 * @param player Player to report to
-	 * @param plugin Plugin to schedule delayed computation with
+	 * Stop notifying a player of the results.
+	 * @param player Player to stop notifying
+	 * @return true if no players remain to be notified
 	 */
-	public static void findRoute(Block block, Player player, PdxTrackRouter plugin) {
+	boolean removePlayer(final Player player) {
+		players.remove(player);
+		return players.isEmpty();
+	}
 
-		final RailSearch task = new RailSearch(block, player, plugin);
-		task.step();
+	Block getFirstBlock() {
+		return firstBlock;
+	}
+
+	/**
+	 * Return the number of directions which have not been finished.
+	 * @return the number of directions left, including the current one
+	 */
+	int getDirectionsLeft() {
+		return faces.size() + (cursor == null ? 0 : 1);
+	}
+
+	long getBlocksWalked() {
+		return blocksWalked;
 	}
 
 	/**
@@ -289,14 +241,29 @@ public final class RailSearch {
 	 * @return the direction player will leave to block, if possible, null otherwise
 	 */
 	public static BlockFace computeNextRail(Block to, BlockFace traveling) {
+		return computeNextRail(new WorldBlockProbe(to.getWorld()),
+				to.getX(), to.getY(), to.getZ(), traveling);
+	}
+
+	/**
+	 * Compute the direction a player will leave a block given the direction
+	 * he arrived in, reading the blocks from a probe.
+	 * @param probe Source of the blocks
+	 * @param x X coordinate of the block player arrived in
+	 * @param y Y coordinate of the block player arrived in
+	 * @param z Z coordinate of the block player arrived in
+	 * @param traveling Direction player traveled to the block
+	 * @return the direction player will leave the block, if possible, null otherwise
+	 */
+	public static BlockFace computeNextRail(BlockProbe probe, int x, int y, int z, BlockFace traveling) {
 
 		final BlockFace toDir;
 
 		switch (traveling) {
 		case UP:
-			return Junction.railDirection(to.getRelative(BlockFace.DOWN));
+			return BlockProbeUtils.railDirection(probe, x, y - 1, z);
 		case DOWN:
-			toDir = Junction.railDirection(to);
+			toDir = BlockProbeUtils.railDirection(probe, x, y, z);
 			// If we are falling out of the sky guess we will continue to
 			if (toDir == null) {
 				return traveling;
@@ -306,7 +273,7 @@ public final class RailSearch {
 		case SOUTH:
 		case EAST:
 		case WEST:
-			toDir = Junction.railDirection(to);
+			toDir = BlockProbeUtils.railDirection(probe, x, y, z);
 
 			// If we are not on a rail guess we will not turn
 			if (toDir == null) {
@@ -329,7 +296,7 @@ public final class RailSearch {
 	 *            The direction the track is facing
 	 * @return The direction the player will leave the track block
 	 */
-	 static BlockFace checkTurn(BlockFace traveling, BlockFace track) {
+	public static BlockFace checkTurn(BlockFace traveling, BlockFace track) {
 
 		switch (track) {
 		case NORTH_EAST:
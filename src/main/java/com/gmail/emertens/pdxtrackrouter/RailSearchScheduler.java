@@ -0,0 +1,298 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * This class runs every {@link RailSearch} on the main thread under a
+ * shared time budget per tick. Searches take turns in small slices so
+ * that a long search cannot starve the others, searches from the same
+ * block are shared between the players who asked for them, and searches
+ * nobody is waiting for any more are dropped.
+ *
+ * When given an executor, searches run as {@link SnapshotRailSearch}
+ * traversals on worker threads instead. Only a limited number of them
+ * run at once and the rest wait their turn. Their chunk captures and
+ * reports are queued here and run under the same tick budget, and they
+ * are shared and cancelled in the same way.
+ * @author Eric Mertens
+ */
+public final class RailSearchScheduler implements Runnable {
+
+	/**
+	 * Number of blocks a search visits before the next search gets a turn
+	 */
+	private static final int BLOCKS_PER_SLICE = 16;
+
+	private final Plugin plugin;
+	private final String defaultDestination;
+	private final long tickBudget;
+	private final TickBlockCache tickCache;
+	private final Executor executor;
+	private final int maxSnapshotSearches;
+	private final int prefetch;
+	private final Queue<RailSearch> jobs = new LinkedList<RailSearch>();
+	private final Map<Block, RailSearch> jobsByStart = new HashMap<Block, RailSearch>();
+
+	/**
+	 * Snapshot searches running on the workers and waiting to start
+	 */
+	private final List<SnapshotRailSearch> snapshotsRunning = new ArrayList<SnapshotRailSearch>();
+	private final Queue<SnapshotRailSearch> snapshotsWaiting = new LinkedList<SnapshotRailSearch>();
+	private final Map<Block, SnapshotRailSearch> snapshotsByStart = new HashMap<Block, SnapshotRailSearch>();
+
+	/**
+	 * Main thread work handed over by the workers
+	 */
+	private final Queue<Runnable> mainThreadWork = new ConcurrentLinkedQueue<Runnable>();
+
+	private BukkitTask task = null;
+	private long completed = 0;
+	private long cancelled = 0;
+	private long blocksWalked = 0;
+	private long chunksCaptured = 0;
+
+	/**
+	 * Construct a new RailSearchScheduler.
+	 * @param plugin Plug-in used to schedule the searches with
+	 * @param defaultDestination Normalized name of the default destination
+	 * @param tickBudget Nanoseconds of each tick all searches together may use
+	 * @param tickCache Cache the searches read blocks through
+	 * @param executor Executor to run snapshot searches on, or null to search on the main thread
+	 * @param maxSnapshotSearches Number of snapshot searches which may run at once
+	 * @param prefetch Number of chunks snapshot searches capture ahead
+	 */
+	public RailSearchScheduler(final Plugin plugin, final String defaultDestination, final long tickBudget,
+			final TickBlockCache tickCache, final Executor executor, final int maxSnapshotSearches,
+			final int prefetch) {
+		this.plugin = plugin;
+		this.defaultDestination = defaultDestination;
+		this.tickBudget = tickBudget;
+		this.tickCache = tickCache;
+		this.executor = executor;
+		this.maxSnapshotSearches = maxSnapshotSearches;
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Start a new destination search in all cardinal directions departing from
+	 * the starting block, or join the search already running from that block.
+	 * The report will be sent to the given player.
+	 *
+	 * @param block Starting block
+	 * @param player Player to report to
+	 * @return the number of searches queued ahead of this one, or -1 if an
+	 * existing search was joined
+	 */
+	public int submit(final Block block, final Player player) {
+		if (executor != null) {
+			return submitSnapshot(block, player);
+		}
+
+		final RailSearch existing = jobsByStart.get(block);
+		if (existing != null) {
+			existing.addPlayer(player);
+			return -1;
+		}
+
+		final int ahead = jobs.size();
+		final RailSearch search = new RailSearch(block, player, defaultDestination, tickCache);
+		jobs.add(search);
+		jobsByStart.put(block, search);
+
+		startTask();
+		return ahead;
+	}
+
+	private int submitSnapshot(final Block block, final Player player) {
+		final SnapshotRailSearch existing = snapshotsByStart.get(block);
+		if (existing != null) {
+			existing.addPlayer(player);
+			return -1;
+		}
+
+		final int ahead = snapshotsByStart.size();
+		final SnapshotRailSearch search = new SnapshotRailSearch(block, player, defaultDestination,
+				executor, prefetch, this);
+		snapshotsByStart.put(block, search);
+		snapshotsWaiting.add(search);
+
+		startTask();
+		admitSnapshots();
+		return ahead;
+	}
+
+	/**
+	 * Start waiting snapshot searches while there is room for them.
+	 */
+	private void admitSnapshots() {
+		while (snapshotsRunning.size() < maxSnapshotSearches && !snapshotsWaiting.isEmpty()) {
+			final SnapshotRailSearch search = snapshotsWaiting.poll();
+			snapshotsRunning.add(search);
+			search.start();
+		}
+	}
+
+	/**
+	 * Queue work of a snapshot search to run on the main thread within
+	 * the tick budget. This may be called from any thread.
+	 * @param work Chunk capture or report to run
+	 */
+	void runOnMainThread(final Runnable work) {
+		mainThreadWork.add(work);
+	}
+
+	/**
+	 * Record a chunk captured by a snapshot search.
+	 */
+	void chunkCaptured() {
+		chunksCaptured++;
+	}
+
+	/**
+	 * Forget a snapshot search which has sent its report and start the
+	 * next one waiting.
+	 * @param search Search which finished
+	 */
+	void snapshotSearchFinished(final SnapshotRailSearch search) {
+		if (snapshotsRunning.remove(search)) {
+			snapshotsByStart.remove(search.getFirstBlock());
+			blocksWalked += search.getBlocksWalked();
+			completed++;
+			admitSnapshots();
+		}
+	}
+
+	/**
+	 * Stop reporting to a player and drop the searches nobody else is
+	 * waiting for.
+	 * @param player Player who is no longer interested
+	 */
+	public void cancel(final Player player) {
+		final Iterator<RailSearch> i = jobs.iterator();
+		while (i.hasNext()) {
+			final RailSearch search = i.next();
+			if (search.removePlayer(player)) {
+				i.remove();
+				jobsByStart.remove(search.getFirstBlock());
+				cancelled++;
+			}
+		}
+
+		final Iterator<SnapshotRailSearch> j = snapshotsByStart.values().iterator();
+		while (j.hasNext()) {
+			final SnapshotRailSearch search = j.next();
+			if (search.removePlayer(player)) {
+				search.cancel();
+				j.remove();
+				snapshotsRunning.remove(search);
+				snapshotsWaiting.remove(search);
+				blocksWalked += search.getBlocksWalked();
+				cancelled++;
+			}
+		}
+		admitSnapshots();
+	}
+
+	/**
+	 * Advance the queued searches in turn until this tick's budget is used.
+	 */
+	@Override
+	public void run() {
+		final long deadline = System.nanoTime() + tickBudget;
+
+		// Work handed over by snapshot searches comes first, as their
+		// workers are idle until it is done
+		Runnable work = mainThreadWork.poll();
+		while (work != null) {
+			work.run();
+			work = System.nanoTime() < deadline ? mainThreadWork.poll() : null;
+		}
+
+		while (!jobs.isEmpty() && System.nanoTime() < deadline) {
+			final RailSearch search = jobs.poll();
+			final long before = search.getBlocksWalked();
+			final boolean done = search.step(BLOCKS_PER_SLICE);
+			blocksWalked += search.getBlocksWalked() - before;
+
+			if (done) {
+				jobsByStart.remove(search.getFirstBlock());
+				completed++;
+			} else {
+				jobs.add(search);
+			}
+		}
+
+		if (jobs.isEmpty() && snapshotsByStart.isEmpty()) {
+			// Anything left belongs to cancelled searches
+			mainThreadWork.clear();
+			task.cancel();
+			task = null;
+		}
+	}
+
+	private void startTask() {
+		if (task == null) {
+			task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+		}
+	}
+
+	/**
+	 * Return the number of searches waiting or running.
+	 * @return the number of queued searches
+	 */
+	public int getQueueDepth() {
+		return jobs.size() + snapshotsByStart.size();
+	}
+
+	/**
+	 * Return the number of directions left across all queued searches.
+	 * @return the number of directions left to search
+	 */
+	public int getDirectionsLeft() {
+		int directions = 0;
+		for (RailSearch search : jobs) {
+			directions += search.getDirectionsLeft();
+		}
+		for (SnapshotRailSearch search : snapshotsByStart.values()) {
+			directions += search.getDirectionsLeft();
+		}
+		return directions;
+	}
+
+	/**
+	 * Return the number of snapshot search steps waiting for the main thread.
+	 * @return the number of chunk captures and reports queued
+	 */
+	public int getMainThreadBacklog() {
+		return mainThreadWork.size();
+	}
+
+	public long getChunksCaptured() {
+		return chunksCaptured;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getCancelled() {
+		return cancelled;
+	}
+
+	public long getBlocksWalked() {
+		return blocksWalked;
+	}
+}
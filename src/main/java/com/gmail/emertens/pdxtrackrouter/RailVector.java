@@ -0,0 +1,115 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.material.Rails;
+
+/**
+ * This class represents a rail block together with the direction a
+ * minecart is traveling through it.
+ * @author Eric Mertens
+ */
+public final class RailVector {
+	private final Block block;
+	private final BlockFace travelDirection;
+	private final transient Rails rails;
+
+	/**
+	 * Construct a new RailVector
+	 * @param block Rail block
+	 * @param rails Rail block's data
+	 * @param travelDirection Player's direction of travel
+	 */
+	private RailVector(Block block, final Rails rails, BlockFace travelDirection) {
+		this.block = block;
+		this.travelDirection = travelDirection;
+		this.rails = rails;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof RailVector)) {
+			return false;
+		}
+		RailVector o = (RailVector) other;
+		return block.equals(o.block) && travelDirection.equals(o.travelDirection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		return block.hashCode() + travelDirection.hashCode() * 13;
+	}
+
+	/**
+	 * Attempt to construct a RailVector for the given Block. Return null if the
+	 * given block is not a rail, powered rail, or detector rail. This
+	 * method will search downward until a non-air block is found.
+	 * @param block Block to start search for rail block from
+	 * @param travelDirection Direction player is traveling
+	 * @return a RailVector representing the found rail block, if possible
+	 */
+	public static RailVector makeRailVector(
+			Block block,
+			final BlockFace travelDirection) {
+		return makeRailVector(new WorldBlockProbe(block.getWorld()), block, travelDirection);
+	}
+
+	/**
+	 * Attempt to construct a RailVector for the given Block, reading the
+	 * blocks from a probe.
+	 * @param probe Source of the blocks in the block's world
+	 * @param block Block to start search for rail block from
+	 * @param travelDirection Direction player is traveling
+	 * @return a RailVector representing the found rail block, if possible
+	 */
+	public static RailVector makeRailVector(
+			final BlockProbe probe,
+			Block block,
+			final BlockFace travelDirection) {
+
+		final int x = block.getX();
+		final int z = block.getZ();
+		int y = block.getY();
+
+		// Search downward to find the nearest block
+		while (probe.getType(x, y, z) == Material.AIR && y > 0) {
+			y--;
+		}
+
+		final Rails rails = BlockProbeUtils.railData(probe, x, y, z);
+		if (rails == null) {
+			return null;
+		}
+		if (y != block.getY()) {
+			block = block.getWorld().getBlockAt(x, y, z);
+		}
+		return new RailVector(block, rails, travelDirection);
+	}
+
+	public Block getBlock() {
+		return block;
+	}
+
+	public BlockFace getTravelDirection() {
+		return travelDirection;
+	}
+
+	public BlockFace getRailDirection() {
+		return rails.getDirection();
+	}
+
+	public boolean isOnSlope() {
+		return rails.isOnSlope();
+	}
+
+	public BlockFace getExitDirection() {
+		return RailSearch.checkTurn(travelDirection, rails.getDirection());
+	}
+}
@@ -0,0 +1,121 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Minecart;
+import org.bukkit.entity.minecart.PoweredMinecart;
+import org.bukkit.entity.minecart.RideableMinecart;
+import org.bukkit.entity.minecart.StorageMinecart;
+
+/**
+ * This class remembers the destination each minecart is routed by, so
+ * that junctions do not have to inspect the passenger, the preferences
+ * and the kind of cart every time. The destination is resolved the first
+ * time a cart is routed and kept until {@link #invalidate(Entity)} is
+ * called for the cart or its passenger, which must happen whenever a
+ * passenger enters or exits or a relevant preference changes.
+ * @author Eric Mertens
+ */
+public final class RoutingProfiles {
+
+	private final DestinationStore store;
+	private final int defaultId;
+	private final int emptyId;
+	private final int chestId;
+	private final int engineId;
+	private final IntIntMap profiles = new IntIntMap();
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Construct a new RoutingProfiles.
+	 * @param store Destination preferences of players and carts
+	 * @param defaultId Destination of carts with a passenger lacking a preference
+	 * @param emptyId Destination of empty rideable carts
+	 * @param chestId Destination of storage carts
+	 * @param engineId Destination of powered carts
+	 */
+	public RoutingProfiles(final DestinationStore store, final int defaultId, final int emptyId,
+			final int chestId, final int engineId) {
+		this.store = store;
+		this.defaultId = defaultId;
+		this.emptyId = emptyId;
+		this.chestId = chestId;
+		this.engineId = engineId;
+	}
+
+	/**
+	 * Return the destination a minecart is routed by.
+	 * @param minecart Minecart approaching a junction
+	 * @return the destination identifier
+	 */
+	public int get(final Minecart minecart) {
+		final int id = minecart.getEntityId();
+		final int cached = profiles.get(id, DestinationRegistry.UNKNOWN);
+		if (cached != DestinationRegistry.UNKNOWN) {
+			hits++;
+			return cached;
+		}
+
+		misses++;
+		final int destination = resolve(minecart);
+		profiles.put(id, destination);
+		return destination;
+	}
+
+	/**
+	 * Forget the destination of a minecart, or of the minecart an entity
+	 * is riding in.
+	 * @param entity Minecart or passenger whose destination changed
+	 */
+	public void invalidate(final Entity entity) {
+		if (entity instanceof Minecart) {
+			profiles.remove(entity.getEntityId());
+		}
+		final Entity vehicle = entity.getVehicle();
+		if (vehicle instanceof Minecart) {
+			profiles.remove(vehicle.getEntityId());
+		}
+	}
+
+	/**
+	 * Forget the destination of every minecart.
+	 */
+	public void clear() {
+		profiles.clear();
+	}
+
+	public int size() {
+		return profiles.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	private int resolve(final Minecart minecart) {
+		final Entity passenger = minecart.getPassenger();
+
+		if (passenger != null) {
+			final int destination = store.get(passenger);
+			return destination == DestinationRegistry.UNKNOWN ? defaultId : destination;
+		}
+
+		final int destination = store.get(minecart);
+		if (destination != DestinationRegistry.UNKNOWN) {
+			return destination;
+		} else if (minecart instanceof StorageMinecart) {
+			return chestId;
+		} else if (minecart instanceof PoweredMinecart) {
+			return engineId;
+		} else if (minecart instanceof RideableMinecart) {
+			return emptyId;
+		} else {
+			return defaultId;
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.bukkit.block.BlockFace;
+
+/**
+ * This class holds the routing rules of a junction sign stack compiled
+ * into a form where a routing decision is a search of a small sorted
+ * array of destination identifiers. Lines are normalized once, the
+ * default route is resolved ahead of time, and rules pointing back the
+ * way a cart came are discarded for each possible direction of travel.
+ *
+ * A destination containing <code>*</code> is a wildcard rule matching any
+ * run of characters. Wildcard rules are compiled into a
+ * {@link DestinationPatterns} automaton and compete with the exact rules
+ * by sign position, so the first matching line still wins.
+ * @author Eric Mertens
+ */
+public final class RoutingTable {
+
+	/**
+	 * Number of travel direction slots: the four cardinal directions
+	 * and one slot for every other direction.
+	 */
+	private static final int TRAVEL_SLOTS = 5;
+
+	/**
+	 * A single destination rule as written on a junction sign.
+	 */
+	public static final class Route {
+		private final int destination;
+		private final BlockFace exit;
+
+		Route(final int destination, final BlockFace exit) {
+			this.destination = destination;
+			this.exit = exit;
+		}
+
+		/**
+		 * Returns the normalized destination name of this rule.
+		 * @return the canonical destination name
+		 */
+		public String getDestination() {
+			return DestinationRegistry.global().getName(destination);
+		}
+
+		/**
+		 * Returns the destination identifier of this rule.
+		 * @return the {@link DestinationRegistry} identifier
+		 */
+		public int getDestinationId() {
+			return destination;
+		}
+
+		/**
+		 * Returns the exit direction of this rule.
+		 * @return the exit direction or null if it was not recognized
+		 */
+		public BlockFace getExit() {
+			return exit;
+		}
+	}
+
+	/**
+	 * Identifiers of the routed destinations in ascending order
+	 */
+	private final int[] destinations;
+
+	/**
+	 * Exit of each routed destination for each travel slot
+	 */
+	private final BlockFace[][] exits;
+
+	/**
+	 * Sign line of each routed destination's exit for each travel slot
+	 */
+	private final int[][] positions;
+	private final BlockFace[] defaultExits;
+	private final int defaultId;
+
+	/**
+	 * Wildcard rules, or null if the signs have none
+	 */
+	private final DestinationPatterns patterns;
+	private final List<Route> routes;
+	private final List<String> lines;
+
+	private RoutingTable(final int[] destinations, final BlockFace[][] exits, final int[][] positions,
+			final BlockFace[] defaultExits, final int defaultId, final DestinationPatterns patterns,
+			final List<Route> routes, final List<String> lines) {
+		this.destinations = destinations;
+		this.exits = exits;
+		this.positions = positions;
+		this.defaultExits = defaultExits;
+		this.defaultId = defaultId;
+		this.patterns = patterns;
+		this.routes = routes;
+		this.lines = lines;
+	}
+
+	/**
+	 * Compile the lines of a junction sign stack into a routing table.
+	 * Destination names are looked up in the global
+	 * {@link DestinationRegistry}, so aliases of the default destination
+	 * count as default rules. Only the name before the first colon of a
+	 * line is registered; a longer prefix such as <code>a:b</code> in
+	 * <code>a:b:n</code> only routes a destination which is already known,
+	 * so stray colons on signs do not fill the registry.
+	 * @param lines Lines of the routing signs in order
+	 * @param defaultDestination Normalized name of the default destination
+	 * @return compiled routing table
+	 */
+	public static RoutingTable compile(final Collection<String> lines, final String defaultDestination) {
+		final DestinationRegistry registry = DestinationRegistry.global();
+		final int defaultId = registry.intern(defaultDestination);
+		final List<String> normalized = new ArrayList<String>(lines.size());
+		final List<Route> routes = new ArrayList<Route>();
+
+		for (String line : lines) {
+			final String current = PdxTrackRouter.normalizeDestination(line);
+			normalized.add(current);
+
+			final String[] parts = current.split(":");
+			if (parts.length == 2 && !DestinationPatterns.isPattern(parts[0])) {
+				routes.add(new Route(registry.intern(parts[0]), BlockFaceUtils.charToDirection(parts[1])));
+			}
+		}
+
+		// The first usable default rule wins for each travel direction
+		final BlockFace[] defaultExits = new BlockFace[TRAVEL_SLOTS];
+		final int[] defaultPositions = new int[TRAVEL_SLOTS];
+		for (int slot = 0; slot < TRAVEL_SLOTS; slot++) {
+			defaultPositions[slot] = Integer.MAX_VALUE;
+		}
+
+		for (int i = 0; i < normalized.size(); i++) {
+			final String line = normalized.get(i);
+			for (int colon = line.indexOf(':'); colon >= 0; colon = line.indexOf(':', colon + 1)) {
+				final BlockFace exit = BlockFaceUtils.charToDirection(line.substring(colon + 1));
+				final String destination = line.substring(0, colon);
+				if (exit == null || DestinationPatterns.isPattern(destination)
+						|| registry.lookup(destination) != defaultId) {
+					continue;
+				}
+
+				for (int slot = 0; slot < TRAVEL_SLOTS; slot++) {
+					if (defaultExits[slot] == null && exit != reverseOf(slot)) {
+						defaultExits[slot] = exit;
+						defaultPositions[slot] = i;
+					}
+				}
+			}
+		}
+
+		// A destination rule is only recorded when it precedes the default
+		// rule for that direction; otherwise the default wins anyway.
+		final Map<Integer, BlockFace[]> exits = new TreeMap<Integer, BlockFace[]>();
+		final Map<Integer, int[]> positions = new TreeMap<Integer, int[]>();
+		final List<String> patterns = new ArrayList<String>();
+		final List<BlockFace[]> patternExits = new ArrayList<BlockFace[]>();
+		final List<Integer> patternPositions = new ArrayList<Integer>();
+		for (int i = 0; i < normalized.size(); i++) {
+			final String line = normalized.get(i);
+			for (int colon = line.indexOf(':'); colon >= 0; colon = line.indexOf(':', colon + 1)) {
+				final BlockFace exit = BlockFaceUtils.charToDirection(line.substring(colon + 1));
+				if (exit == null) {
+					continue;
+				}
+
+				final String name = line.substring(0, colon);
+				if (DestinationPatterns.isPattern(name)) {
+					final BlockFace[] slots = new BlockFace[TRAVEL_SLOTS];
+					for (int slot = 0; slot < TRAVEL_SLOTS; slot++) {
+						if (i < defaultPositions[slot] && exit != reverseOf(slot)) {
+							slots[slot] = exit;
+						}
+					}
+					if (!isEmpty(slots)) {
+						patterns.add(name);
+						patternExits.add(slots);
+						patternPositions.add(i);
+					}
+					continue;
+				}
+
+				final int destination = colon == line.indexOf(':') ? registry.intern(name) : registry.lookup(name);
+				if (destination == DestinationRegistry.UNKNOWN || destination == defaultId) {
+					continue;
+				}
+
+				BlockFace[] slots = exits.get(destination);
+				int[] lineIndexes = positions.get(destination);
+				if (slots == null) {
+					slots = new BlockFace[TRAVEL_SLOTS];
+					lineIndexes = new int[TRAVEL_SLOTS];
+					exits.put(destination, slots);
+					positions.put(destination, lineIndexes);
+				}
+
+				for (int slot = 0; slot < TRAVEL_SLOTS; slot++) {
+					if (slots[slot] == null && i < defaultPositions[slot] && exit != reverseOf(slot)) {
+						slots[slot] = exit;
+						lineIndexes[slot] = i;
+					}
+				}
+			}
+		}
+
+		// Drop destinations which always fall through to the default
+		for (Iterator<Map.Entry<Integer, BlockFace[]>> it = exits.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<Integer, BlockFace[]> entry = it.next();
+			if (isEmpty(entry.getValue())) {
+				positions.remove(entry.getKey());
+				it.remove();
+			}
+		}
+
+		final int[] destinationIds = new int[exits.size()];
+		final BlockFace[][] destinationExits = new BlockFace[exits.size()][];
+		final int[][] destinationPositions = new int[exits.size()][];
+		int index = 0;
+		for (Map.Entry<Integer, BlockFace[]> entry : exits.entrySet()) {
+			destinationIds[index] = entry.getKey();
+			destinationExits[index] = entry.getValue();
+			destinationPositions[index] = positions.get(entry.getKey());
+			index++;
+		}
+
+		return new RoutingTable(destinationIds, destinationExits, destinationPositions, defaultExits, defaultId,
+				patterns.isEmpty() ? null : new DestinationPatterns(patterns, patternExits, patternPositions),
+				Collections.unmodifiableList(routes), Collections.unmodifiableList(normalized));
+	}
+
+	/**
+	 * Find the exit direction for a destination. If no rules match
+	 * continue forward.
+	 * @param destination Identifier of the destination
+	 * @param traveling Direction of travel into the junction
+	 * @return first matching direction or first default direction
+	 */
+	public BlockFace route(final int destination, final BlockFace traveling) {
+		final String name = patterns == null || destination < 0 ? null
+				: DestinationRegistry.global().getName(destination);
+		return route(destination, name, travelSlot(traveling), traveling);
+	}
+
+	/**
+	 * Find the exit direction for a destination. If no rules match
+	 * continue forward.
+	 * @param destination Normalized destination name
+	 * @param traveling Direction of travel into the junction
+	 * @return first matching direction or first default direction
+	 */
+	public BlockFace route(final String destination, final BlockFace traveling) {
+		return route(DestinationRegistry.global().lookup(destination), destination, travelSlot(traveling), traveling);
+	}
+
+	/**
+	 * Find the exit direction taken by carts without a matching rule.
+	 * @param traveling Direction of travel into the junction
+	 * @return first default direction or the travel direction
+	 */
+	public BlockFace route(final BlockFace traveling) {
+		return defaultRoute(travelSlot(traveling), traveling);
+	}
+
+	/**
+	 * Returns the exits wildcard rules can send carts to. The exits of
+	 * rules for a single destination are given by
+	 * {@link #getDestinations()} instead.
+	 * @param traveling Direction of travel into the junction
+	 * @return the exits of the wildcard rules
+	 */
+	public Set<BlockFace> getPatternExits(final BlockFace traveling) {
+		final Set<BlockFace> result = EnumSet.noneOf(BlockFace.class);
+		if (patterns != null) {
+			patterns.collectExits(travelSlot(traveling), result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the well-formed single destination rules in sign order.
+	 * Wildcard rules are not included.
+	 * @return the destination rules of this table
+	 */
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * Returns the destinations which have a rule of their own for at
+	 * least one direction of travel.
+	 * @return the routed destination identifiers in ascending order
+	 */
+	public int[] getDestinations() {
+		return destinations.clone();
+	}
+
+	/**
+	 * Returns the normalized sign lines this table was compiled from.
+	 * @return the normalized sign lines
+	 */
+	public List<String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * Pick the earlier of the exact rule and the first matching wildcard
+	 * rule, falling back to the default route.
+	 */
+	private BlockFace route(final int destination, final String name, final int slot, final BlockFace traveling) {
+		final int index = destination < 0 ? -1 : Arrays.binarySearch(destinations, destination);
+		BlockFace exit = index >= 0 ? exits[index][slot] : null;
+
+		// Carts bound for the default destination only follow default rules
+		if (patterns != null && name != null && destination != defaultId) {
+			final DestinationPatterns.Match match = patterns.match(name);
+			final BlockFace patternExit = match.getExit(slot);
+			if (patternExit != null && (exit == null || match.getPosition(slot) < positions[index][slot])) {
+				exit = patternExit;
+			}
+		}
+		return exit == null ? defaultRoute(slot, traveling) : exit;
+	}
+
+	private BlockFace defaultRoute(final int slot, final BlockFace traveling) {
+		final BlockFace exit = defaultExits[slot];
+		return exit == null ? traveling : exit;
+	}
+
+	private static boolean isEmpty(final BlockFace[] slots) {
+		for (BlockFace exit : slots) {
+			if (exit != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int travelSlot(final BlockFace traveling) {
+		final int index = BlockFaceUtils.cardinalIndex(traveling);
+		return index < 0 ? 4 : index;
+	}
+
+	private static BlockFace reverseOf(final int slot) {
+		return slot < 4 ? BlockFaceUtils.opposite(BlockFaceUtils.fromCardinalIndex(slot)) : null;
+	}
+}
@@ -0,0 +1,153 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+
+/**
+ * This class reads blocks from chunk snapshots so that the rail network
+ * can be examined away from the main thread. Chunk snapshots do not
+ * include sign text, so the lines of every sign are captured along with
+ * the snapshot.
+ *
+ * Chunks are captured on the main thread with {@link #capture(Chunk)}
+ * and may be read by any number of other threads at the same time, as
+ * captured chunks are never modified. Once the capacity is reached the
+ * oldest captures are dropped. Reading a chunk which has not been
+ * captured, or has been dropped, throws a {@link MissingChunkException}.
+ * @author Eric Mertens
+ */
+public final class SnapshotBlockProbe implements BlockProbe {
+
+	private final World world;
+	private final int maxHeight;
+	private final int capacity;
+	private final Map<Long, CapturedChunk> chunks = new ConcurrentHashMap<Long, CapturedChunk>();
+	private final Queue<Long> captureOrder = new LinkedList<Long>();
+
+	/**
+	 * Thrown when a block is read from a chunk which has not been captured.
+	 */
+	@SuppressWarnings("serial")
+	public static final class MissingChunkException extends RuntimeException {
+		private final int chunkX;
+		private final int chunkZ;
+
+		MissingChunkException(final int chunkX, final int chunkZ) {
+			super("Chunk " + chunkX + "," + chunkZ + " not captured");
+			this.chunkX = chunkX;
+			this.chunkZ = chunkZ;
+		}
+
+		public int getChunkX() {
+			return chunkX;
+		}
+
+		public int getChunkZ() {
+			return chunkZ;
+		}
+	}
+
+	/**
+	 * A chunk snapshot along with the lines of the signs inside it.
+	 */
+	private static final class CapturedChunk {
+		private final ChunkSnapshot snapshot;
+		private final Map<Long, String[]> signs;
+
+		CapturedChunk(final ChunkSnapshot snapshot, final Map<Long, String[]> signs) {
+			this.snapshot = snapshot;
+			this.signs = signs;
+		}
+	}
+
+	/**
+	 * Construct a new SnapshotBlockProbe.
+	 * @param world World the chunks will be captured from
+	 * @param capacity Maximum number of chunks kept, oldest first out
+	 */
+	public SnapshotBlockProbe(final World world, final int capacity) {
+		this.world = world;
+		this.maxHeight = world.getMaxHeight();
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Capture a chunk. This must be called on the main thread.
+	 * @param chunk Chunk to capture
+	 */
+	public void capture(final Chunk chunk) {
+		final Map<Long, String[]> signs = new HashMap<Long, String[]>();
+		for (BlockState state : chunk.getTileEntities()) {
+			if (state instanceof Sign) {
+				signs.put(BlockKey.pack(state.getX(), state.getY(), state.getZ()),
+						((Sign) state).getLines());
+			}
+		}
+		final Long key = BlockKey.column(chunk.getX(), chunk.getZ());
+		if (chunks.put(key, new CapturedChunk(chunk.getChunkSnapshot(), signs)) == null) {
+			captureOrder.add(key);
+		}
+		while (captureOrder.size() > capacity) {
+			chunks.remove(captureOrder.poll());
+		}
+	}
+
+	/**
+	 * Determine if a chunk has been captured.
+	 * @param chunkX Chunk X coordinate
+	 * @param chunkZ Chunk Z coordinate
+	 * @return true if blocks in the chunk can be read
+	 */
+	public boolean hasChunk(final int chunkX, final int chunkZ) {
+		return chunks.containsKey(BlockKey.column(chunkX, chunkZ));
+	}
+
+	@Override
+	public World getWorld() {
+		return world;
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public Material getType(final int x, final int y, final int z) {
+		if (y < 0 || y >= maxHeight) {
+			return Material.AIR;
+		}
+		return Material.getMaterial(chunkAt(x, z).snapshot.getBlockTypeId(x & 15, y, z & 15));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public byte getData(final int x, final int y, final int z) {
+		if (y < 0 || y >= maxHeight) {
+			return 0;
+		}
+		return (byte) chunkAt(x, z).snapshot.getBlockData(x & 15, y, z & 15);
+	}
+
+	@Override
+	public String[] getSignLines(final int x, final int y, final int z) {
+		if (y < 0 || y >= maxHeight) {
+			return null;
+		}
+		return chunkAt(x, z).signs.get(BlockKey.pack(x, y, z));
+	}
+
+	private CapturedChunk chunkAt(final int x, final int z) {
+		final CapturedChunk chunk = chunks.get(BlockKey.column(x >> 4, z >> 4));
+		if (chunk == null) {
+			throw new MissingChunkException(x >> 4, z >> 4);
+		}
+		return chunk;
+	}
+}
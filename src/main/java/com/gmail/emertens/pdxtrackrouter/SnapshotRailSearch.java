@@ -0,0 +1,397 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
+import org.bukkit.material.Rails;
+
+/**
+ * This class performs the same traversal as {@link RailSearch} on worker
+ * threads, reading the world from chunk snapshots. The four departure
+ * directions are independent and are searched concurrently, each with
+ * its own visited set, and their reports are merged in the order of
+ * {@link BlockFaceUtils#CARDINAL_DIRECTIONS}.
+ *
+ * Whenever a direction reaches a chunk which has not been captured yet
+ * it hands control to the main thread, which captures that chunk along
+ * with the loaded chunks ahead of it and resubmits it. Only the chunk
+ * the search needs is ever loaded, and terrain is never generated: a
+ * direction which reaches a chunk that does not exist ends there. Only
+ * the final report is sent from the main thread.
+ *
+ * Searches are admitted, shared between players and cancelled by a
+ * {@link RailSearchScheduler}, which also runs their main thread work
+ * under its tick budget. A cancelled search stops at its next chunk
+ * request.
+ *
+ * @author Eric Mertens
+ */
+public final class SnapshotRailSearch {
+
+	private static final int SNAPSHOT_CAPACITY = 256;
+
+	private final RailSearchScheduler scheduler;
+	private final String defaultDestination;
+	private final List<Player> players = new ArrayList<Player>();
+	private final Executor executor;
+	private final int prefetch;
+	private final Block firstBlock;
+	private final SnapshotBlockProbe probe;
+	private final int defaultId;
+	private final int startX;
+	private final int startY;
+	private final int startZ;
+	private final AtomicLong blocksWalked = new AtomicLong();
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Report line of each direction, null when nothing was found
+	 */
+	private final String[] reports = new String[BlockFaceUtils.CARDINAL_DIRECTIONS.length];
+	private final AtomicInteger remaining = new AtomicInteger(BlockFaceUtils.CARDINAL_DIRECTIONS.length);
+
+	/**
+	 * Construct a new SnapshotRailSearch
+	 * @param block Starting block for the search
+	 * @param player Player to notify with search results
+	 * @param defaultDestination Normalized name of the default destination
+	 * @param executor Executor to run the traversals on
+	 * @param prefetch Number of chunks to capture ahead of the search
+	 * @param scheduler Scheduler running the main thread work of the search
+	 */
+	SnapshotRailSearch(final Block block, final Player player, final String defaultDestination,
+			final Executor executor, final int prefetch, final RailSearchScheduler scheduler) {
+		this.scheduler = scheduler;
+		this.defaultDestination = defaultDestination;
+		this.executor = executor;
+		this.prefetch = prefetch;
+		this.firstBlock = block;
+		this.probe = new SnapshotBlockProbe(block.getWorld(), SNAPSHOT_CAPACITY);
+		this.defaultId = DestinationRegistry.global().intern(defaultDestination);
+		players.add(player);
+		this.startX = block.getX();
+		this.startY = block.getY();
+		this.startZ = block.getZ();
+	}
+
+	/**
+	 * The traversal departing the first block in one direction.
+	 */
+	private final class DirectionSearch implements Runnable {
+
+		/**
+		 * Position of this direction in the merged report
+		 */
+		private final int index;
+
+		/**
+		 * Direction that this search left the first block in
+		 */
+		private final BlockFace firstDirection;
+
+		private final BitSet result = new BitSet();
+
+		/**
+		 * Directions each rail block has been visited in, as bits indexed
+		 * by {@link BlockFaceUtils#cardinalIndex(BlockFace)}
+		 */
+		private final Map<Long, Integer> visited = new HashMap<Long, Integer>();
+
+		private boolean started = false;
+
+		/**
+		 * Set when the search reached a chunk which does not exist
+		 */
+		private volatile boolean ended = false;
+
+		/**
+		 * Current position and traveling direction of the search
+		 */
+		private int x;
+		private int y;
+		private int z;
+		private BlockFace traveling = null;
+		private Rails rails = null;
+
+		DirectionSearch(final int index, final BlockFace firstDirection) {
+			this.index = index;
+			this.firstDirection = firstDirection;
+		}
+
+		/**
+		 * Advance the search until it either completes or needs chunks
+		 * which have not been captured.
+		 */
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			if (!ended) {
+				try {
+					search();
+				} catch (SnapshotBlockProbe.MissingChunkException e) {
+					requestChunks(this, e.getChunkX(), e.getChunkZ(),
+							traveling != null ? traveling : firstDirection);
+					return;
+				}
+			}
+
+			if (!result.isEmpty()) {
+				reports[index] = RailSearch.formatReport(firstDirection, result);
+			}
+			directionComplete();
+		}
+
+		/**
+		 * Each step only updates the search state once all of the blocks
+		 * it reads are available, so a step which runs into a missing
+		 * chunk can be repeated from the start.
+		 */
+		private void search() {
+			if (!started) {
+				final int firstX = startX + firstDirection.getModX();
+				final int firstZ = startZ + firstDirection.getModZ();
+				final int firstY = groundY(firstX, startY, firstZ);
+				final Rails first = BlockProbeUtils.railData(probe, firstX, firstY, firstZ);
+				started = true;
+				moveTo(first, firstX, firstY, firstZ, firstDirection);
+			}
+
+			while (traveling != null) {
+				step();
+			}
+		}
+
+		private void step() {
+			final Long key = BlockKey.pack(x, y, z);
+			final int bit = 1 << BlockFaceUtils.cardinalIndex(traveling);
+			final Integer seen = visited.get(key);
+			if (seen != null && (seen & bit) != 0) {
+				traveling = null;
+				return;
+			}
+
+			//Compute the direction that we will depart from this block
+
+			final Junction junction = Junction.makeJunction(probe, x, y, z, defaultDestination);
+			final BlockFace newDirection;
+
+			if (junction == null) {
+				newDirection = RailSearch.checkTurn(traveling, rails.getDirection());
+			} else {
+				newDirection = junction.getRoutingTable().route(traveling);
+			}
+
+			// Compute the next block we will arrive at
+			final int nextX = x + newDirection.getModX();
+			final int nextZ = z + newDirection.getModZ();
+			int nextY = y;
+
+			// Correct for slopes
+			if (rails.isOnSlope() && rails.getDirection() == newDirection) {
+				nextY++;
+			}
+
+			nextY = groundY(nextX, nextY, nextZ);
+			final Rails next = BlockProbeUtils.railData(probe, nextX, nextY, nextZ);
+
+			visited.put(key, seen == null ? bit : seen | bit);
+			blocksWalked.incrementAndGet();
+			if (junction != null) {
+				recordDestinations(junction);
+			}
+			moveTo(next, nextX, nextY, nextZ, newDirection);
+		}
+
+		private void moveTo(final Rails next, final int nextX, final int nextY, final int nextZ,
+				final BlockFace direction) {
+			if (next == null) {
+				traveling = null;
+				return;
+			}
+			x = nextX;
+			y = nextY;
+			z = nextZ;
+			rails = next;
+			traveling = direction;
+		}
+
+		/**
+		 * Record the interesting (non-backward, non-default) destinations which
+		 * would cause an effect at this sign in the result set.
+		 * @param junction Junction reached by the search
+		 */
+		private void recordDestinations(final Junction junction) {
+			final BlockFace backward = BlockFaceUtils.opposite(traveling);
+			for (final RoutingTable.Route route : junction.getRoutingTable().getRoutes()) {
+				if (route.getExit() != backward && route.getDestinationId() != defaultId) {
+					result.set(route.getDestinationId());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Search downward from a position to find the nearest block, as
+	 * {@link RailVector#makeRailVector} does.
+	 * @return the height of the block found
+	 */
+	private int groundY(final int blockX, final int fromY, final int blockZ) {
+		int blockY = fromY;
+		while (probe.getType(blockX, blockY, blockZ) == Material.AIR && blockY > 0) {
+			blockY--;
+		}
+		return blockY;
+	}
+
+	/**
+	 * Send the merged report once the last direction has finished.
+	 */
+	private void directionComplete() {
+		if (remaining.decrementAndGet() != 0) {
+			return;
+		}
+
+		scheduler.runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				if (cancelled) {
+					return;
+				}
+				for (String report : reports) {
+					if (report != null) {
+						sendToPlayers(report);
+					}
+				}
+				sendToPlayers(ChatColor.GREEN + "Search complete");
+				scheduler.snapshotSearchFinished(SnapshotRailSearch.this);
+			}
+		});
+	}
+
+	private void sendToPlayers(final String message) {
+		for (Player player : players) {
+			if (player.isOnline()) {
+				player.sendMessage(message);
+			}
+		}
+	}
+
+	/**
+	 * Capture the missing chunk on the main thread, loading it without
+	 * generating terrain if needed, along with whichever chunks beside it
+	 * and ahead of it in the direction of travel are already loaded, then
+	 * resume a search. A search whose chunk does not exist is ended.
+	 * @param search Search to resume, or null to start every direction
+	 */
+	private void requestChunks(final DirectionSearch search, final int chunkX, final int chunkZ,
+			final BlockFace ahead) {
+		scheduler.runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				if (cancelled) {
+					return;
+				}
+
+				final World world = probe.getWorld();
+				if (!world.isChunkLoaded(chunkX, chunkZ) && !world.loadChunk(chunkX, chunkZ, false)) {
+					// The starting chunk is always loaded, so search is never null here
+					search.ended = true;
+					executor.execute(search);
+					return;
+				}
+
+				final int length = ahead == null ? 1 : prefetch;
+				final int stepX = ahead == null ? 0 : ahead.getModX();
+				final int stepZ = ahead == null ? 0 : ahead.getModZ();
+				for (int i = 0; i < length; i++) {
+					for (int dx = -1; dx <= 1; dx++) {
+						for (int dz = -1; dz <= 1; dz++) {
+							final int cx = chunkX + i * stepX + dx;
+							final int cz = chunkZ + i * stepZ + dz;
+							if (!probe.hasChunk(cx, cz) && world.isChunkLoaded(cx, cz)) {
+								probe.capture(world.getChunkAt(cx, cz));
+								scheduler.chunkCaptured();
+							}
+						}
+					}
+				}
+
+				if (search != null) {
+					executor.execute(search);
+				} else {
+					final BlockFace[] directions = BlockFaceUtils.CARDINAL_DIRECTIONS;
+					for (int i = 0; i < directions.length; i++) {
+						executor.execute(new DirectionSearch(i, directions[i]));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start searching all cardinal directions departing from the starting
+	 * block on worker threads. The report will be sent to the players
+	 * once every direction has been searched.
+	 */
+	void start() {
+		requestChunks(null, startX >> 4, startZ >> 4, null);
+	}
+
+	/**
+	 * Stop the search. Directions stop at their next chunk request and
+	 * no report is sent.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Add a player to be notified of the results.
+	 * @param player Player to notify
+	 */
+	void addPlayer(final Player player) {
+		if (!players.contains(player)) {
+			players.add(player);
+		}
+	}
+
+	/**
+	 * Stop notifying a player of the results.
+	 * @param player Player to stop notifying
+	 * @return true if no players remain to be notified
+	 */
+	boolean removePlayer(final Player player) {
+		players.remove(player);
+		return players.isEmpty();
+	}
+
+	Block getFirstBlock() {
+		return firstBlock;
+	}
+
+	/**
+	 * Return the number of directions which have not been finished.
+	 * @return the number of directions left
+	 */
+	int getDirectionsLeft() {
+		return remaining.get();
+	}
+
+	long getBlocksWalked() {
+		return blocksWalked.get();
+	}
+}
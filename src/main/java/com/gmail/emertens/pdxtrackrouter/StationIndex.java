@@ -0,0 +1,407 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Chest;
+import org.bukkit.block.DoubleChest;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * This class keeps the chest loading stations of every loaded chunk: the
+ * load and unload trigger blocks which have chests beside them, along
+ * with those chests. Storage carts on ordinary track are dismissed with
+ * a single lookup, and carts at a station find their chests without
+ * examining the blocks around the trigger.
+ *
+ * Stations are found from the chests of a chunk when it is loaded, since
+ * a trigger block is only a station when a chest is beside it. Changed
+ * blocks are checked again on the next tick, once the change has been
+ * applied to the world. Stations only keep the positions of their chests
+ * and each hit checks that its trigger is still in place, so a change the
+ * index missed can never hand out a chest which is gone.
+ * @author Eric Mertens
+ */
+public final class StationIndex {
+
+	private final Plugin plugin;
+	private final Material loadTrigger;
+	private final Material unloadTrigger;
+	private final Map<UUID, WorldStations> worlds = new HashMap<UUID, WorldStations>();
+	private final Set<Block> dirtyBlocks = new HashSet<Block>();
+	private final Runnable rescanTask = new Runnable() {
+		@Override
+		public void run() { rescanDirtyBlocks(); }
+	};
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * A trigger block together with the positions of the chests beside it.
+	 */
+	public static final class Station {
+		private final boolean loadCart;
+		private final World world;
+		private final long[] chests;
+
+		Station(final boolean loadCart, final World world, final long[] chests) {
+			this.loadCart = loadCart;
+			this.world = world;
+			this.chests = chests;
+		}
+
+		/**
+		 * Determine which way items move at this station.
+		 * @return true if carts are loaded, false if they are unloaded
+		 */
+		public boolean isLoad() {
+			return loadCart;
+		}
+
+		/**
+		 * Return the distinct inventories of the chests beside the
+		 * trigger. Both halves of a double chest share one inventory.
+		 * Chests which are no longer there are skipped.
+		 * @return chest inventories in the order they were found
+		 */
+		public List<Inventory> getInventories() {
+			final List<Inventory> inventories = new ArrayList<Inventory>(chests.length);
+			Set<Location> doubleChests = null;
+
+			for (long key : chests) {
+				final int x = BlockKey.unpackX(key);
+				final int z = BlockKey.unpackZ(key);
+				if (!world.isChunkLoaded(x >> 4, z >> 4)) {
+					continue;
+				}
+				final Block block = world.getBlockAt(x, BlockKey.unpackY(key), z);
+				if (!isChest(block.getType())) {
+					continue;
+				}
+				final BlockState state = block.getState();
+				if (!(state instanceof Chest)) {
+					continue;
+				}
+
+				final Inventory inventory = ((Chest) state).getInventory();
+				final InventoryHolder holder = inventory.getHolder();
+				if (holder instanceof DoubleChest) {
+					if (doubleChests == null) {
+						doubleChests = new HashSet<Location>();
+					}
+					if (!doubleChests.add(((DoubleChest) holder).getLocation())) {
+						continue;
+					}
+				}
+				inventories.add(inventory);
+			}
+			return inventories;
+		}
+	}
+
+	/**
+	 * Stations and chest positions of a single world.
+	 */
+	private static final class WorldStations {
+		/**
+		 * Stations keyed by the packed coordinates of their trigger block
+		 */
+		private final Map<Long, Station> stations = new HashMap<Long, Station>();
+
+		/**
+		 * Packed coordinates of the chests in each loaded chunk
+		 */
+		private final Map<Long, long[]> chests = new HashMap<Long, long[]>();
+	}
+
+	/**
+	 * Construct a new StationIndex.
+	 * @param plugin Plug-in used to schedule deferred rescans
+	 * @param loadTrigger Material which triggers chest load behavior
+	 * @param unloadTrigger Material which triggers chest unload behavior
+	 */
+	public StationIndex(final Plugin plugin, final Material loadTrigger, final Material unloadTrigger) {
+		this.plugin = plugin;
+		this.loadTrigger = loadTrigger;
+		this.unloadTrigger = unloadTrigger;
+	}
+
+	/**
+	 * Return the station a minecart is passing over.
+	 * @param block Block the minecart entered
+	 * @return the station whose trigger is below the block, or null
+	 */
+	public Station lookup(final Block block) {
+		final WorldStations world = worlds.get(block.getWorld().getUID());
+		final long key = BlockKey.pack(block.getX(), block.getY() - 1, block.getZ());
+		Station station = world == null || world.stations.isEmpty() ? null : world.stations.get(key);
+
+		// A trigger moved or destroyed without an event is forgotten here
+		if (station != null) {
+			final Block trigger = block.getRelative(BlockFace.DOWN);
+			if (trigger.getType() != (station.loadCart ? loadTrigger : unloadTrigger)) {
+				world.stations.remove(key);
+				markDirty(trigger);
+				station = null;
+			}
+		}
+
+		if (station == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return station;
+	}
+
+	/**
+	 * Index every chunk which is already loaded.
+	 * @param world World to index
+	 */
+	public void indexWorld(final World world) {
+		for (Chunk chunk : world.getLoadedChunks()) {
+			indexChunk(chunk);
+		}
+	}
+
+	/**
+	 * Find the stations around the chests of a newly loaded chunk,
+	 * including stations in neighboring chunks which could not be
+	 * completed before this chunk was loaded.
+	 * @param chunk Chunk to index
+	 */
+	public void indexChunk(final Chunk chunk) {
+		final World world = chunk.getWorld();
+		final WorldStations stations = getWorldStations(world);
+
+		final List<Long> found = new ArrayList<Long>();
+		for (BlockState state : chunk.getTileEntities()) {
+			if (state instanceof Chest) {
+				found.add(BlockKey.pack(state.getX(), state.getY(), state.getZ()));
+			}
+		}
+
+		final long[] chests = new long[found.size()];
+		for (int i = 0; i < chests.length; i++) {
+			chests[i] = found.get(i);
+		}
+		if (chests.length == 0) {
+			stations.chests.remove(BlockKey.column(chunk.getX(), chunk.getZ()));
+		} else {
+			stations.chests.put(BlockKey.column(chunk.getX(), chunk.getZ()), chests);
+		}
+
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				// Chests only serve triggers beside them, never diagonally
+				if (dx != 0 && dz != 0) {
+					continue;
+				}
+				final long[] around = stations.chests.get(BlockKey.column(chunk.getX() + dx, chunk.getZ() + dz));
+				if (around != null) {
+					checkAroundChests(world, stations, around);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the stations which use the chests of an unloaded chunk.
+	 * Stations whose chests are all in other chunks are kept.
+	 * @param chunk Chunk being unloaded
+	 */
+	public void unloadChunk(final Chunk chunk) {
+		final WorldStations stations = worlds.get(chunk.getWorld().getUID());
+		if (stations == null) {
+			return;
+		}
+
+		final long[] chests = stations.chests.remove(BlockKey.column(chunk.getX(), chunk.getZ()));
+		if (chests == null) {
+			return;
+		}
+
+		for (long chest : chests) {
+			final int x = BlockKey.unpackX(chest);
+			final int y = BlockKey.unpackY(chest);
+			final int z = BlockKey.unpackZ(chest);
+			for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				stations.stations.remove(BlockKey.pack(x + d.getModX(), y, z + d.getModZ()));
+			}
+		}
+	}
+
+	/**
+	 * Schedule a changed block and its neighbors to be checked again.
+	 * The check happens on the next tick so that the change has been
+	 * applied to the world by then.
+	 * @param block Trigger or chest block which changed
+	 */
+	public void markDirty(final Block block) {
+		if (dirtyBlocks.isEmpty()) {
+			plugin.getServer().getScheduler().runTask(plugin, rescanTask);
+		}
+		dirtyBlocks.add(block);
+	}
+
+	/**
+	 * Determine if a material is relevant to stations.
+	 * @param material Material to check
+	 * @return true for trigger materials and chests
+	 */
+	public boolean isStationMaterial(final Material material) {
+		return material == loadTrigger || material == unloadTrigger || isChest(material);
+	}
+
+	/**
+	 * Return the number of stations across all worlds.
+	 * @return the number of indexed stations
+	 */
+	public int size() {
+		int size = 0;
+		for (WorldStations stations : worlds.values()) {
+			size += stations.stations.size();
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	private void rescanDirtyBlocks() {
+		for (Block block : dirtyBlocks) {
+			final World world = block.getWorld();
+			if (!world.isChunkLoaded(block.getX() >> 4, block.getZ() >> 4)) {
+				continue;
+			}
+
+			final WorldStations stations = getWorldStations(world);
+			updateChest(stations, block);
+
+			checkTrigger(world, stations, block.getX(), block.getY(), block.getZ());
+			for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				checkTrigger(world, stations, block.getX() + d.getModX(), block.getY(), block.getZ() + d.getModZ());
+			}
+		}
+		dirtyBlocks.clear();
+	}
+
+	/**
+	 * Keep the chest positions of a chunk in step with a changed block.
+	 */
+	private static void updateChest(final WorldStations stations, final Block block) {
+		final boolean isChest = isChest(block.getType());
+		final Long column = BlockKey.column(block.getX() >> 4, block.getZ() >> 4);
+		final long key = BlockKey.pack(block);
+		final long[] chests = stations.chests.get(column);
+
+		int index = -1;
+		if (chests != null) {
+			for (int i = 0; i < chests.length; i++) {
+				if (chests[i] == key) {
+					index = i;
+					break;
+				}
+			}
+		}
+
+		if (isChest && index < 0) {
+			final long[] grown = new long[chests == null ? 1 : chests.length + 1];
+			if (chests != null) {
+				System.arraycopy(chests, 0, grown, 0, chests.length);
+			}
+			grown[grown.length - 1] = key;
+			stations.chests.put(column, grown);
+		} else if (!isChest && index >= 0) {
+			if (chests.length == 1) {
+				stations.chests.remove(column);
+			} else {
+				final long[] shrunk = new long[chests.length - 1];
+				System.arraycopy(chests, 0, shrunk, 0, index);
+				System.arraycopy(chests, index + 1, shrunk, index, shrunk.length - index);
+				stations.chests.put(column, shrunk);
+			}
+		}
+	}
+
+	private void checkAroundChests(final World world, final WorldStations stations, final long[] chests) {
+		for (long chest : chests) {
+			final int x = BlockKey.unpackX(chest);
+			final int y = BlockKey.unpackY(chest);
+			final int z = BlockKey.unpackZ(chest);
+			for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				checkTrigger(world, stations, x + d.getModX(), y, z + d.getModZ());
+			}
+		}
+	}
+
+	/**
+	 * Index or forget the station at a position. Blocks in chunks which
+	 * are not loaded are never read, so that indexing cannot load chunks.
+	 */
+	private void checkTrigger(final World world, final WorldStations stations, final int x, final int y, final int z) {
+		if (!world.isChunkLoaded(x >> 4, z >> 4)) {
+			return;
+		}
+		final Long key = BlockKey.pack(x, y, z);
+
+		final Material type = world.getBlockAt(x, y, z).getType();
+		if (type != loadTrigger && type != unloadTrigger) {
+			stations.stations.remove(key);
+			return;
+		}
+
+		final List<Long> chests = new ArrayList<Long>(4);
+		for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final int nx = x + d.getModX();
+			final int nz = z + d.getModZ();
+			if (world.isChunkLoaded(nx >> 4, nz >> 4) && isChest(world.getBlockAt(nx, y, nz).getType())) {
+				chests.add(BlockKey.pack(nx, y, nz));
+			}
+		}
+
+		if (chests.isEmpty()) {
+			stations.stations.remove(key);
+		} else {
+			final long[] positions = new long[chests.size()];
+			for (int i = 0; i < positions.length; i++) {
+				positions[i] = chests.get(i);
+			}
+			stations.stations.put(key, new Station(type == loadTrigger, world, positions));
+		}
+	}
+
+	private static boolean isChest(final Material material) {
+		return material == Material.CHEST || material == Material.TRAPPED_CHEST;
+	}
+
+	private WorldStations getWorldStations(final World world) {
+		final UUID id = world.getUID();
+		WorldStations stations = worlds.get(id);
+		if (stations == null) {
+			stations = new WorldStations();
+			worlds.put(id, stations);
+		}
+		return stations;
+	}
+}
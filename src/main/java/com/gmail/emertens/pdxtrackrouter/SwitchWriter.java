@@ -0,0 +1,139 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.material.MaterialData;
+import org.bukkit.material.Rails;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * This class collects the junction switches requested during a tick and
+ * applies them together at the start of the next tick. Most carts find
+ * the rail already facing the way they want to go, so requests which
+ * would not change the rail are dropped without touching the block, and
+ * repeated requests for the same rail within a tick are coalesced so
+ * that only the last one is written.
+ *
+ * Switches are written without physics, which would otherwise update
+ * every neighboring block of the junction. Junctions beside the switched
+ * rail are dropped from the junction cache instead, since their shape
+ * depends on the rails around them.
+ * @author Eric Mertens
+ */
+public final class SwitchWriter implements Runnable {
+
+	private final Plugin plugin;
+	private final JunctionCache junctionCache;
+	private final TickBlockCache tickCache;
+	private final Map<Block, BlockFace> pending = new LinkedHashMap<Block, BlockFace>();
+
+	private boolean scheduled = false;
+	private int tickApplied = 0;
+	private int tickSuppressed = 0;
+	private int lastTickApplied = 0;
+	private int lastTickSuppressed = 0;
+	private long applied = 0;
+	private long suppressed = 0;
+
+	/**
+	 * Construct a new SwitchWriter.
+	 * @param plugin Plug-in used to schedule the writes
+	 * @param junctionCache Cache to keep consistent with written rails
+	 * @param tickCache Block reads to keep consistent with written rails
+	 */
+	public SwitchWriter(final Plugin plugin, final JunctionCache junctionCache, final TickBlockCache tickCache) {
+		this.plugin = plugin;
+		this.junctionCache = junctionCache;
+		this.tickCache = tickCache;
+	}
+
+	/**
+	 * Request that a rail be set to a direction before carts next move.
+	 * @param block Rail block of a junction
+	 * @param direction New direction of the rail
+	 */
+	public void request(final Block block, final BlockFace direction) {
+		if (!scheduled) {
+			plugin.getServer().getScheduler().runTask(plugin, this);
+			scheduled = true;
+		}
+
+		final BlockFace queued = pending.get(block);
+		if (queued != null) {
+			// The earlier request for this tick is superseded
+			tickSuppressed++;
+			if (queued != direction) {
+				pending.put(block, direction);
+			}
+			return;
+		}
+
+		if (BlockProbeUtils.railDirection(tickCache.probe(block.getWorld()),
+				block.getX(), block.getY(), block.getZ()) == direction) {
+			tickSuppressed++;
+			return;
+		}
+		pending.put(block, direction);
+	}
+
+	/**
+	 * Apply the pending switches and roll the per-tick counters over.
+	 */
+	@Override
+	public void run() {
+		scheduled = false;
+
+		for (Map.Entry<Block, BlockFace> entry : pending.entrySet()) {
+			final Block block = entry.getKey();
+			final BlockState state = block.getState();
+			final MaterialData data = state.getData();
+			if (!(data instanceof Rails) || ((Rails) data).getDirection() == entry.getValue()) {
+				tickSuppressed++;
+				continue;
+			}
+
+			((Rails) data).setDirection(entry.getValue(), false);
+			state.setData(data);
+			state.update(true, false);
+			junctionCache.invalidateAdjacent(block);
+			tickCache.invalidate(block);
+			tickApplied++;
+		}
+		pending.clear();
+
+		applied += tickApplied;
+		suppressed += tickSuppressed;
+		lastTickApplied = tickApplied;
+		lastTickSuppressed = tickSuppressed;
+		tickApplied = 0;
+		tickSuppressed = 0;
+	}
+
+	/**
+	 * Return the number of switches written in the last tick with requests.
+	 * @return the number of rails changed
+	 */
+	public int getLastTickApplied() {
+		return lastTickApplied;
+	}
+
+	/**
+	 * Return the number of requests dropped in the last tick with requests.
+	 * @return the number of requests which changed nothing
+	 */
+	public int getLastTickSuppressed() {
+		return lastTickSuppressed;
+	}
+
+	public long getApplied() {
+		return applied;
+	}
+
+	public long getSuppressed() {
+		return suppressed;
+	}
+}
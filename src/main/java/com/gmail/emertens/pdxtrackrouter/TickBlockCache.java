@@ -0,0 +1,184 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * This class remembers the blocks read from the live world during a
+ * single tick, so that the junction checks, rail following and chest
+ * transfers triggered by many minecart moves read each block only once.
+ * Types and data values are kept together in one int, and sign lines are
+ * kept so that their block state is only copied once. The block state
+ * is not copied at all when the cached type shows the block is not a
+ * sign, and both outcomes are counted.
+ *
+ * Everything is forgotten at the start of the next tick. Blocks changed
+ * by the plug-in or reported by block events are forgotten straight
+ * away, so at worst a change made by the server itself is seen one tick
+ * late.
+ * @author Eric Mertens
+ */
+public final class TickBlockCache implements Runnable {
+
+	private static final Material[] MATERIALS = Material.values();
+
+	/**
+	 * Marker for blocks known not to be signs
+	 */
+	private static final String[] NOT_A_SIGN = new String[0];
+
+	private final Plugin plugin;
+	private final Map<UUID, CachedProbe> worlds = new HashMap<UUID, CachedProbe>();
+
+	private boolean scheduled = false;
+	private long hits = 0;
+	private long misses = 0;
+	private long snapshots = 0;
+	private long snapshotsAvoided = 0;
+
+	/**
+	 * Probe of a single world reading through the cache.
+	 */
+	private final class CachedProbe implements BlockProbe {
+		private final WorldBlockProbe world;
+		private final Map<Long, Integer> blocks = new HashMap<Long, Integer>();
+		private final Map<Long, String[]> signs = new HashMap<Long, String[]>();
+
+		CachedProbe(final World world) {
+			this.world = new WorldBlockProbe(world);
+		}
+
+		@Override
+		public World getWorld() {
+			return world.getWorld();
+		}
+
+		@Override
+		public Material getType(final int x, final int y, final int z) {
+			return MATERIALS[read(x, y, z) >>> 8];
+		}
+
+		@Override
+		public byte getData(final int x, final int y, final int z) {
+			return (byte) read(x, y, z);
+		}
+
+		@Override
+		public String[] getSignLines(final int x, final int y, final int z) {
+			final Long key = BlockKey.pack(x, y, z);
+			String[] lines = signs.get(key);
+			if (lines == null) {
+				misses++;
+				if (BlockProbeUtils.isSign(getType(x, y, z))) {
+					snapshots++;
+					lines = world.getSignLines(x, y, z);
+				} else {
+					snapshotsAvoided++;
+				}
+				signs.put(key, lines == null ? NOT_A_SIGN : lines);
+			} else {
+				hits++;
+			}
+			return lines == NOT_A_SIGN ? null : lines;
+		}
+
+		private int read(final int x, final int y, final int z) {
+			final Long key = BlockKey.pack(x, y, z);
+			final Integer cached = blocks.get(key);
+			if (cached != null) {
+				hits++;
+				return cached;
+			}
+
+			misses++;
+			final int packed = world.getType(x, y, z).ordinal() << 8 | world.getData(x, y, z) & 0xFF;
+			blocks.put(key, packed);
+			return packed;
+		}
+
+		void invalidate(final long key) {
+			blocks.remove(key);
+			signs.remove(key);
+		}
+	}
+
+	/**
+	 * Construct a new TickBlockCache.
+	 * @param plugin Plug-in used to schedule the end of tick clearing
+	 */
+	public TickBlockCache(final Plugin plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Return a probe reading a world through the cache. Probes must only
+	 * be used on the main thread and should not be kept past the tick.
+	 * @param world World to read
+	 * @return the cached probe for that world
+	 */
+	public BlockProbe probe(final World world) {
+		if (!scheduled) {
+			plugin.getServer().getScheduler().runTask(plugin, this);
+			scheduled = true;
+		}
+
+		final UUID id = world.getUID();
+		CachedProbe probe = worlds.get(id);
+		if (probe == null) {
+			probe = new CachedProbe(world);
+			worlds.put(id, probe);
+		}
+		return probe;
+	}
+
+	/**
+	 * Forget what was read about a block.
+	 * @param block Block which has changed
+	 */
+	public void invalidate(final Block block) {
+		final CachedProbe probe = worlds.get(block.getWorld().getUID());
+		if (probe != null) {
+			probe.invalidate(BlockKey.pack(block));
+		}
+	}
+
+	/**
+	 * Forget everything at the end of the tick.
+	 */
+	@Override
+	public void run() {
+		scheduled = false;
+		worlds.clear();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the number of block states copied to read sign text.
+	 * @return the number of snapshots taken
+	 */
+	public long getSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * Return the number of sign reads answered from the block type
+	 * without copying a block state.
+	 * @return the number of snapshots avoided
+	 */
+	public long getSnapshotsAvoided() {
+		return snapshotsAvoided;
+	}
+}
@@ -0,0 +1,246 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * This class holds junctions whose routing lines come from a data file
+ * instead of a sign stack. Each world has its own file named after the
+ * world, mapping the coordinates of a junction's rail block to its
+ * routing lines in the order they would appear on signs:
+ *
+ * <pre>
+ * "120,64,-35":
+ * - "mine:n"
+ * - "default:e"
+ * </pre>
+ *
+ * The lines are compiled when the file is loaded, and a file which has
+ * been modified is loaded again by {@link #poll(Iterable)}. A file which
+ * cannot be read leaves the junctions loaded before in place.
+ *
+ * There is one set of virtual junctions per server, available through
+ * {@link #global()} so that {@link Junction#makeJunction} can consult it
+ * from any thread.
+ * @author Eric Mertens
+ */
+public final class VirtualJunctions {
+
+	private static final VirtualJunctions GLOBAL = new VirtualJunctions();
+
+	/**
+	 * Tables and chunk index of one world, replaced whole on reload
+	 */
+	private static final class WorldJunctions {
+		private final Map<Long, RoutingTable> tables;
+		private final Map<Long, long[]> chunks;
+		private final long modified;
+
+		WorldJunctions(final Map<Long, RoutingTable> tables, final long modified) {
+			this.tables = tables;
+			this.modified = modified;
+
+			final Map<Long, List<Long>> byChunk = new HashMap<Long, List<Long>>();
+			for (Long key : tables.keySet()) {
+				final Long chunk = BlockKey.column(BlockKey.unpackX(key) >> 4, BlockKey.unpackZ(key) >> 4);
+				List<Long> keys = byChunk.get(chunk);
+				if (keys == null) {
+					keys = new ArrayList<Long>();
+					byChunk.put(chunk, keys);
+				}
+				keys.add(key);
+			}
+
+			chunks = new HashMap<Long, long[]>();
+			for (Map.Entry<Long, List<Long>> entry : byChunk.entrySet()) {
+				final long[] keys = new long[entry.getValue().size()];
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = entry.getValue().get(i);
+				}
+				chunks.put(entry.getKey(), keys);
+			}
+		}
+	}
+
+	private static final long[] NO_KEYS = new long[0];
+
+	private final Map<UUID, WorldJunctions> worlds = new ConcurrentHashMap<UUID, WorldJunctions>();
+
+	private File folder = null;
+	private String defaultDestination = null;
+	private Logger logger = null;
+	private long reloads = 0;
+
+	/**
+	 * Return the virtual junctions shared by the whole server.
+	 * @return the global virtual junctions
+	 */
+	public static VirtualJunctions global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Set where the data files are kept and how they are compiled, and
+	 * forget every junction loaded before.
+	 * @param folder Folder holding one file per world
+	 * @param defaultDestination Normalized name of the default destination
+	 * @param logger Logger to report unreadable files to
+	 */
+	public void configure(final File folder, final String defaultDestination, final Logger logger) {
+		this.folder = folder;
+		this.defaultDestination = defaultDestination;
+		this.logger = logger;
+		worlds.clear();
+	}
+
+	/**
+	 * Return the routing table of a virtual junction.
+	 * @param world World of the junction
+	 * @param key Packed coordinates of the junction's rail block
+	 * @return the routing table, or null if the block is not a virtual junction
+	 */
+	public RoutingTable lookup(final World world, final long key) {
+		final WorldJunctions junctions = worlds.get(world.getUID());
+		return junctions == null ? null : junctions.tables.get(key);
+	}
+
+	/**
+	 * Return the virtual junctions inside a chunk.
+	 * @param world World of the chunk
+	 * @param chunkX Chunk X coordinate
+	 * @param chunkZ Chunk Z coordinate
+	 * @return packed coordinates of the junction rail blocks
+	 */
+	public long[] inChunk(final World world, final int chunkX, final int chunkZ) {
+		final WorldJunctions junctions = worlds.get(world.getUID());
+		if (junctions == null) {
+			return NO_KEYS;
+		}
+		final long[] keys = junctions.chunks.get(BlockKey.column(chunkX, chunkZ));
+		return keys == null ? NO_KEYS : keys;
+	}
+
+	/**
+	 * Load the files of worlds which have changed since they were last
+	 * loaded. This must be called on the main thread.
+	 * @param worlds Worlds to check
+	 * @return the worlds whose junctions changed along with the packed
+	 * coordinates of every junction added, removed or changed
+	 */
+	public Map<World, Set<Long>> poll(final Iterable<World> worlds) {
+		final Map<World, Set<Long>> changes = new HashMap<World, Set<Long>>();
+		if (folder == null) {
+			return changes;
+		}
+
+		for (World world : worlds) {
+			final WorldJunctions before = this.worlds.get(world.getUID());
+			final File file = new File(folder, world.getName() + ".yml");
+			final long modified = file.lastModified();
+
+			if (before == null ? modified == 0 : modified == before.modified) {
+				continue;
+			}
+
+			final WorldJunctions after;
+			if (modified == 0) {
+				after = null;
+			} else {
+				after = load(file, modified);
+				if (after == null) {
+					continue;
+				}
+			}
+
+			final Set<Long> changed = new HashSet<Long>();
+			final Map<Long, RoutingTable> oldTables = before == null
+					? Collections.<Long, RoutingTable>emptyMap() : before.tables;
+			final Map<Long, RoutingTable> newTables = after == null
+					? Collections.<Long, RoutingTable>emptyMap() : after.tables;
+			for (Map.Entry<Long, RoutingTable> entry : oldTables.entrySet()) {
+				final RoutingTable table = newTables.get(entry.getKey());
+				if (table == null || !table.getLines().equals(entry.getValue().getLines())) {
+					changed.add(entry.getKey());
+				}
+			}
+			for (Long key : newTables.keySet()) {
+				if (!oldTables.containsKey(key)) {
+					changed.add(key);
+				}
+			}
+
+			if (after == null) {
+				this.worlds.remove(world.getUID());
+			} else {
+				this.worlds.put(world.getUID(), after);
+			}
+			reloads++;
+
+			if (!changed.isEmpty()) {
+				changes.put(world, changed);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Return the number of virtual junctions across all worlds.
+	 * @return the number of junctions loaded
+	 */
+	public int size() {
+		int size = 0;
+		for (WorldJunctions junctions : worlds.values()) {
+			size += junctions.tables.size();
+		}
+		return size;
+	}
+
+	public long getReloads() {
+		return reloads;
+	}
+
+	private WorldJunctions load(final File file, final long modified) {
+		final YamlConfiguration config = new YamlConfiguration();
+		try {
+			config.load(file);
+		} catch (IOException e) {
+			logger.warning("Unable to read virtual junctions from " + file + ": " + e.getMessage());
+			return null;
+		} catch (InvalidConfigurationException e) {
+			logger.warning("Unable to parse virtual junctions in " + file + ": " + e.getMessage());
+			return null;
+		}
+
+		final Map<Long, RoutingTable> tables = new HashMap<Long, RoutingTable>();
+		for (String position : config.getKeys(false)) {
+			final String[] parts = position.split(",");
+			if (parts.length != 3) {
+				logger.warning("Ignoring virtual junction with bad position " + position + " in " + file);
+				continue;
+			}
+
+			try {
+				final long key = BlockKey.pack(Integer.parseInt(parts[0].trim()),
+						Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+				tables.put(key, RoutingTable.compile(config.getStringList(position), defaultDestination));
+			} catch (NumberFormatException e) {
+				logger.warning("Ignoring virtual junction with bad position " + position + " in " + file);
+			}
+		}
+		return new WorldJunctions(tables, modified);
+	}
+}
@@ -0,0 +1,56 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+
+/**
+ * This class reads blocks directly from a loaded world. It must only be
+ * used on the main thread. Only sign text requires a copy of the block
+ * state, and none is taken for blocks which are not signs.
+ * @author Eric Mertens
+ */
+public final class WorldBlockProbe implements BlockProbe {
+
+	private final World world;
+
+	/**
+	 * Construct a new WorldBlockProbe.
+	 * @param world World to read
+	 */
+	public WorldBlockProbe(final World world) {
+		this.world = world;
+	}
+
+	@Override
+	public World getWorld() {
+		return world;
+	}
+
+	@Override
+	public Material getType(final int x, final int y, final int z) {
+		return world.getBlockAt(x, y, z).getType();
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public byte getData(final int x, final int y, final int z) {
+		return world.getBlockAt(x, y, z).getData();
+	}
+
+	@Override
+	public String[] getSignLines(final int x, final int y, final int z) {
+		final Block block = world.getBlockAt(x, y, z);
+		if (!BlockProbeUtils.isSign(block.getType())) {
+			return null;
+		}
+
+		final BlockState state = block.getState();
+		if (state instanceof Sign) {
+			return ((Sign) state).getLines();
+		}
+		return null;
+	}
+}
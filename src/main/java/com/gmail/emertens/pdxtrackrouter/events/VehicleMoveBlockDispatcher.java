@@ -0,0 +1,43 @@
+package com.gmail.emertens.pdxtrackrouter.events;
+
+import java.util.Arrays;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Minecart;
+
+/**
+ * This class delivers minecart block moves to the plug-in's own
+ * components without going through Bukkit's event system. Handlers are
+ * kept in a plain array which is replaced on registration, so dispatch
+ * is a simple loop.
+ * @author Eric Mertens
+ *
+ */
+public final class VehicleMoveBlockDispatcher {
+
+	private VehicleMoveBlockHandler[] handlers = new VehicleMoveBlockHandler[0];
+
+	/**
+	 * Add a handler to be called on every minecart block move. Handlers
+	 * are called in registration order.
+	 * @param handler Handler to add
+	 */
+	public void register(final VehicleMoveBlockHandler handler) {
+		final VehicleMoveBlockHandler[] newHandlers = Arrays.copyOf(handlers, handlers.length + 1);
+		newHandlers[handlers.length] = handler;
+		handlers = newHandlers;
+	}
+
+	/**
+	 * Deliver a minecart block move to every registered handler.
+	 * @param block Block the minecart moved into
+	 * @param direction Direction the minecart is traveling
+	 * @param minecart Minecart which moved
+	 */
+	public void dispatch(final Block block, final BlockFace direction, final Minecart minecart) {
+		for (VehicleMoveBlockHandler handler : handlers) {
+			handler.onVehicleMoveBlock(block, direction, minecart);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.gmail.emertens.pdxtrackrouter.events;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Minecart;
+
+/**
+ * Implemented by plug-in components which want to be told when a
+ * minecart moves into a new block.
+ * @author Eric Mertens
+ *
+ */
+public interface VehicleMoveBlockHandler {
+
+	/**
+	 * Called when a minecart moves into a new block.
+	 * @param block Block the minecart moved into
+	 * @param direction Direction the minecart is traveling
+	 * @param minecart Minecart which moved
+	 */
+	void onVehicleMoveBlock(Block block, BlockFace direction, Minecart minecart);
+}
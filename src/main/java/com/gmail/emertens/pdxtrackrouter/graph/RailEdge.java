@@ -0,0 +1,74 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import org.bukkit.block.BlockFace;
+
+/**
+ * This class represents a directed stretch of track between two nodes
+ * of the rail network which contains no other nodes.
+ * @author Eric Mertens
+ */
+public final class RailEdge {
+	private final long from;
+	private final BlockFace exit;
+	private final long to;
+	private final BlockFace arrival;
+	private final long[] path;
+	private final int slopes;
+
+	/**
+	 * Construct a new RailEdge.
+	 * @param from Packed coordinates of the node the edge leaves
+	 * @param exit Direction the edge leaves its starting node
+	 * @param to Packed coordinates of the node the edge reaches
+	 * @param arrival Direction of travel when reaching the end node
+	 * @param path Packed coordinates of the rail blocks traveled in order,
+	 * excluding the starting node
+	 * @param slopes Number of sloped rail blocks traveled
+	 */
+	public RailEdge(final long from, final BlockFace exit, final long to,
+			final BlockFace arrival, final long[] path, final int slopes) {
+		this.from = from;
+		this.exit = exit;
+		this.to = to;
+		this.arrival = arrival;
+		this.path = path;
+		this.slopes = slopes;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	public BlockFace getExit() {
+		return exit;
+	}
+
+	public long getTo() {
+		return to;
+	}
+
+	public BlockFace getArrival() {
+		return arrival;
+	}
+
+	/**
+	 * Returns the number of rail blocks traveled, including the end node.
+	 * @return the length of the edge
+	 */
+	public int getLength() {
+		return path.length;
+	}
+
+	/**
+	 * Returns the rail blocks traveled by this edge. The array is shared
+	 * and must not be modified.
+	 * @return packed coordinates of the rail blocks in order of travel
+	 */
+	long[] getPath() {
+		return path;
+	}
+
+	public int getSlopes() {
+		return slopes;
+	}
+}
@@ -0,0 +1,244 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.block.BlockFace;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+
+/**
+ * This class holds the rail network of a single world as a graph whose
+ * nodes are junctions, destinations and dead ends and whose edges are
+ * the track segments connecting them.
+ *
+ * Every rail block is indexed with the edges passing through it so that
+ * a change to a block can be traced to the segments it affects.
+ * @author Eric Mertens
+ */
+public final class RailGraph {
+
+	/**
+	 * Number of recent changes whose nodes are remembered, a power of two
+	 */
+	private static final int JOURNAL_SIZE = 4096;
+
+	private final Map<Long, RailNode> nodes = new HashMap<Long, RailNode>();
+	private final Map<Long, List<RailEdge>> edgesByBlock = new HashMap<Long, List<RailEdge>>();
+	private int edgeCount = 0;
+	private boolean modified = false;
+	private int version = 0;
+
+	/**
+	 * Node whose type, lines or exits changed at each recent version,
+	 * indexed by the version modulo the journal size
+	 */
+	private final long[] journal = new long[JOURNAL_SIZE];
+
+	/**
+	 * Return the node at the given packed coordinates.
+	 * @param key Packed block coordinates
+	 * @return the node or null if there is none
+	 */
+	public RailNode getNode(final long key) {
+		return nodes.get(key);
+	}
+
+	/**
+	 * Add a node to the graph, replacing any node at the same position
+	 * along with its outgoing edges.
+	 * @param node Node to add
+	 */
+	public void addNode(final RailNode node) {
+		removeNode(node.getKey());
+		nodes.put(node.getKey(), node);
+		changed(node.getKey());
+	}
+
+	/**
+	 * Replace the routing lines of a junction node, keeping its edges.
+	 * @param key Packed coordinates of the junction
+	 * @param lines Normalized routing lines
+	 * @return true if a junction node was changed
+	 */
+	public boolean updateLines(final long key, final List<String> lines) {
+		final RailNode old = nodes.get(key);
+		if (old == null || old.getType() != RailNode.Type.JUNCTION || old.getLines().equals(lines)) {
+			return false;
+		}
+
+		final RailNode node = RailNode.junction(key, old.getOpenSide(), new ArrayList<String>(lines));
+		for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			node.setExit(direction, old.getExit(direction));
+		}
+		nodes.put(key, node);
+		changed(key);
+		return true;
+	}
+
+	/**
+	 * Remove a node from the graph along with its outgoing edges. Edges
+	 * arriving at the node are left in place.
+	 * @param key Packed coordinates of the node
+	 * @return the removed node or null if there was none
+	 */
+	public RailNode removeNode(final long key) {
+		final RailNode node = nodes.remove(key);
+		if (node != null) {
+			for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				final RailEdge edge = node.getExit(direction);
+				if (edge != null) {
+					node.setExit(direction, null);
+					unindex(edge);
+					edgeCount--;
+				}
+			}
+			changed(key);
+		}
+		return node;
+	}
+
+	/**
+	 * Add an edge to the graph, replacing the edge previously leaving
+	 * its starting node in the same direction.
+	 * @param edge Edge to add
+	 */
+	public void addEdge(final RailEdge edge) {
+		final RailNode node = nodes.get(edge.getFrom());
+		final RailEdge old = node.getExit(edge.getExit());
+		if (old == null) {
+			edgeCount++;
+		} else {
+			unindex(old);
+		}
+		node.setExit(edge.getExit(), edge);
+		index(edge);
+		changed(edge.getFrom());
+	}
+
+	/**
+	 * Remove an edge from the graph if it is still present.
+	 * @param edge Edge to remove
+	 * @return true if the edge was removed
+	 */
+	public boolean removeEdge(final RailEdge edge) {
+		final RailNode node = nodes.get(edge.getFrom());
+		if (node == null || node.getExit(edge.getExit()) != edge) {
+			return false;
+		}
+		node.setExit(edge.getExit(), null);
+		unindex(edge);
+		edgeCount--;
+		changed(edge.getFrom());
+		return true;
+	}
+
+	/**
+	 * Return the edges whose track passes through a block, including
+	 * the edges ending at a node on that block.
+	 * @param key Packed block coordinates
+	 * @return an unmodifiable list of edges
+	 */
+	public List<RailEdge> getEdgesThrough(final long key) {
+		final List<RailEdge> edges = edgesByBlock.get(key);
+		if (edges == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(edges);
+	}
+
+	/**
+	 * Return every node in the graph.
+	 * @return an unmodifiable view of the nodes
+	 */
+	public Collection<RailNode> getNodes() {
+		return Collections.unmodifiableCollection(nodes.values());
+	}
+
+	public int getNodeCount() {
+		return nodes.size();
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * Determine if the graph has changed since it was last marked saved.
+	 * @return true if the graph has unsaved changes
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Record that the graph matches its stored copy.
+	 */
+	public void markSaved() {
+		modified = false;
+	}
+
+	/**
+	 * Return a number which changes whenever the graph changes, so that
+	 * results derived from the graph can tell when they are stale.
+	 * @return the current version of the graph
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Collect the nodes changed since an earlier version of the graph,
+	 * including nodes which were removed.
+	 * @param since Version the caller last saw
+	 * @param result Set to add the packed coordinates of the nodes to
+	 * @return false if too many changes have been made since that version
+	 * for them to be listed
+	 */
+	boolean collectChangedNodes(final int since, final Set<Long> result) {
+		final int count = version - since;
+		if (count < 0 || count > JOURNAL_SIZE) {
+			return false;
+		}
+		for (int i = 1; i <= count; i++) {
+			result.add(journal[(since + i) & (JOURNAL_SIZE - 1)]);
+		}
+		return true;
+	}
+
+	private void changed(final long node) {
+		modified = true;
+		version++;
+		journal[version & (JOURNAL_SIZE - 1)] = node;
+	}
+
+	private void index(final RailEdge edge) {
+		for (long key : edge.getPath()) {
+			List<RailEdge> edges = edgesByBlock.get(key);
+			if (edges == null) {
+				edges = new ArrayList<RailEdge>(2);
+				edgesByBlock.put(key, edges);
+			}
+			if (!edges.contains(edge)) {
+				edges.add(edge);
+			}
+		}
+	}
+
+	private void unindex(final RailEdge edge) {
+		for (long key : edge.getPath()) {
+			final List<RailEdge> edges = edgesByBlock.get(key);
+			if (edges != null) {
+				edges.remove(edge);
+				if (edges.isEmpty()) {
+					edgesByBlock.remove(key);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.plugin.Plugin;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+
+/**
+ * This class discovers the rail network and keeps a {@link RailGraph} in
+ * step with it. Every exit of every node found is walked once, so each
+ * track segment is only traversed in each direction a single time.
+ *
+ * When blocks change only the edges whose track no longer follows the
+ * recorded path, and the nodes whose signs changed, are walked again.
+ * Like {@link com.gmail.emertens.pdxtrackrouter.RailSearch} the work is
+ * broken up into several runs to avoid holding the main thread.
+ * @author Eric Mertens
+ */
+public final class RailGraphBuilder {
+
+	private static final int BLOCKS_PER_ITERATION = 2000;
+	private static final int ITERATION_TICK_DELAY = 1;
+
+	private final Plugin plugin;
+	private final RailGraph graph;
+	private final World world;
+	private final String defaultDestination;
+	private final Queue<SegmentWalker> pending = new LinkedList<SegmentWalker>();
+	private final Set<Walk> queued = new HashSet<Walk>();
+	private final Set<Long> orphanCandidates = new HashSet<Long>();
+	private final List<Runnable> completions = new ArrayList<Runnable>();
+
+	private SegmentWalker current = null;
+	private boolean running = false;
+	private int segments = 0;
+	private int repairs = 0;
+
+	/**
+	 * Identifies a walk by its starting block and direction.
+	 */
+	private static final class Walk {
+		private final long origin;
+		private final BlockFace exit;
+
+		Walk(final long origin, final BlockFace exit) {
+			this.origin = origin;
+			this.exit = exit;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Walk)) {
+				return false;
+			}
+			final Walk o = (Walk) other;
+			return origin == o.origin && exit == o.exit;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (origin ^ (origin >>> 32)) * 31 + exit.hashCode();
+		}
+	}
+
+	/**
+	 * Construct a new RailGraphBuilder.
+	 * @param plugin Plug-in used to schedule delayed computations with
+	 * @param graph Graph to maintain
+	 * @param world World containing the network
+	 * @param defaultDestination Normalized name of the default destination
+	 */
+	public RailGraphBuilder(final Plugin plugin, final RailGraph graph, final World world,
+			final String defaultDestination) {
+		this.plugin = plugin;
+		this.graph = graph;
+		this.world = world;
+		this.defaultDestination = defaultDestination;
+	}
+
+	/**
+	 * Start discovering the network from a block. If the block is not a
+	 * node itself the track is followed in all cardinal directions until
+	 * the first nodes are found.
+	 * @param block Starting block
+	 * @param onComplete Task to run once there is nothing left to walk
+	 */
+	public void start(final Block block, final Runnable onComplete) {
+		completions.add(onComplete);
+
+		final RailNode node = SegmentWalker.makeNode(block, defaultDestination);
+		if (node != null) {
+			if (graph.getNode(node.getKey()) == null) {
+				addNode(node, block);
+			}
+		} else {
+			for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				enqueue(block, direction);
+			}
+		}
+		resume();
+	}
+
+	/**
+	 * Bring the graph up to date after blocks have changed.
+	 * @param keys Packed coordinates of every block whose change could
+	 * affect the network: the changed blocks and the rails and signs
+	 * around them
+	 */
+	public void repair(final Set<Long> keys) {
+		// A walk in progress may already have passed the changed blocks
+		if (current != null && current.passesThrough(keys)) {
+			queued.remove(new Walk(BlockKey.pack(current.getOrigin()), current.getExit()));
+			enqueue(current.getOrigin(), current.getExit());
+			current = null;
+		}
+
+		for (Long key : keys) {
+			repairNode(key);
+		}
+
+		final Set<RailEdge> counted = new HashSet<RailEdge>();
+		for (Long key : keys) {
+			// Copy as edges are removed while checking
+			for (RailEdge edge : new ArrayList<RailEdge>(graph.getEdgesThrough(key))) {
+				if (!edgeStillValid(edge, key) || counted.add(edge) && !slopesStillValid(edge)) {
+					repairs++;
+					removeEdge(edge);
+					final RailNode origin = graph.getNode(edge.getFrom());
+					if (origin != null) {
+						enqueue(blockAt(origin.getKey()), edge.getExit());
+					}
+				}
+			}
+		}
+
+		resume();
+	}
+
+	/**
+	 * Determine if the builder has walks left to do.
+	 * @return true while walking
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Return the number of track segments walked so far.
+	 * @return the number of segments walked
+	 */
+	public int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Return the number of edges which had to be walked again because
+	 * of block changes.
+	 * @return the number of repaired edges
+	 */
+	public int getRepairs() {
+		return repairs;
+	}
+
+	/**
+	 * Compare a junction or destination node with the blocks around it
+	 * and replace it when its signs have changed. Dead ends and loops are
+	 * checked through the edges arriving at them, but their own exits
+	 * are walked again as the shape of their rail may have changed.
+	 */
+	private void repairNode(final long key) {
+		final RailNode old = graph.getNode(key);
+		if (old == null) {
+			return;
+		}
+
+		final Block block = blockAt(key);
+		switch (old.getType()) {
+		case JUNCTION:
+		case DESTINATION:
+			final RailNode node = SegmentWalker.makeNode(block, defaultDestination);
+			if (sameNode(old, node)) {
+				repairExits(old, block);
+				return;
+			}
+			repairs++;
+			removeNode(key);
+			if (node != null) {
+				addNode(node, block);
+			}
+			break;
+		default:
+			// Signs placed beside a dead end or loop turn it into a node
+			final RailNode replacement = SegmentWalker.makeNode(block, defaultDestination);
+			if (replacement != null) {
+				repairs++;
+				removeNode(key);
+				addNode(replacement, block);
+				rewalkArriving(key);
+				break;
+			}
+			for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				final RailEdge edge = old.getExit(direction);
+				if (edge != null) {
+					removeEdge(edge);
+				}
+			}
+			for (BlockFace exit : SegmentWalker.exitsOf(old, block)) {
+				enqueue(block, exit);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Walk the exits of a node again where its own rail no longer leads
+	 * onto the edge leaving it, such as a destination rail which was
+	 * turned into a curve.
+	 */
+	private void repairExits(final RailNode node, final Block block) {
+		final BlockFace[] exits = SegmentWalker.exitsOf(node, block);
+		for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final boolean isExit = Arrays.asList(exits).contains(direction);
+			final RailEdge edge = node.getExit(direction);
+			if (edge == null) {
+				if (isExit) {
+					enqueue(block, direction);
+				}
+			} else if (!isExit || !SegmentWalker.firstStepStillValid(edge, block)) {
+				repairs++;
+				removeEdge(edge);
+				if (isExit) {
+					enqueue(block, direction);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walk the edges arriving at a block again, as they counted it as
+	 * plain track when it was a dead end or loop.
+	 */
+	private void rewalkArriving(final long key) {
+		// Copy as edges are removed while checking
+		for (RailEdge edge : new ArrayList<RailEdge>(graph.getEdgesThrough(key))) {
+			if (edge.getTo() == key) {
+				removeEdge(edge);
+				enqueue(blockAt(edge.getFrom()), edge.getExit());
+			}
+		}
+	}
+
+	private boolean edgeStillValid(final RailEdge edge, final long key) {
+		final RailNode target = graph.getNode(edge.getTo());
+		if (target == null) {
+			return false;
+		}
+
+		final Block block = blockAt(key);
+		final long[] path = edge.getPath();
+		for (int i = 0; i < path.length; i++) {
+			if (path[i] == key
+					&& !SegmentWalker.stepStillValid(edge, target.getType(), i, block, defaultDestination)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check the slope count of an edge, which can change while every
+	 * step of its path stays the same.
+	 */
+	private boolean slopesStillValid(final RailEdge edge) {
+		final RailNode target = graph.getNode(edge.getTo());
+		return target != null && SegmentWalker.countSlopes(edge, target.getType(), world) == edge.getSlopes();
+	}
+
+	private static boolean sameNode(final RailNode a, final RailNode b) {
+		if (b == null || a.getType() != b.getType() || a.getOpenSide() != b.getOpenSide()) {
+			return false;
+		}
+		if (!a.getLines().equals(b.getLines())) {
+			return false;
+		}
+		return a.getDestination() == null
+				? b.getDestination() == null
+				: a.getDestination().equals(b.getDestination());
+	}
+
+	private void resume() {
+		if (!running) {
+			running = true;
+			yield();
+		}
+	}
+
+	private void step() {
+		for (int i = 0; i < BLOCKS_PER_ITERATION; i++) {
+			if (current == null) {
+				current = pending.poll();
+				if (current == null) {
+					complete();
+					return;
+				}
+			}
+
+			if (current.step(1)) {
+				finishWalk(current);
+				current = null;
+			}
+		}
+
+		yield();
+	}
+
+	private void complete() {
+		removeOrphans();
+		running = false;
+
+		final List<Runnable> tasks = new ArrayList<Runnable>(completions);
+		completions.clear();
+		for (Runnable task : tasks) {
+			task.run();
+		}
+	}
+
+	private void finishWalk(final SegmentWalker walker) {
+		segments++;
+		queued.remove(new Walk(BlockKey.pack(walker.getOrigin()), walker.getExit()));
+
+		final RailNode target = walker.getTarget();
+		if (target == null) {
+			return;
+		}
+
+		// Walks from the starting block do not leave a node
+		final RailNode origin = graph.getNode(BlockKey.pack(walker.getOrigin()));
+		if (origin == null && graph.getNode(target.getKey()) != null) {
+			return;
+		}
+
+		if (graph.getNode(target.getKey()) == null) {
+			addNode(target, blockAt(target.getKey()));
+		}
+
+		if (origin != null) {
+			final RailEdge old = origin.getExit(walker.getExit());
+			if (old != null) {
+				orphanCandidates.add(old.getTo());
+			}
+			graph.addEdge(walker.getEdge());
+		}
+	}
+
+	private void addNode(final RailNode node, final Block block) {
+		graph.addNode(node);
+		for (BlockFace exit : SegmentWalker.exitsOf(node, block)) {
+			enqueue(block, exit);
+		}
+	}
+
+	private void removeNode(final long key) {
+		final RailNode node = graph.getNode(key);
+		for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final RailEdge edge = node.getExit(direction);
+			if (edge != null) {
+				orphanCandidates.add(edge.getTo());
+			}
+		}
+		graph.removeNode(key);
+	}
+
+	private void removeEdge(final RailEdge edge) {
+		if (graph.removeEdge(edge)) {
+			orphanCandidates.add(edge.getTo());
+		}
+	}
+
+	/**
+	 * Remove dead ends and loops which are no longer reached by any
+	 * edge, along with anything only they reached.
+	 */
+	private void removeOrphans() {
+		while (!orphanCandidates.isEmpty()) {
+			final Long key = orphanCandidates.iterator().next();
+			orphanCandidates.remove(key);
+
+			final RailNode node = graph.getNode(key);
+			if (node == null
+					|| node.getType() == RailNode.Type.JUNCTION
+					|| node.getType() == RailNode.Type.DESTINATION
+					|| isReached(key)) {
+				continue;
+			}
+			removeNode(key);
+		}
+	}
+
+	private boolean isReached(final long key) {
+		for (RailEdge edge : graph.getEdgesThrough(key)) {
+			if (edge.getTo() == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void enqueue(final Block origin, final BlockFace exit) {
+		if (queued.add(new Walk(BlockKey.pack(origin), exit))) {
+			pending.add(new SegmentWalker(origin, exit, defaultDestination));
+		}
+	}
+
+	private Block blockAt(final long key) {
+		return world.getBlockAt(BlockKey.unpackX(key), BlockKey.unpackY(key), BlockKey.unpackZ(key));
+	}
+
+	/**
+	 * Schedule a run of the step method to be run after a short delay
+	 */
+	private void yield() {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() { step(); }
+		};
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, task, ITERATION_TICK_DELAY);
+	}
+}
@@ -0,0 +1,360 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.block.BlockFace;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+
+/**
+ * This class reads and writes rail graphs in a compact binary format.
+ *
+ * The file holds a header, the nodes, and then the segments of track
+ * between them. A segment is an edge along with the rail blocks it
+ * passes through, and also stands for the edge running back along it
+ * when the graph has one. Node positions are stored as packed longs and
+ * directions as single bytes. Each rail block of a segment is stored as
+ * a single byte giving the step from the block before it.
+ * @author Eric Mertens
+ */
+public final class RailGraphStore {
+
+	private static final int MAGIC = 0x50545247; // "PTRG"
+	private static final int VERSION = 3;
+
+	/**
+	 * Version which stored every edge on its own with absolute block keys.
+	 */
+	private static final int EDGE_VERSION = 2;
+
+	/**
+	 * Step byte after which a rail block is stored as an absolute key,
+	 * for blocks which are not one step from the block before them.
+	 */
+	private static final int ABSOLUTE_STEP = 0xFF;
+
+	private RailGraphStore() {
+	}
+
+	/**
+	 * Write a rail graph to a file. The graph is first written to a
+	 * temporary file which then replaces the old file.
+	 * @param graph Graph to write
+	 * @param file File to write to
+	 * @throws IOException when the file could not be written
+	 */
+	public static void write(final RailGraph graph, final File file) throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			final List<RailEdge> edges = new ArrayList<RailEdge>();
+
+			out.writeInt(graph.getNodeCount());
+			for (RailNode node : graph.getNodes()) {
+				out.writeLong(node.getKey());
+				out.writeByte(node.getType().ordinal());
+				switch (node.getType()) {
+				case JUNCTION:
+					out.writeByte(BlockFaceUtils.cardinalIndex(node.getOpenSide()));
+					out.writeShort(node.getLines().size());
+					for (String line : node.getLines()) {
+						out.writeUTF(line);
+					}
+					break;
+				case DESTINATION:
+					out.writeUTF(node.getDestination());
+					break;
+				default:
+					break;
+				}
+
+				for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+					final RailEdge edge = node.getExit(d);
+					if (edge != null) {
+						edges.add(edge);
+					}
+				}
+			}
+
+			// Pair each edge with the edge running back along it
+			final Set<RailEdge> written = Collections.newSetFromMap(new IdentityHashMap<RailEdge, Boolean>());
+			final List<RailEdge> segments = new ArrayList<RailEdge>();
+			final List<RailEdge> reverses = new ArrayList<RailEdge>();
+			for (RailEdge edge : edges) {
+				if (written.add(edge)) {
+					final RailEdge reverse = findReverse(graph, edge);
+					if (reverse != null) {
+						written.add(reverse);
+					}
+					segments.add(edge);
+					reverses.add(reverse);
+				}
+			}
+
+			out.writeInt(segments.size());
+			for (int i = 0; i < segments.size(); i++) {
+				final RailEdge edge = segments.get(i);
+				out.writeLong(edge.getFrom());
+				out.writeByte(BlockFaceUtils.cardinalIndex(edge.getExit()));
+				out.writeLong(edge.getTo());
+				out.writeByte(BlockFaceUtils.cardinalIndex(edge.getArrival()));
+				out.writeInt(edge.getSlopes());
+				writePath(out, edge.getFrom(), edge.getPath());
+
+				final RailEdge reverse = reverses.get(i);
+				out.writeBoolean(reverse != null);
+				if (reverse != null) {
+					out.writeByte(BlockFaceUtils.cardinalIndex(reverse.getExit()));
+					out.writeByte(BlockFaceUtils.cardinalIndex(reverse.getArrival()));
+					out.writeInt(reverse.getSlopes());
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace " + file);
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to rename " + temp);
+		}
+	}
+
+	/**
+	 * Read a rail graph from a file.
+	 * @param file File to read from
+	 * @return graph read from the file
+	 * @throws IOException when the file could not be read, is not a rail graph
+	 * or is corrupt
+	 */
+	public static RailGraph read(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a rail graph file: " + file);
+			}
+			final int version = in.readInt();
+			if (version != VERSION && version != EDGE_VERSION) {
+				throw new IOException("Unsupported rail graph version " + version + ": " + file);
+			}
+
+			final RailGraph graph = new RailGraph();
+			final RailNode.Type[] types = RailNode.Type.values();
+
+			final int nodeCount = in.readInt();
+			for (int i = 0; i < nodeCount; i++) {
+				final long key = in.readLong();
+				final int typeIndex = in.readUnsignedByte();
+				if (typeIndex >= types.length) {
+					throw new IOException("Bad node type " + typeIndex + ": " + file);
+				}
+				final RailNode.Type type = types[typeIndex];
+				switch (type) {
+				case JUNCTION:
+					final BlockFace openSide = readDirection(in, file);
+					final int lineCount = in.readUnsignedShort();
+					final List<String> lines = new ArrayList<String>(lineCount);
+					for (int j = 0; j < lineCount; j++) {
+						lines.add(in.readUTF());
+					}
+					graph.addNode(RailNode.junction(key, openSide, lines));
+					break;
+				case DESTINATION:
+					graph.addNode(RailNode.destination(key, in.readUTF()));
+					break;
+				default:
+					graph.addNode(RailNode.terminal(key, type));
+					break;
+				}
+			}
+
+			final int segmentCount = in.readInt();
+			for (int i = 0; i < segmentCount; i++) {
+				final long from = in.readLong();
+				final BlockFace exit = readDirection(in, file);
+				checkStart(graph, from, exit, file);
+				final long to = in.readLong();
+				final BlockFace arrival = readDirection(in, file);
+				final int slopes = in.readInt();
+				final long[] path = version == EDGE_VERSION
+						? readAbsolutePath(in, file)
+						: readPath(in, from, file);
+				graph.addEdge(new RailEdge(from, exit, to, arrival, path, slopes));
+
+				if (version != EDGE_VERSION && in.readBoolean()) {
+					final BlockFace reverseExit = readDirection(in, file);
+					checkStart(graph, to, reverseExit, file);
+					final BlockFace reverseArrival = readDirection(in, file);
+					final int reverseSlopes = in.readInt();
+					if (path.length == 0 || path[path.length - 1] != to) {
+						throw new IOException("Segment does not end at its node: " + file);
+					}
+					graph.addEdge(new RailEdge(to, reverseExit, from, reverseArrival,
+							reversePath(from, path), reverseSlopes));
+				}
+			}
+
+			graph.markSaved();
+			return graph;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Find the edge running back along an edge to its start, with the
+	 * same rail blocks in the opposite order.
+	 * @return the reverse edge, or null if the graph has none
+	 */
+	private static RailEdge findReverse(final RailGraph graph, final RailEdge edge) {
+		final RailNode end = graph.getNode(edge.getTo());
+		final long[] path = edge.getPath();
+		if (end == null || edge.getTo() == edge.getFrom()
+				|| path.length == 0 || path[path.length - 1] != edge.getTo()) {
+			return null;
+		}
+		for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final RailEdge candidate = end.getExit(d);
+			if (candidate != null && candidate.getTo() == edge.getFrom()
+					&& Arrays.equals(candidate.getPath(), reversePath(edge.getFrom(), path))) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compute the path of the edge running back along a path: the blocks
+	 * before its end in the opposite order, followed by its start.
+	 */
+	private static long[] reversePath(final long from, final long[] path) {
+		final long[] reverse = new long[path.length];
+		for (int i = 0; i < path.length - 1; i++) {
+			reverse[i] = path[path.length - 2 - i];
+		}
+		reverse[path.length - 1] = from;
+		return reverse;
+	}
+
+	/**
+	 * Write the rail blocks of a path as steps from the block before.
+	 * A step is a cardinal index in the low two bits and the change in
+	 * height plus one in the next two bits.
+	 */
+	private static void writePath(final DataOutputStream out, final long from, final long[] path)
+			throws IOException {
+		out.writeInt(path.length);
+		long previous = from;
+		for (long key : path) {
+			final int step = step(previous, key);
+			if (step < 0) {
+				out.writeByte(ABSOLUTE_STEP);
+				out.writeLong(key);
+			} else {
+				out.writeByte(step);
+			}
+			previous = key;
+		}
+	}
+
+	/**
+	 * Encode the step between two blocks.
+	 * @return the step byte, or -1 if the blocks are not one step apart
+	 */
+	private static int step(final long from, final long to) {
+		final int dx = BlockKey.unpackX(to) - BlockKey.unpackX(from);
+		final int dy = BlockKey.unpackY(to) - BlockKey.unpackY(from);
+		final int dz = BlockKey.unpackZ(to) - BlockKey.unpackZ(from);
+		if (Math.abs(dx) + Math.abs(dz) != 1 || dy < -1 || dy > 1) {
+			return -1;
+		}
+		final BlockFace direction;
+		if (dx != 0) {
+			direction = dx > 0 ? BlockFace.EAST : BlockFace.WEST;
+		} else {
+			direction = dz > 0 ? BlockFace.SOUTH : BlockFace.NORTH;
+		}
+		return BlockFaceUtils.cardinalIndex(direction) | (dy + 1) << 2;
+	}
+
+	private static long[] readPath(final DataInputStream in, final long from, final File file)
+			throws IOException {
+		final long[] path = new long[readPathLength(in, file)];
+		long previous = from;
+		for (int j = 0; j < path.length; j++) {
+			final int step = in.readUnsignedByte();
+			if (step == ABSOLUTE_STEP) {
+				path[j] = in.readLong();
+			} else {
+				final int dy = (step >> 2) - 1;
+				if (dy > 1) {
+					throw new IOException("Bad path step " + step + ": " + file);
+				}
+				final BlockFace direction = BlockFaceUtils.fromCardinalIndex(step & 3);
+				path[j] = BlockKey.pack(
+						BlockKey.unpackX(previous) + direction.getModX(),
+						BlockKey.unpackY(previous) + dy,
+						BlockKey.unpackZ(previous) + direction.getModZ());
+			}
+			previous = path[j];
+		}
+		return path;
+	}
+
+	private static long[] readAbsolutePath(final DataInputStream in, final File file) throws IOException {
+		final long[] path = new long[readPathLength(in, file)];
+		for (int j = 0; j < path.length; j++) {
+			path[j] = in.readLong();
+		}
+		return path;
+	}
+
+	private static int readPathLength(final DataInputStream in, final File file) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Bad path length " + length + ": " + file);
+		}
+		return length;
+	}
+
+	private static void checkStart(final RailGraph graph, final long from, final BlockFace exit,
+			final File file) throws IOException {
+		if (exit == null || graph.getNode(from) == null) {
+			throw new IOException("Edge from a missing node: " + file);
+		}
+	}
+
+	/**
+	 * Read a direction written as a cardinal index, where -1 stands for none.
+	 */
+	private static BlockFace readDirection(final DataInputStream in, final File file) throws IOException {
+		final byte index = in.readByte();
+		if (index == -1) {
+			return null;
+		}
+		if (index < 0 || index >= BlockFaceUtils.CARDINAL_DIRECTIONS.length) {
+			throw new IOException("Bad direction " + index + ": " + file);
+		}
+		return BlockFaceUtils.fromCardinalIndex(index);
+	}
+}
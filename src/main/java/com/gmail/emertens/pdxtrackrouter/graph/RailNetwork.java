@@ -0,0 +1,322 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+import com.gmail.emertens.pdxtrackrouter.RoutingTable;
+
+/**
+ * This class keeps the rail graph of every world and stores each of
+ * them in its own file in the plug-in's data folder, so that networks
+ * are loaded at startup rather than walked again. Graphs are repaired
+ * in place as the blocks around their track change.
+ * @author Eric Mertens
+ */
+public final class RailNetwork {
+
+	private static final String GRAPH_DIRECTORY = "graphs";
+	private static final String GRAPH_EXTENSION = ".graph";
+
+	private final Plugin plugin;
+	private final String defaultDestination;
+	private final Map<UUID, RailGraph> graphs = new HashMap<UUID, RailGraph>();
+	private final Map<UUID, RailGraphBuilder> builders = new HashMap<UUID, RailGraphBuilder>();
+	private final Map<UUID, ReachabilityAnalyzer> analyzers = new HashMap<UUID, ReachabilityAnalyzer>();
+	private final Set<Block> dirtyBlocks = new HashSet<Block>();
+
+	/**
+	 * Positions in unloaded chunks to repair when their chunk loads
+	 */
+	private final Map<UUID, Set<Long>> pendingRepairs = new HashMap<UUID, Set<Long>>();
+	private final Runnable repairTask = new Runnable() {
+		@Override
+		public void run() { repairDirtyBlocks(); }
+	};
+
+	/**
+	 * Construct a new RailNetwork.
+	 * @param plugin Plug-in owning the data folder and scheduler
+	 * @param defaultDestination Normalized name of the default destination
+	 */
+	public RailNetwork(final Plugin plugin, final String defaultDestination) {
+		this.plugin = plugin;
+		this.defaultDestination = defaultDestination;
+	}
+
+	/**
+	 * Return the graph of a world, loading it from disk on first use.
+	 * @param world World whose graph is wanted
+	 * @return the world's graph, empty if none has been built
+	 */
+	public RailGraph getGraph(final World world) {
+		final UUID id = world.getUID();
+		RailGraph graph = graphs.get(id);
+		if (graph == null) {
+			graph = load(world);
+			graphs.put(id, graph);
+		}
+		return graph;
+	}
+
+	/**
+	 * Return the reachability analyzer for the graph of a world.
+	 * @param world World whose graph should be analyzed
+	 * @return the world's analyzer
+	 */
+	public ReachabilityAnalyzer getAnalyzer(final World world) {
+		final UUID id = world.getUID();
+		ReachabilityAnalyzer analyzer = analyzers.get(id);
+		if (analyzer == null) {
+			analyzer = new ReachabilityAnalyzer(getGraph(world), defaultDestination);
+			analyzers.put(id, analyzer);
+		}
+		return analyzer;
+	}
+
+	/**
+	 * Discover the network reachable from a block and add it to the
+	 * graph of the block's world. The graph is saved when the walk
+	 * completes.
+	 * @param block Starting block
+	 * @param onComplete Task to run after the graph has been saved
+	 */
+	public void build(final Block block, final Runnable onComplete) {
+		final World world = block.getWorld();
+		getBuilder(world).start(block, new Runnable() {
+			@Override
+			public void run() {
+				save(world);
+				onComplete.run();
+			}
+		});
+	}
+
+	/**
+	 * Determine if the graph of a world is currently being walked.
+	 * @param world World to check
+	 * @return true while walking
+	 */
+	public boolean isBuilding(final World world) {
+		final RailGraphBuilder builder = builders.get(world.getUID());
+		return builder != null && builder.isRunning();
+	}
+
+	/**
+	 * Return the number of edges walked again because of block changes.
+	 * @param world World to check
+	 * @return the number of repaired edges
+	 */
+	public int getRepairs(final World world) {
+		final RailGraphBuilder builder = builders.get(world.getUID());
+		return builder == null ? 0 : builder.getRepairs();
+	}
+
+	/**
+	 * Schedule the graph around a changed block to be brought up to date.
+	 * The repair happens on the next tick so that the change has been
+	 * applied to the world by then.
+	 * @param block Block which changed
+	 */
+	public void blockChanged(final Block block) {
+		final RailGraph graph = graphs.get(block.getWorld().getUID());
+		if (graph == null || graph.getNodeCount() == 0) {
+			return;
+		}
+
+		if (dirtyBlocks.isEmpty()) {
+			plugin.getServer().getScheduler().runTask(plugin, repairTask);
+		}
+		dirtyBlocks.add(block);
+	}
+
+	/**
+	 * Bring the graph up to date with a virtual junction whose chunk is
+	 * not loaded. New lines of a junction already in the graph are
+	 * applied directly, as they do not change the shape of the network.
+	 * Junctions which were added or removed are repaired when their
+	 * chunk next loads.
+	 * @param world World of the junction
+	 * @param key Packed coordinates of the junction rail
+	 * @param table New routing table, or null if the junction was removed
+	 */
+	public void virtualJunctionChanged(final World world, final long key, final RoutingTable table) {
+		final RailGraph graph = getGraph(world);
+		if (graph.getNodeCount() == 0) {
+			return;
+		}
+
+		final RailNode node = graph.getNode(key);
+		if (table != null && node != null && node.getType() == RailNode.Type.JUNCTION) {
+			graph.updateLines(key, table.getLines());
+			return;
+		}
+		if (table == null && node == null) {
+			return;
+		}
+
+		Set<Long> pending = pendingRepairs.get(world.getUID());
+		if (pending == null) {
+			pending = new HashSet<Long>();
+			pendingRepairs.put(world.getUID(), pending);
+		}
+		pending.add(key);
+	}
+
+	/**
+	 * Repair the positions of a newly loaded chunk which changed while
+	 * it was unloaded.
+	 * @param chunk Chunk which was loaded
+	 */
+	public void chunkLoaded(final Chunk chunk) {
+		final Set<Long> pending = pendingRepairs.get(chunk.getWorld().getUID());
+		if (pending == null) {
+			return;
+		}
+
+		final Set<Long> keys = new HashSet<Long>();
+		for (Iterator<Long> i = pending.iterator(); i.hasNext();) {
+			final long key = i.next();
+			if (BlockKey.unpackX(key) >> 4 == chunk.getX() && BlockKey.unpackZ(key) >> 4 == chunk.getZ()) {
+				keys.add(key);
+				i.remove();
+			}
+		}
+		if (pending.isEmpty()) {
+			pendingRepairs.remove(chunk.getWorld().getUID());
+		}
+		if (!keys.isEmpty()) {
+			getBuilder(chunk.getWorld()).repair(keys);
+		}
+	}
+
+	private void repairDirtyBlocks() {
+		final Map<World, Set<Long>> changes = new HashMap<World, Set<Long>>();
+		for (Block block : dirtyBlocks) {
+			Set<Long> keys = changes.get(block.getWorld());
+			if (keys == null) {
+				keys = new HashSet<Long>();
+				changes.put(block.getWorld(), keys);
+			}
+			addAffectedKeys(block, keys);
+		}
+		dirtyBlocks.clear();
+
+		for (Map.Entry<World, Set<Long>> entry : changes.entrySet()) {
+			getBuilder(entry.getKey()).repair(entry.getValue());
+		}
+	}
+
+	/**
+	 * Collect the positions of the rails which could have been affected
+	 * by a changed block: every block beside or diagonal to it, one
+	 * block below it and two above it. When the block is part of a sign
+	 * stack the range covers the whole stack, following the placements
+	 * accepted by {@link com.gmail.emertens.pdxtrackrouter.Junction#makeJunction}.
+	 */
+	private static void addAffectedKeys(final Block block, final Set<Long> keys) {
+		int low = block.getY();
+		while (low > 0 && isSign(block.getWorld().getBlockAt(block.getX(), low - 1, block.getZ()))) {
+			low--;
+		}
+		int high = block.getY();
+		while (high < block.getWorld().getMaxHeight() - 1
+				&& isSign(block.getWorld().getBlockAt(block.getX(), high + 1, block.getZ()))) {
+			high++;
+		}
+
+		for (int y = low - 1; y <= high + 2; y++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dz = -1; dz <= 1; dz++) {
+					keys.add(BlockKey.pack(block.getX() + dx, y, block.getZ() + dz));
+				}
+			}
+		}
+	}
+
+	private static boolean isSign(final Block block) {
+		return block.getType() == Material.SIGN_POST || block.getType() == Material.WALL_SIGN;
+	}
+
+	private RailGraphBuilder getBuilder(final World world) {
+		RailGraphBuilder builder = builders.get(world.getUID());
+		if (builder == null) {
+			builder = new RailGraphBuilder(plugin, getGraph(world), world, defaultDestination);
+			builders.put(world.getUID(), builder);
+		}
+		return builder;
+	}
+
+	/**
+	 * Write the graph of a world to its file.
+	 * @param world World whose graph should be saved
+	 * @return true if the graph was written
+	 */
+	public boolean save(final World world) {
+		final RailGraph graph = graphs.get(world.getUID());
+		if (graph == null) {
+			return false;
+		}
+
+		final File file = graphFile(world);
+		try {
+			file.getParentFile().mkdirs();
+			RailGraphStore.write(graph, file);
+			graph.markSaved();
+			return true;
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Unable to save rail graph " + file, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Write the graph of a world if it changed since it was last written.
+	 * @param world World whose graph should be saved
+	 */
+	public void saveIfModified(final World world) {
+		final RailGraph graph = graphs.get(world.getUID());
+		if (graph != null && graph.isModified()) {
+			save(world);
+		}
+	}
+
+	/**
+	 * Write the graph of every world which changed since it was last written.
+	 */
+	public void saveAll() {
+		for (World world : plugin.getServer().getWorlds()) {
+			saveIfModified(world);
+		}
+	}
+
+	private RailGraph load(final World world) {
+		final File file = graphFile(world);
+		if (file.exists()) {
+			try {
+				return RailGraphStore.read(file);
+			} catch (IOException e) {
+				plugin.getLogger().log(Level.WARNING, "Unable to load rail graph " + file, e);
+			}
+		}
+		return new RailGraph();
+	}
+
+	private File graphFile(final World world) {
+		return new File(new File(plugin.getDataFolder(), GRAPH_DIRECTORY),
+				world.getUID() + GRAPH_EXTENSION);
+	}
+}
@@ -0,0 +1,124 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.block.BlockFace;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+
+/**
+ * This class represents a point of interest in the rail network: a
+ * routed junction, a rail next to a destination sign, or the end of
+ * a track.
+ * @author Eric Mertens
+ */
+public final class RailNode {
+
+	/**
+	 * Kinds of rail network nodes.
+	 */
+	public enum Type {
+		/** A routed junction */
+		JUNCTION,
+		/** A rail next to a destination sign */
+		DESTINATION,
+		/** The last rail of a track */
+		DEAD_END,
+		/** A rail where a track without any other nodes closes on itself */
+		LOOP
+	}
+
+	private final long key;
+	private final Type type;
+	private final BlockFace openSide;
+	private final List<String> lines;
+	private final String destination;
+	private final RailEdge[] exits = new RailEdge[4];
+
+	private RailNode(final long key, final Type type, final BlockFace openSide,
+			final List<String> lines, final String destination) {
+		this.key = key;
+		this.type = type;
+		this.openSide = openSide;
+		this.lines = lines;
+		this.destination = destination;
+	}
+
+	/**
+	 * Construct a junction node.
+	 * @param key Packed coordinates of the junction rail
+	 * @param openSide Open side of a 3-way junction, null for 4-way junctions
+	 * @param lines Normalized routing lines of the junction
+	 * @return new junction node
+	 */
+	public static RailNode junction(final long key, final BlockFace openSide, final List<String> lines) {
+		return new RailNode(key, Type.JUNCTION, openSide, Collections.unmodifiableList(lines), null);
+	}
+
+	/**
+	 * Construct a destination node.
+	 * @param key Packed coordinates of the rail
+	 * @param destination Normalized destination name on the sign
+	 * @return new destination node
+	 */
+	public static RailNode destination(final long key, final String destination) {
+		return new RailNode(key, Type.DESTINATION, null, Collections.<String>emptyList(), destination);
+	}
+
+	/**
+	 * Construct a node without routing information.
+	 * @param key Packed coordinates of the rail
+	 * @param type Either DEAD_END or LOOP
+	 * @return new node
+	 */
+	public static RailNode terminal(final long key, final Type type) {
+		return new RailNode(key, type, null, Collections.<String>emptyList(), null);
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the open side of a 3-way junction.
+	 * @return the open side, or null for other nodes
+	 */
+	public BlockFace getOpenSide() {
+		return openSide;
+	}
+
+	/**
+	 * Returns the normalized routing lines of a junction.
+	 * @return the routing lines, empty for other nodes
+	 */
+	public List<String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * Returns the destination name of a destination node.
+	 * @return the destination name, or null for other nodes
+	 */
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Returns the edge leaving this node in the given direction.
+	 * @param direction A cardinal direction
+	 * @return the edge or null if there is none
+	 */
+	public RailEdge getExit(final BlockFace direction) {
+		final int index = BlockFaceUtils.cardinalIndex(direction);
+		return index < 0 ? null : exits[index];
+	}
+
+	void setExit(final BlockFace direction, final RailEdge edge) {
+		exits[BlockFaceUtils.cardinalIndex(direction)] = edge;
+	}
+}
@@ -0,0 +1,338 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.block.BlockFace;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+import com.gmail.emertens.pdxtrackrouter.DestinationRegistry;
+import com.gmail.emertens.pdxtrackrouter.RoutingTable;
+
+/**
+ * This class finds every destination a player could route to when
+ * departing a point of the rail network. Unlike
+ * {@link com.gmail.emertens.pdxtrackrouter.RailSearch}, which only follows
+ * the default route, every exit that a routed cart could be sent down is
+ * explored.
+ *
+ * For every node and exit direction the set of reachable destinations is
+ * kept as a bit set of {@link DestinationRegistry} identifiers. The sets
+ * are first computed for the whole graph at once by iterating to a fixed
+ * point, which also handles cycles in the network. After the graph
+ * changes, only the sets of nodes which can reach a changed node are
+ * computed again, the next time they are needed.
+ * @author Eric Mertens
+ */
+public final class ReachabilityAnalyzer {
+
+	private final RailGraph graph;
+	private final String defaultDestination;
+	private final int defaultId;
+
+	/**
+	 * Destinations reachable by leaving each node in each cardinal direction
+	 */
+	private final Map<Long, BitSet[]> reachable = new HashMap<Long, BitSet[]>();
+
+	/**
+	 * Interesting destinations of each junction for each direction of entry
+	 */
+	private final Map<Long, BitSet[]> recorded = new HashMap<Long, BitSet[]>();
+
+	/**
+	 * Exits a routed cart can take from each node for each direction of entry
+	 */
+	private final Map<Long, BlockFace[][]> exits = new HashMap<Long, BlockFace[][]>();
+
+	private int graphVersion;
+	private boolean computed = false;
+	private int computations = 0;
+	private int updates = 0;
+
+	/**
+	 * Construct a new ReachabilityAnalyzer.
+	 * @param graph Graph to analyze
+	 * @param defaultDestination Normalized name of the default destination
+	 */
+	public ReachabilityAnalyzer(final RailGraph graph, final String defaultDestination) {
+		this.graph = graph;
+		this.defaultDestination = defaultDestination;
+		this.defaultId = DestinationRegistry.global().intern(defaultDestination);
+	}
+
+	/**
+	 * Determine if a block is part of the graph.
+	 * @param key Packed coordinates of the block
+	 * @return true if the block is a node or lies on an edge
+	 */
+	public boolean covers(final long key) {
+		return graph.getNode(key) != null || !graph.getEdgesThrough(key).isEmpty();
+	}
+
+	/**
+	 * Find the destinations reachable by departing a block in a direction.
+	 * @param key Packed coordinates of the block
+	 * @param direction Direction of departure
+	 * @return identifiers of the destinations reachable, empty if no track
+	 * leaves the block in that direction. The set must not be modified.
+	 */
+	public BitSet departing(final long key, final BlockFace direction) {
+		if (!computed) {
+			compute();
+		} else if (graph.getVersion() != graphVersion) {
+			update();
+		}
+
+		final RailNode node = graph.getNode(key);
+		if (node != null) {
+			return reachableLeaving(key, direction);
+		}
+
+		for (RailEdge edge : graph.getEdgesThrough(key)) {
+			final long[] path = edge.getPath();
+			for (int i = 0; i + 1 < path.length; i++) {
+				if (path[i] == key && SegmentWalker.toward(path[i], path[i + 1]) == direction) {
+					return reachableEntering(edge.getTo(), edge.getArrival());
+				}
+			}
+		}
+		return new BitSet();
+	}
+
+	/**
+	 * Return the number of times the sets have been computed for the
+	 * whole graph.
+	 * @return the number of computations
+	 */
+	public int getComputations() {
+		return computations;
+	}
+
+	/**
+	 * Return the number of times the sets upstream of changed nodes have
+	 * been computed again.
+	 * @return the number of updates
+	 */
+	public int getUpdates() {
+		return updates;
+	}
+
+	private BitSet reachableLeaving(final long node, final BlockFace exit) {
+		final BitSet[] sets = reachable.get(node);
+		final int index = BlockFaceUtils.cardinalIndex(exit);
+		if (sets == null || index < 0 || sets[index] == null) {
+			return new BitSet();
+		}
+		return sets[index];
+	}
+
+	/**
+	 * Compute the destinations reachable after entering a node: those
+	 * recorded at the node itself and those reachable from every exit a
+	 * routed cart can leave by.
+	 */
+	private BitSet reachableEntering(final long node, final BlockFace entry) {
+		final int index = BlockFaceUtils.cardinalIndex(entry);
+		final BitSet result = new BitSet();
+
+		final BitSet[] own = recorded.get(node);
+		if (own != null && own[index] != null) {
+			result.or(own[index]);
+		}
+
+		final BlockFace[][] nodeExits = exits.get(node);
+		if (nodeExits != null) {
+			for (BlockFace exit : nodeExits[index]) {
+				result.or(reachableLeaving(node, exit));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the reachable sets of every node and exit by propagating
+	 * destinations backward along the edges until nothing changes.
+	 */
+	private void compute() {
+		reachable.clear();
+		recorded.clear();
+		exits.clear();
+
+		for (RailNode node : graph.getNodes()) {
+			prepareNode(node);
+		}
+
+		final Deque<RailEdge> work = new ArrayDeque<RailEdge>();
+		final Set<RailEdge> queued = new HashSet<RailEdge>();
+		for (RailNode node : graph.getNodes()) {
+			queueExits(node, work, queued);
+		}
+		propagate(work, queued);
+
+		graphVersion = graph.getVersion();
+		computed = true;
+		computations++;
+	}
+
+	/**
+	 * Compute the reachable sets again for the nodes which can reach a
+	 * changed node. The sets of every other node only depend on parts
+	 * of the graph which did not change, so they are kept. When the
+	 * graph no longer remembers every change, everything is computed.
+	 */
+	private void update() {
+		final Set<Long> changed = new HashSet<Long>();
+		if (!graph.collectChangedNodes(graphVersion, changed)) {
+			compute();
+			return;
+		}
+
+		for (long key : changed) {
+			exits.remove(key);
+			recorded.remove(key);
+			final RailNode node = graph.getNode(key);
+			if (node != null) {
+				prepareNode(node);
+			}
+		}
+
+		// Walk backward along the edges arriving at each node
+		final Set<Long> upstream = new HashSet<Long>(changed);
+		final Deque<Long> pending = new ArrayDeque<Long>(changed);
+		while (!pending.isEmpty()) {
+			final long key = pending.poll();
+			for (RailEdge edge : graph.getEdgesThrough(key)) {
+				if (edge.getTo() == key && upstream.add(edge.getFrom())) {
+					pending.add(edge.getFrom());
+				}
+			}
+		}
+
+		final Deque<RailEdge> work = new ArrayDeque<RailEdge>();
+		final Set<RailEdge> queued = new HashSet<RailEdge>();
+		for (long key : upstream) {
+			reachable.remove(key);
+			final RailNode node = graph.getNode(key);
+			if (node != null) {
+				queueExits(node, work, queued);
+			}
+		}
+		propagate(work, queued);
+
+		graphVersion = graph.getVersion();
+		updates++;
+	}
+
+	private static void queueExits(final RailNode node, final Deque<RailEdge> work, final Set<RailEdge> queued) {
+		for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final RailEdge edge = node.getExit(direction);
+			if (edge != null && queued.add(edge)) {
+				work.add(edge);
+			}
+		}
+	}
+
+	/**
+	 * Grow the reachable sets from the queued edges until nothing changes.
+	 */
+	private void propagate(final Deque<RailEdge> work, final Set<RailEdge> queued) {
+		while (!work.isEmpty()) {
+			final RailEdge edge = work.poll();
+			queued.remove(edge);
+
+			final BitSet found = reachableEntering(edge.getTo(), edge.getArrival());
+			final BitSet current = reachableLeaving(edge.getFrom(), edge.getExit());
+			found.andNot(current);
+			if (found.isEmpty()) {
+				continue;
+			}
+
+			BitSet[] sets = reachable.get(edge.getFrom());
+			if (sets == null) {
+				sets = new BitSet[4];
+				reachable.put(edge.getFrom(), sets);
+			}
+			final int index = BlockFaceUtils.cardinalIndex(edge.getExit());
+			if (sets[index] == null) {
+				sets[index] = new BitSet();
+			}
+			sets[index].or(found);
+
+			// Every edge arriving at the node which grew may grow as well
+			for (RailEdge previous : graph.getEdgesThrough(edge.getFrom())) {
+				if (previous.getTo() == edge.getFrom() && queued.add(previous)) {
+					work.add(previous);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record the exits and interesting destinations of a node for each
+	 * direction of entry. At a junction a cart can leave by every exit
+	 * some destination is routed to, at a destination rail the track
+	 * simply continues, and dead ends and loops stop the cart.
+	 */
+	private void prepareNode(final RailNode node) {
+		final BlockFace[][] nodeExits = new BlockFace[4][];
+		BitSet[] nodeRecorded = null;
+
+		switch (node.getType()) {
+		case JUNCTION:
+			final RoutingTable table = RoutingTable.compile(node.getLines(), defaultDestination);
+			nodeRecorded = new BitSet[4];
+			for (int i = 0; i < 4; i++) {
+				final BlockFace entry = BlockFaceUtils.fromCardinalIndex(i);
+				final BlockFace backward = BlockFaceUtils.opposite(entry);
+
+				final Set<BlockFace> routed = new HashSet<BlockFace>();
+				routed.add(table.route(entry));
+				for (int destination : table.getDestinations()) {
+					routed.add(table.route(destination, entry));
+				}
+				routed.addAll(table.getPatternExits(entry));
+				routed.remove(node.getOpenSide());
+				routed.remove(backward);
+				nodeExits[i] = routed.toArray(new BlockFace[routed.size()]);
+
+				// The interesting (non-backward, non-default) destinations, as RailSearch records them
+				final BitSet interesting = new BitSet();
+				for (RoutingTable.Route route : table.getRoutes()) {
+					if (route.getExit() != backward && route.getDestinationId() != defaultId) {
+						interesting.set(route.getDestinationId());
+					}
+				}
+				nodeRecorded[i] = interesting;
+			}
+			break;
+		case DESTINATION:
+			for (int i = 0; i < 4; i++) {
+				final BlockFace backward = BlockFaceUtils.opposite(BlockFaceUtils.fromCardinalIndex(i));
+				final Set<BlockFace> onward = new HashSet<BlockFace>();
+				for (BlockFace exit : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+					if (exit != backward && node.getExit(exit) != null) {
+						onward.add(exit);
+					}
+				}
+				nodeExits[i] = onward.toArray(new BlockFace[onward.size()]);
+			}
+			break;
+		default:
+			for (int i = 0; i < 4; i++) {
+				nodeExits[i] = new BlockFace[0];
+			}
+			break;
+		}
+
+		exits.put(node.getKey(), nodeExits);
+		if (nodeRecorded != null) {
+			recorded.put(node.getKey(), nodeRecorded);
+		}
+	}
+}
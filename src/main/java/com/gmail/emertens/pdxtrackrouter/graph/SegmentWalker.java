@@ -0,0 +1,390 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.material.Rails;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+import com.gmail.emertens.pdxtrackrouter.BlockProbe;
+import com.gmail.emertens.pdxtrackrouter.BlockProbeUtils;
+import com.gmail.emertens.pdxtrackrouter.Junction;
+import com.gmail.emertens.pdxtrackrouter.PdxTrackRouter;
+import com.gmail.emertens.pdxtrackrouter.RailSearch;
+import com.gmail.emertens.pdxtrackrouter.RailVector;
+import com.gmail.emertens.pdxtrackrouter.WorldBlockProbe;
+
+/**
+ * This class follows the track leaving a block in a given direction until
+ * it reaches the next node of the rail network. It uses the same turning
+ * and slope rules as {@link RailSearch}. The walk can be performed in
+ * several steps so that long segments do not hold the main thread.
+ * @author Eric Mertens
+ */
+final class SegmentWalker {
+
+	/**
+	 * Longest segment that will be followed before giving up.
+	 */
+	static final int MAX_LENGTH = 100000;
+
+	private final Block origin;
+	private final BlockFace exit;
+	private final String defaultDestination;
+	private final Set<RailVector> visited = new HashSet<RailVector>();
+
+	private RailVector cursor;
+	private RailVector last = null;
+	private long[] path = new long[16];
+	private int length = 0;
+	private int slopes = 0;
+
+	private RailNode target = null;
+	private BlockFace arrival = null;
+	private boolean finished = false;
+
+	/**
+	 * Construct a new SegmentWalker.
+	 * @param origin Rail block the walk departs from
+	 * @param exit Direction the walk departs in
+	 * @param defaultDestination Normalized name of the default destination
+	 */
+	SegmentWalker(final Block origin, final BlockFace exit, final String defaultDestination) {
+		this.origin = origin;
+		this.exit = exit;
+		this.defaultDestination = defaultDestination;
+		cursor = RailVector.makeRailVector(nextBlock(origin, railData(origin), exit), exit);
+	}
+
+	/**
+	 * Advance the walk.
+	 * @param budget Maximum number of blocks to visit
+	 * @return true when the walk has finished
+	 */
+	boolean step(final int budget) {
+		for (int i = 0; i < budget && !finished; i++) {
+			advance();
+		}
+		return finished;
+	}
+
+	Block getOrigin() {
+		return origin;
+	}
+
+	BlockFace getExit() {
+		return exit;
+	}
+
+	/**
+	 * Return the node found at the end of the walk.
+	 * @return the node found or null if no track left the origin
+	 */
+	RailNode getTarget() {
+		return target;
+	}
+
+	/**
+	 * Return the edge from a node at the origin to the target.
+	 * @return the edge walked, or null if no track left the origin
+	 */
+	RailEdge getEdge() {
+		if (target == null) {
+			return null;
+		}
+		return new RailEdge(BlockKey.pack(origin), exit, target.getKey(), arrival,
+				Arrays.copyOf(path, length), slopes);
+	}
+
+	/**
+	 * Determine if the walk so far has passed through any of the given blocks.
+	 * @param keys Packed block coordinates
+	 * @return true if one of the blocks has been visited
+	 */
+	boolean passesThrough(final Set<Long> keys) {
+		for (int i = 0; i < length; i++) {
+			if (keys.contains(path[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void advance() {
+		if (cursor == null) {
+			if (last != null) {
+				finish(RailNode.terminal(BlockKey.pack(last.getBlock()), RailNode.Type.DEAD_END), last);
+			} else {
+				finished = true;
+			}
+			return;
+		}
+
+		if (!visited.add(cursor) || length >= MAX_LENGTH) {
+			finish(RailNode.terminal(BlockKey.pack(cursor.getBlock()), RailNode.Type.LOOP), cursor);
+			return;
+		}
+
+		final Block block = cursor.getBlock();
+		if (length == path.length) {
+			path = Arrays.copyOf(path, length * 2);
+		}
+		path[length++] = BlockKey.pack(block);
+
+		final RailNode node = makeNode(block, defaultDestination);
+		if (node != null) {
+			finish(node, cursor);
+			return;
+		}
+
+		if (cursor.isOnSlope()) {
+			slopes++;
+		}
+
+		last = cursor;
+		cursor = follow(cursor);
+	}
+
+	/**
+	 * Find the rail a minecart moves onto after leaving a plain rail.
+	 * @param vector Current rail and direction of travel
+	 * @return the next rail and direction of travel, or null at the end of the track
+	 */
+	private static RailVector follow(final RailVector vector) {
+		final BlockFace newDirection = vector.getExitDirection();
+		Block nextBlock = vector.getBlock().getRelative(newDirection);
+
+		// Correct for slopes
+		if (vector.isOnSlope() && vector.getRailDirection() == newDirection) {
+			nextBlock = nextBlock.getRelative(BlockFace.UP);
+		}
+
+		return RailVector.makeRailVector(nextBlock, newDirection);
+	}
+
+	/**
+	 * Determine if the step an edge takes at one of its rail blocks would
+	 * still be taken in the current world. Only that step is checked, so
+	 * an edge remains valid as long as each of its changed blocks passes.
+	 * @param edge Edge to check
+	 * @param targetType Type of the node the edge ends at
+	 * @param index Position of the block in the edge's path
+	 * @param block The block at that position
+	 * @param defaultDestination Normalized name of the default destination
+	 * @return true if the edge still passes through the block the same way
+	 */
+	static boolean stepStillValid(final RailEdge edge, final RailNode.Type targetType,
+			final int index, final Block block, final String defaultDestination) {
+		final long[] path = edge.getPath();
+		final boolean isLast = index == path.length - 1;
+
+		final BlockFace traveling;
+		if (index == 0) {
+			traveling = edge.getExit();
+		} else {
+			traveling = toward(path[index - 1], path[index]);
+		}
+
+		final RailVector vector = RailVector.makeRailVector(block, traveling);
+		if (vector == null || BlockKey.pack(vector.getBlock()) != path[index]) {
+			return false;
+		}
+
+		final RailNode node = makeNode(block, defaultDestination);
+		if (isLast && edge.getTo() == path[index]) {
+			switch (targetType) {
+			case JUNCTION:
+			case DESTINATION:
+				// Changes to the node itself are checked separately
+				return node != null;
+			default:
+				break;
+			}
+		}
+		if (node != null) {
+			return false;
+		}
+
+		final RailVector next = follow(vector);
+		if (!isLast) {
+			return next != null && BlockKey.pack(next.getBlock()) == path[index + 1];
+		}
+
+		switch (targetType) {
+		case DEAD_END:
+			return next == null;
+		default:
+			return next != null && BlockKey.pack(next.getBlock()) == edge.getTo();
+		}
+	}
+
+	/**
+	 * Determine if leaving a node along an edge still reaches the first
+	 * rail of the edge's path. This depends on the node's own rail when
+	 * it is sloped.
+	 * @param edge Edge leaving the node
+	 * @param origin Rail block of the node
+	 * @return true if the edge still starts the same way
+	 */
+	static boolean firstStepStillValid(final RailEdge edge, final Block origin) {
+		final RailVector first = RailVector.makeRailVector(
+				nextBlock(origin, railData(origin), edge.getExit()), edge.getExit());
+		return first != null && BlockKey.pack(first.getBlock()) == edge.getPath()[0];
+	}
+
+	/**
+	 * Count the sloped rails of an edge in the current world the way a
+	 * walk of the edge would, leaving out a junction or destination at
+	 * its end.
+	 * @param edge Edge to count
+	 * @param targetType Type of the node the edge ends at
+	 * @param world World containing the edge
+	 * @return the number of sloped rails
+	 */
+	static int countSlopes(final RailEdge edge, final RailNode.Type targetType, final World world) {
+		final long[] path = edge.getPath();
+		int end = path.length;
+		if (targetType == RailNode.Type.JUNCTION || targetType == RailNode.Type.DESTINATION) {
+			end--;
+		}
+
+		final BlockProbe probe = new WorldBlockProbe(world);
+		int slopes = 0;
+		for (int i = 0; i < end; i++) {
+			if (BlockProbeUtils.isOnSlope(probe,
+					BlockKey.unpackX(path[i]), BlockKey.unpackY(path[i]), BlockKey.unpackZ(path[i]))) {
+				slopes++;
+			}
+		}
+		return slopes;
+	}
+
+	private void finish(final RailNode node, final RailVector at) {
+		target = node;
+		arrival = at.getTravelDirection();
+		finished = true;
+	}
+
+	/**
+	 * Construct the node for a rail block if the block is a junction or
+	 * is next to a destination sign.
+	 * @param block Rail block to check
+	 * @param defaultDestination Normalized name of the default destination
+	 * @return a new node, or null if the block is plain track
+	 */
+	static RailNode makeNode(final Block block, final String defaultDestination) {
+		final Junction junction = Junction.makeJunction(block, defaultDestination);
+		if (junction != null) {
+			return RailNode.junction(BlockKey.pack(block), junction.getOpenSide(),
+					junction.getRoutingTable().getLines());
+		}
+
+		final String destination = findDestinationSign(block);
+		if (destination != null) {
+			return RailNode.destination(BlockKey.pack(block), destination);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Find a destination sign beside a rail block, either level with
+	 * the rail or one block above it.
+	 * @param block Rail block to search around
+	 * @return normalized destination on the sign or null if none was found
+	 */
+	static String findDestinationSign(final Block block) {
+		final BlockProbe probe = new WorldBlockProbe(block.getWorld());
+		for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			for (int dy = 0; dy <= 1; dy++) {
+				final String[] lines = BlockProbeUtils.signLines(probe,
+						block.getX() + d.getModX(), block.getY() + dy, block.getZ() + d.getModZ());
+				if (lines != null && PdxTrackRouter.isDestinationHeader(lines[0])) {
+					return PdxTrackRouter.normalizeDestination(lines[1]);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compute the directions a minecart can leave a node in.
+	 * @param node Node to leave
+	 * @param block Rail block of the node
+	 * @return exit directions of the node
+	 */
+	static BlockFace[] exitsOf(final RailNode node, final Block block) {
+		switch (node.getType()) {
+		case JUNCTION:
+			final BlockFace[] exits = new BlockFace[node.getOpenSide() == null ? 4 : 3];
+			int i = 0;
+			for (BlockFace d : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				if (d != node.getOpenSide()) {
+					exits[i++] = d;
+				}
+			}
+			return exits;
+		case LOOP:
+			return new BlockFace[0];
+		default:
+			final Rails rails = railData(block);
+			if (rails == null) {
+				return new BlockFace[0];
+			}
+			return railEnds(rails.getDirection());
+		}
+	}
+
+	/**
+	 * Compute the two directions a minecart can leave a rail in.
+	 * @param railDirection Direction of the rail
+	 * @return the two exit directions
+	 */
+	static BlockFace[] railEnds(final BlockFace railDirection) {
+		if (BlockFaceUtils.cardinalIndex(railDirection) >= 0) {
+			return new BlockFace[] {railDirection, BlockFaceUtils.opposite(railDirection)};
+		}
+
+		// A curve turns travel in two of the cardinal directions
+		final BlockFace[] ends = new BlockFace[2];
+		int i = 0;
+		for (BlockFace traveling : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+			final BlockFace turned = RailSearch.checkTurn(traveling, railDirection);
+			if (turned != traveling && i < 2) {
+				ends[i++] = turned;
+			}
+		}
+		return i == 2 ? ends : new BlockFace[0];
+	}
+
+	/**
+	 * Compute the cardinal direction of travel between two consecutive
+	 * rail blocks of a path.
+	 */
+	static BlockFace toward(final long from, final long to) {
+		final int dx = BlockKey.unpackX(to) - BlockKey.unpackX(from);
+		final int dz = BlockKey.unpackZ(to) - BlockKey.unpackZ(from);
+		if (dx != 0) {
+			return dx > 0 ? BlockFace.EAST : BlockFace.WEST;
+		}
+		return dz > 0 ? BlockFace.SOUTH : BlockFace.NORTH;
+	}
+
+	private static Block nextBlock(final Block block, final Rails rails, final BlockFace direction) {
+		final Block next = block.getRelative(direction);
+		if (rails != null && rails.isOnSlope() && rails.getDirection() == direction) {
+			return next.getRelative(BlockFace.UP);
+		}
+		return next;
+	}
+
+	private static Rails railData(final Block block) {
+		return BlockProbeUtils.railData(new WorldBlockProbe(block.getWorld()),
+				block.getX(), block.getY(), block.getZ());
+	}
+}
@@ -0,0 +1,130 @@
+package com.gmail.emertens.pdxtrackrouter.listeners;
+
+import org.bukkit.Material;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.SignChangeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+
+import com.gmail.emertens.pdxtrackrouter.JunctionApproachIndex;
+import com.gmail.emertens.pdxtrackrouter.JunctionCache;
+import com.gmail.emertens.pdxtrackrouter.TickBlockCache;
+import com.gmail.emertens.pdxtrackrouter.graph.RailNetwork;
+
+/**
+ * This listener watches for changes to blocks which might affect
+ * the shape of a junction and keeps cached and indexed junction
+ * information up to date.
+ * @author Eric Mertens
+ */
+public final class BlockChangeListener implements Listener {
+
+	private final JunctionCache junctionCache;
+	private final JunctionApproachIndex approachIndex;
+	private final RailNetwork railNetwork;
+	private final TickBlockCache tickCache;
+
+	/**
+	 * Construct a new BlockChangeListener.
+	 * @param junctionCache Cache to invalidate when blocks change
+	 * @param approachIndex Index to update when signs or chunks change
+	 * @param railNetwork Network graphs to repair when blocks change
+	 * @param tickCache Block reads to forget when blocks change
+	 */
+	public BlockChangeListener(final JunctionCache junctionCache, final JunctionApproachIndex approachIndex,
+			final RailNetwork railNetwork, final TickBlockCache tickCache) {
+		this.junctionCache = junctionCache;
+		this.approachIndex = approachIndex;
+		this.railNetwork = railNetwork;
+		this.tickCache = tickCache;
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPlace(final BlockPlaceEvent event) {
+		junctionCache.invalidateAround(event.getBlock());
+		tickCache.invalidate(event.getBlock());
+		railNetwork.blockChanged(event.getBlock());
+		if (isSign(event.getBlock().getType())) {
+			approachIndex.markDirty(event.getBlock());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockBreak(final BlockBreakEvent event) {
+		junctionCache.invalidateAround(event.getBlock());
+		tickCache.invalidate(event.getBlock());
+		railNetwork.blockChanged(event.getBlock());
+		if (isSign(event.getBlock().getType())) {
+			approachIndex.markDirty(event.getBlock());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onSignChange(final SignChangeEvent event) {
+		junctionCache.invalidateAround(event.getBlock());
+		tickCache.invalidate(event.getBlock());
+		approachIndex.markDirty(event.getBlock());
+		railNetwork.blockChanged(event.getBlock());
+	}
+
+	/**
+	 * Physics updates are very frequent, so only react to the ones
+	 * involving rails and signs.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPhysics(final BlockPhysicsEvent event) {
+		if (isTrackMaterial(event.getChangedType())
+				|| isTrackMaterial(event.getBlock().getType())) {
+			junctionCache.invalidateAround(event.getBlock());
+			tickCache.invalidate(event.getBlock());
+			railNetwork.blockChanged(event.getBlock());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(final ChunkLoadEvent event) {
+		approachIndex.indexChunk(event.getChunk());
+		railNetwork.chunkLoaded(event.getChunk());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onChunkUnload(final ChunkUnloadEvent event) {
+		junctionCache.invalidateChunk(event.getChunk());
+		approachIndex.unloadChunk(event.getChunk());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldSave(final WorldSaveEvent event) {
+		railNetwork.saveIfModified(event.getWorld());
+	}
+
+	/**
+	 * Determine if a material can take part in a junction.
+	 * @param material Material to check
+	 * @return true for rails and signs
+	 */
+	private static boolean isTrackMaterial(final Material material) {
+		switch (material) {
+		case RAILS:
+		case POWERED_RAIL:
+		case DETECTOR_RAIL:
+		case ACTIVATOR_RAIL:
+		case SIGN_POST:
+		case WALL_SIGN:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isSign(final Material material) {
+		return material == Material.SIGN_POST || material == Material.WALL_SIGN;
+	}
+}
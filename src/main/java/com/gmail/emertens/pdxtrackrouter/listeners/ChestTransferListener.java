@@ -1,95 +1,103 @@
 package com.gmail.emertens.pdxtrackrouter.listeners;
 
-import org.bukkit.Material;
+import java.util.List;
+
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
-import org.bukkit.block.Chest;
-import org.bukkit.entity.Vehicle;
+import org.bukkit.entity.Minecart;
 import org.bukkit.entity.minecart.StorageMinecart;
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.Listener;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 
-import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
-import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockEvent;
+import com.gmail.emertens.pdxtrackrouter.AutoDestinations;
+import com.gmail.emertens.pdxtrackrouter.ChestTransferScheduler;
+import com.gmail.emertens.pdxtrackrouter.InventorySummary;
+import com.gmail.emertens.pdxtrackrouter.InventoryTransfer;
+import com.gmail.emertens.pdxtrackrouter.StationIndex;
+import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockHandler;
 
 /**
  * This class implements storage cart transfers to chests when
- * a cart passes over specially designated blocks.
+ * a cart passes over specially designated blocks. Transfers are handed
+ * to a {@link ChestTransferScheduler} when one is given and otherwise
+ * performed immediately.
  * @author Eric Mertens
  *
  */
-public final class ChestTransferListener implements Listener {
+public final class ChestTransferListener implements VehicleMoveBlockHandler {
 
-	private final Material UNLOAD_TRIGGER_BLOCK;
-	private final Material LOAD_TRIGGER_BLOCK;
+	private final StationIndex stationIndex;
+	private final ChestTransferScheduler scheduler;
+	private final AutoDestinations autoDestinations;
 
 	/**
-	 * Construct a new ChestTransferListener using the given tigger materials.
-	 * @param loadTrigger Material which triggers chest load behavior
-	 * @param unloadTrigger Material which triggers chest unload behavior
+	 * Construct a new ChestTransferListener.
+	 * @param stationIndex Index of the trigger blocks and their chests
+	 * @param scheduler Scheduler to defer transfers to, or null
+	 * @param autoDestinations Rules to apply after immediate transfers, or null
 	 */
-	public ChestTransferListener(final Material loadTrigger, final Material unloadTrigger) {
-		UNLOAD_TRIGGER_BLOCK = unloadTrigger;
-		LOAD_TRIGGER_BLOCK = loadTrigger;
+	public ChestTransferListener(final StationIndex stationIndex, final ChestTransferScheduler scheduler,
+			final AutoDestinations autoDestinations) {
+		this.stationIndex = stationIndex;
+		this.scheduler = scheduler;
+		this.autoDestinations = autoDestinations;
 	}
 
-	@EventHandler(ignoreCancelled = true)
-	public void onVehicleMove(final VehicleMoveBlockEvent event) {
+	@Override
+	public void onVehicleMoveBlock(final Block block, final BlockFace direction, final Minecart minecart) {
 
-		final Vehicle vehicle = event.getVehicle();
-		if (!(vehicle instanceof StorageMinecart)) {
+		if (!(minecart instanceof StorageMinecart)) {
 			return;
 		}
-		final StorageMinecart cart = (StorageMinecart) vehicle;
+		final StorageMinecart cart = (StorageMinecart) minecart;
 
-		final Block block = event.getBlock();
-		final Block under = block.getRelative(BlockFace.DOWN);
-		final Material underType = under.getType();
-		final boolean loadCart;
+		final StationIndex.Station station = stationIndex.lookup(block);
+		if (station == null) {
+			return;
+		}
 
-		if (underType == UNLOAD_TRIGGER_BLOCK) {
-			loadCart = false;
-		} else if (underType == LOAD_TRIGGER_BLOCK) {
-			loadCart = true;
+		final List<Inventory> chests = station.getInventories();
+		if (scheduler != null) {
+			scheduler.submit(cart, block, chests, station.isLoad());
 		} else {
-			return;
+			transferNow(cart, chests, station.isLoad());
 		}
+	}
 
+	/**
+	 * Transfer between a cart and chests at once, writing each inventory
+	 * back once.
+	 */
+	private void transferNow(final StorageMinecart cart, final List<Inventory> chests, final boolean loadCart) {
 		final Inventory cartInventory = cart.getInventory();
+		final ItemStack[] cartContents = cartInventory.getContents();
+		final int cartLimit = cartInventory.getMaxStackSize();
+		final InventorySummary summary = autoDestinations == null ? null : InventorySummary.of(cartContents);
+		int moved = 0;
 
-		for (BlockFace dir : BlockFaceUtils.CARDINAL_DIRECTIONS) {
-			final Block neighbor = under.getRelative(dir);
-			final BlockState state = neighbor.getState();
-			if (state instanceof Chest) {
-				final Chest chest = (Chest) state;
-				final Inventory chestInventory = chest.getInventory();
-
-				if (loadCart) {
-					transferInventory(chestInventory, cartInventory);
-				} else {
-					transferInventory(cartInventory, chestInventory);
-				}
+		for (Inventory chestInventory : chests) {
+			// Stop once there is nothing left to move
+			if (loadCart ? InventoryTransfer.isFull(cartContents, cartLimit)
+					: InventoryTransfer.isEmpty(cartContents)) {
+				break;
+			}
 
-				state.update();
+			final ItemStack[] chestContents = chestInventory.getContents();
+			final int chestMoved = loadCart
+					? InventoryTransfer.transfer(chestContents, cartContents, cartLimit, null, summary)
+					: InventoryTransfer.transfer(cartContents, chestContents, chestInventory.getMaxStackSize(),
+							summary, null);
+			if (chestMoved > 0) {
+				chestInventory.setContents(chestContents);
+				moved += chestMoved;
 			}
 		}
-	}
 
-	/**
-	 * Transfer as many items from one inventory to another as possible.
-	 * @param source Inventory to remove items from
-	 * @param target Inventory to add items to
-	 */
-	private static void transferInventory(final Inventory source, final Inventory target) {
-		final int slots = source.getSize();
-		for (int slot = 0; slot < slots; slot++) {
-			final ItemStack x = source.getItem(slot);
-			if (x != null) {
-				source.setItem(slot, target.addItem(x).get(0));
-			}
+		if (moved > 0) {
+			cartInventory.setContents(cartContents);
+		}
+		if (autoDestinations != null) {
+			autoDestinations.apply(cart, summary, InventoryTransfer.isFull(cartContents, cartLimit));
 		}
 	}
 }
@@ -0,0 +1,125 @@
+package com.gmail.emertens.pdxtrackrouter.listeners;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityPortalEvent;
+import org.bukkit.event.entity.EntityTeleportEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.vehicle.VehicleDestroyEvent;
+import org.bukkit.event.vehicle.VehicleEnterEvent;
+import org.bukkit.event.vehicle.VehicleExitEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+import com.gmail.emertens.pdxtrackrouter.DestinationStore;
+import com.gmail.emertens.pdxtrackrouter.RoutingProfiles;
+
+/**
+ * This listener keeps the destination store in step with the entities
+ * in the world, dropping the preferences of destroyed entities and
+ * parking those of entities which are unloaded or change dimension.
+ * Cached routing profiles are forgotten whenever a minecart's passenger
+ * changes.
+ * @author Eric Mertens
+ */
+public final class DestinationStoreListener implements Listener {
+
+	private final DestinationStore store;
+	private final RoutingProfiles profiles;
+
+	/**
+	 * Construct a new DestinationStoreListener.
+	 * @param store Store to maintain
+	 * @param profiles Routing profiles to invalidate
+	 */
+	public DestinationStoreListener(final DestinationStore store, final RoutingProfiles profiles) {
+		this.store = store;
+		this.profiles = profiles;
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onVehicleEnter(final VehicleEnterEvent event) {
+		profiles.invalidate(event.getVehicle());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onVehicleExit(final VehicleExitEvent event) {
+		profiles.invalidate(event.getVehicle());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onVehicleDestroy(final VehicleDestroyEvent event) {
+		store.remove(event.getVehicle());
+		profiles.invalidate(event.getVehicle());
+	}
+
+	/**
+	 * Players keep their entity id when they respawn, so only other
+	 * entities are forgotten when they die.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onEntityDeath(final EntityDeathEvent event) {
+		profiles.invalidate(event.getEntity());
+		if (!(event.getEntity() instanceof Player)) {
+			store.remove(event.getEntity());
+		}
+	}
+
+	/**
+	 * Minecarts passing through a portal are re-created in the other
+	 * world under a new entity id. The store recovers the parked
+	 * preference by unique id when the new minecart is first looked up.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onEntityPortal(final EntityPortalEvent event) {
+		profiles.invalidate(event.getEntity());
+		store.park(event.getEntity());
+	}
+
+	/**
+	 * Teleporting a minecart to another world re-creates it like a portal.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onEntityTeleport(final EntityTeleportEvent event) {
+		final Location to = event.getTo();
+		if (to != null && to.getWorld() != event.getFrom().getWorld()) {
+			profiles.invalidate(event.getEntity());
+			store.park(event.getEntity());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(final PlayerJoinEvent event) {
+		store.restore(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(final PlayerQuitEvent event) {
+		profiles.invalidate(event.getPlayer());
+		store.park(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(final ChunkLoadEvent event) {
+		for (Entity entity : event.getChunk().getEntities()) {
+			store.restore(entity);
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onChunkUnload(final ChunkUnloadEvent event) {
+		for (Entity entity : event.getChunk().getEntities()) {
+			profiles.invalidate(entity);
+			store.park(entity);
+		}
+	}
+}
@@ -58,7 +58,11 @@ public final class JunctionEditor implements CommandExecutor, Listener {
 
 	private static final int MAX_SIGN_LENGTH = 15;
 	private final Map<Player,Block> selectedBlocks = new HashMap<Player,Block>();
+	private final PdxTrackRouter plugin;
 
+	public JunctionEditor(final PdxTrackRouter plugin) {
+		this.plugin = plugin;
+	}
 
 	@Override
 	public boolean onCommand(final CommandSender sender, final Command cmd, final String label, final String[] args) {
@@ -96,12 +100,15 @@ public final class JunctionEditor implements CommandExecutor, Listener {
 
 				if (args[0].equalsIgnoreCase("insert")) {
 					insertOperation(selectedBlock, index, text);
+					plugin.signsChanged(selectedBlock);
 					return true;
 				} else if (args[0].equalsIgnoreCase("delete")) {
 					deleteOperation(player, selectedBlock, index);
+					plugin.signsChanged(selectedBlock);
 					return true;
 				} else if (args[0].equalsIgnoreCase("change")) {
 					changeOperation(selectedBlock, index, text);
+					plugin.signsChanged(selectedBlock);
 					return true;
 				}
 			}
@@ -263,11 +270,16 @@ public final class JunctionEditor implements CommandExecutor, Listener {
 			return;
 		}
 
-		final Junction junction = Junction.makeJunction(block);
+		final Junction junction = plugin.getJunctionCache().lookup(block);
 		if (junction == null) {
 			return;
 		}
 
+		if (junction.isVirtual()) {
+			player.sendMessage(ChatColor.RED + "This junction is defined in the virtual junctions file");
+			return;
+		}
+
 		selectBlock(player, junction.getTopSign());
 	}
 
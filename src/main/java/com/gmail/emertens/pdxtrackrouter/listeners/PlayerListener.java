@@ -13,6 +13,7 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.block.SignChangeEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import com.gmail.emertens.pdxtrackrouter.PdxTrackRouter;
 import com.gmail.emertens.pdxtrackrouter.events.PlayerUseCommandSignEvent;
 
@@ -94,6 +95,15 @@ public final class PlayerListener implements Listener {
 		}
 	}
 
+	/**
+	 * Stop junction searches that only the departing player was waiting for.
+	 * @param event
+	 */
+	@EventHandler
+	public void onPlayerQuit(final PlayerQuitEvent event) {
+		plugin.getSearchScheduler().cancel(event.getPlayer());
+	}
+
 	/**
 	 * Change command sign headers to blue to give users a sense of feedback
 	 */
@@ -0,0 +1,99 @@
+package com.gmail.emertens.pdxtrackrouter.listeners;
+
+import java.util.List;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+import com.gmail.emertens.pdxtrackrouter.StationIndex;
+
+/**
+ * This listener keeps the station index up to date as chunks load and
+ * unload and as trigger blocks and chests are placed, broken, blown up
+ * or pushed by pistons.
+ * @author Eric Mertens
+ */
+public final class StationListener implements Listener {
+
+	private final StationIndex stationIndex;
+
+	/**
+	 * Construct a new StationListener.
+	 * @param stationIndex Index to maintain
+	 */
+	public StationListener(final StationIndex stationIndex) {
+		this.stationIndex = stationIndex;
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPlace(final BlockPlaceEvent event) {
+		if (stationIndex.isStationMaterial(event.getBlock().getType())) {
+			stationIndex.markDirty(event.getBlock());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockBreak(final BlockBreakEvent event) {
+		if (stationIndex.isStationMaterial(event.getBlock().getType())) {
+			stationIndex.markDirty(event.getBlock());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockExplode(final BlockExplodeEvent event) {
+		markDirty(event.blockList(), null);
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onEntityExplode(final EntityExplodeEvent event) {
+		markDirty(event.blockList(), null);
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPistonExtend(final BlockPistonExtendEvent event) {
+		markDirty(event.getBlocks(), event.getDirection());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPistonRetract(final BlockPistonRetractEvent event) {
+		markDirty(event.getBlocks(), event.getDirection());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(final ChunkLoadEvent event) {
+		stationIndex.indexChunk(event.getChunk());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onChunkUnload(final ChunkUnloadEvent event) {
+		stationIndex.unloadChunk(event.getChunk());
+	}
+
+	/**
+	 * Check the station blocks among a set of changed blocks again,
+	 * along with the positions pushed blocks move to.
+	 * @param blocks Blocks destroyed or moved
+	 * @param direction Direction the blocks were pushed, or null
+	 */
+	private void markDirty(final List<Block> blocks, final BlockFace direction) {
+		for (Block block : blocks) {
+			if (stationIndex.isStationMaterial(block.getType())) {
+				stationIndex.markDirty(block);
+				if (direction != null) {
+					stationIndex.markDirty(block.getRelative(direction));
+				}
+			}
+		}
+	}
+}
@@ -6,15 +6,17 @@ import org.bukkit.entity.EntityType;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Minecart;
 import org.bukkit.entity.Player;
-import org.bukkit.entity.Vehicle;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.vehicle.VehicleExitEvent;
 
 import com.gmail.emertens.pdxtrackrouter.Junction;
+import com.gmail.emertens.pdxtrackrouter.JunctionApproachIndex;
+import com.gmail.emertens.pdxtrackrouter.JunctionCache;
 import com.gmail.emertens.pdxtrackrouter.PdxTrackRouter;
 import com.gmail.emertens.pdxtrackrouter.RailSearch;
-import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockEvent;
+import com.gmail.emertens.pdxtrackrouter.TickBlockCache;
+import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockHandler;
 
 /**
  * This listener catches vehicle move events which correspond arriving at a
@@ -23,41 +25,62 @@ import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockEvent;
  * @author Eric Mertens
  *
  */
-public final class TrackListener implements Listener {
+public final class TrackListener implements Listener, VehicleMoveBlockHandler {
 
 	/**
 	 * Plug-in to notify when events happen.
 	 */
 	private final PdxTrackRouter plugin;
 
+	/**
+	 * Cache of recently probed junction blocks.
+	 */
+	private final JunctionCache junctionCache;
+
+	/**
+	 * Index used to skip moves which cannot lead onto a junction.
+	 */
+	private final JunctionApproachIndex approachIndex;
+
+	/**
+	 * Blocks already read this tick.
+	 */
+	private final TickBlockCache tickCache;
+
 	/**
 	 * Construct a new TrackListener
 	 *
 	 * @param p The plug-in to notify when a junction is approached
-	 * @param header
+	 * @param junctionCache Cache used to look up junctions
+	 * @param approachIndex Index of blocks next to possible junctions
+	 * @param tickCache Cache used to read the track
 	 */
-	public TrackListener(PdxTrackRouter p) {
+	public TrackListener(PdxTrackRouter p, JunctionCache junctionCache, JunctionApproachIndex approachIndex,
+			TickBlockCache tickCache) {
 		plugin = p;
+		this.junctionCache = junctionCache;
+		this.approachIndex = approachIndex;
+		this.tickCache = tickCache;
 	}
 
 	/**
 	 * Notify the plug-in when a player is approaching a properly configured
 	 * junction.
 	 *
-	 * @param event
+	 * @param to Block the minecart moved into
+	 * @param currentDirection Direction the minecart is traveling
+	 * @param minecart Minecart which moved
 	 */
-	@EventHandler(ignoreCancelled = true)
-	public void onVehicleMove(VehicleMoveBlockEvent event) {
-		final Block to = event.getBlock();
-		final BlockFace currentDirection = event.getDirection();
-		final Vehicle vehicle = event.getVehicle();
-
-		if (!(vehicle instanceof Minecart)) {
+	@Override
+	public void onVehicleMoveBlock(Block to, BlockFace currentDirection, Minecart minecart) {
+		// Most moves are on plain track far from any junction
+		if (!approachIndex.mightApproach(to, currentDirection)) {
 			return;
 		}
 
 		// Figure out where the minecart is likely to go next
-		final BlockFace nextDirection = RailSearch.computeNextRail(to, currentDirection);
+		final BlockFace nextDirection = RailSearch.computeNextRail(tickCache.probe(to.getWorld()),
+				to.getX(), to.getY(), to.getZ(), currentDirection);
 		if (nextDirection == null) {
 			return;
 		}
@@ -67,14 +90,14 @@ public final class TrackListener implements Listener {
 			return;
 		}
 
-		Junction junction = Junction.makeJunction(block);
+		Junction junction = junctionCache.lookup(block);
 		if (junction == null) {
 			return;
 		}
 
 		// If a junction sign has been found, treat this as a plug-in controlled
 		// junction and report to the plug-in
-		plugin.updateJunction((Minecart) vehicle, junction, nextDirection);
+		plugin.updateJunction(minecart, junction, nextDirection);
 	}
 
 	/**
@@ -4,87 +4,106 @@ import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Minecart;
 import org.bukkit.entity.Vehicle;
-import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.vehicle.VehicleMoveEvent;
 import org.bukkit.plugin.PluginManager;
 
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockDispatcher;
 import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockEvent;
 
 /**
- * The listener generates {@link VehicleMoveBlockEvent} events.
+ * The listener detects minecarts moving into new blocks, notifies the
+ * plug-in's own handlers through a {@link VehicleMoveBlockDispatcher}
+ * and generates {@link VehicleMoveBlockEvent} events for other plug-ins.
+ *
+ * Vehicle move events arrive several times per block for every vehicle,
+ * so the common case of a minecart moving within a single block, or of
+ * any other vehicle moving at all, returns before allocating anything.
+ * The public event is only allocated and published when another plug-in
+ * has registered a handler for it.
  * @author Eric Mertens
  *
  */
 public final class VehicleMoveBlockListener implements Listener {
 	private final PluginManager pluginManager = Bukkit.getServer().getPluginManager();
+	private final VehicleMoveBlockDispatcher dispatcher;
+
+	/**
+	 * Construct a new VehicleMoveBlockListener.
+	 * @param dispatcher Dispatcher for the plug-in's own handlers
+	 */
+	public VehicleMoveBlockListener(final VehicleMoveBlockDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
 
 	@EventHandler
 	public void onVehicleMoveEvent(final VehicleMoveEvent event) {
 
+		final Vehicle vehicle = event.getVehicle();
+		if (!(vehicle instanceof Minecart)) {
+			return;
+		}
+
 		final Location fromLocation = event.getFrom();
 		final Location toLocation   = event.getTo();
 
-		if (fromLocation.getBlockX() == toLocation.getBlockX()
-				&& fromLocation.getBlockY() == toLocation.getBlockY()
-				&& fromLocation.getBlockZ() == toLocation.getBlockZ()) {
+		final int fromX = fromLocation.getBlockX();
+		final int fromY = fromLocation.getBlockY();
+		final int fromZ = fromLocation.getBlockZ();
+		final int toX = toLocation.getBlockX();
+		final int toY = toLocation.getBlockY();
+		final int toZ = toLocation.getBlockZ();
+
+		if (BlockKey.pack(fromX, fromY, fromZ) == BlockKey.pack(toX, toY, toZ)) {
 			return;
 		}
 
-		final Block from = fromLocation.getBlock();
-		final Block to = toLocation.getBlock();
-		final BlockFace direction = calculateTravelingDirection(from, to);
-
+		final BlockFace direction = calculateTravelingDirection(toX - fromX, toY - fromY, toZ - fromZ);
 		if (direction == null) {
 			return;
 		}
 
-		final Vehicle vehicle = event.getVehicle();
-		final Event subevent = new VehicleMoveBlockEvent(to, direction, vehicle);
-		pluginManager.callEvent(subevent);
+		final Block to = toLocation.getBlock();
+		dispatcher.dispatch(to, direction, (Minecart) vehicle);
+
+		// This plug-in never listens for the public event itself
+		if (VehicleMoveBlockEvent.getHandlerList().getRegisteredListeners().length > 0) {
+			pluginManager.callEvent(new VehicleMoveBlockEvent(to, direction, vehicle));
+		}
 	}
 
+	/**
+	 * Horizontal travel directions indexed by (dx + 1) * 3 + (dz + 1)
+	 */
 	private static final BlockFace[] FLAT_DIRECTIONS = new BlockFace[] {
+			BlockFace.NORTH_WEST,
+			BlockFace.WEST,
+			BlockFace.SOUTH_WEST,
 			BlockFace.NORTH,
+			null,
 			BlockFace.SOUTH,
-			BlockFace.EAST,
-			BlockFace.WEST,
 			BlockFace.NORTH_EAST,
-			BlockFace.NORTH_WEST,
-			BlockFace.SOUTH_EAST,
-			BlockFace.SOUTH_WEST
+			BlockFace.EAST,
+			BlockFace.SOUTH_EAST
 	};
 
-	private BlockFace calculateTravelingDirection(Block from, Block to) {
-		int x = 0;
-		if (to.getX() < from.getX()) {
-			x = -1;
-		} else if (to.getX() > from.getX()) {
-			x = 1;
-		}
-
-		int z = 0;
-		if (to.getZ() < from.getZ()) {
-			z = -1;
-		} else if (to.getZ() > from.getZ()) {
-			z = 1;
-		}
-
+	private static BlockFace calculateTravelingDirection(final int dx, final int dy, final int dz) {
 		// First attempt to match cardinal and ordinal diretions, ignoring vertical movement
-		for (BlockFace face : FLAT_DIRECTIONS) {
-			if (face.getModX() == x && face.getModZ() == z) {
-				return face;
-			}
+		final BlockFace face = FLAT_DIRECTIONS[(Integer.signum(dx) + 1) * 3 + Integer.signum(dz) + 1];
+		if (face != null) {
+			return face;
 		}
 
 		// If the cart is only moving vertically then resort to UP and DOWN
-		if (to.getY() < from.getY()) {
+		if (dy < 0) {
 			return BlockFace.DOWN;
 		}
 
-		if (to.getY() > from.getY()) {
+		if (dy > 0) {
 			return BlockFace.UP;
 		}
 
@@ -0,0 +1,67 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that destinations written to a {@link DestinationLog} are
+ * replayed after a restart, including after the log has been compacted
+ * over itself several times.
+ * @author Eric Mertens
+ */
+public class DestinationLogTest {
+
+	private static final Logger LOGGER = Logger.getLogger("DestinationLogTest");
+	private static final long CLOSE_TIMEOUT = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysAfterCompaction() throws IOException {
+		final File file = new File(folder.getRoot(), "destinations.log");
+		final Map<UUID, String> expected = new HashMap<UUID, String>();
+
+		for (int restart = 0; restart < 3; restart++) {
+			final DestinationLog log = open(file);
+			assertEquals(expected, log.getReplayed());
+			log.start();
+
+			// Many changes to few carts force compactions
+			for (int i = 0; i < 20000; i++) {
+				final UUID cart = new UUID(restart, i % 50);
+				if (i % 7 == 0) {
+					log.clear(cart);
+					expected.remove(cart);
+				} else {
+					final String destination = "station" + i % 13;
+					log.set(cart, destination);
+					expected.put(cart, destination);
+				}
+			}
+			log.close(CLOSE_TIMEOUT);
+			assertTrue(log.getCompactions() > 0);
+		}
+
+		assertEquals(expected, open(file).getReplayed());
+	}
+
+	private static DestinationLog open(final File file) {
+		final DestinationLog log = new DestinationLog(file, LOGGER);
+		while (!log.replay(1000000)) {
+			// Replay in slices as the plug-in does
+		}
+		return log;
+	}
+}
@@ -0,0 +1,127 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.metadata.FixedMetadataValue;
+import org.bukkit.metadata.MetadataStoreBase;
+import org.bukkit.metadata.MetadataValue;
+import org.bukkit.plugin.Plugin;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Times destination lookups in {@link DestinationStore} against the
+ * entity metadata lookups it replaced, and checks that both give the
+ * same answers. The metadata store is keyed the way the server keys
+ * entity metadata, by unique id and metadata name.
+ *
+ * Timings are logged rather than asserted, as they depend on the
+ * machine running the tests, and are only taken when the system property
+ * {@value #BENCHMARK_PROPERTY} is true. Both paths read the entity
+ * through the same kind of proxy, which adds the same cost to each.
+ * @author Eric Mertens
+ */
+public class DestinationStoreBenchmarkTest {
+
+	private static final String BENCHMARK_PROPERTY = "pdxtrackrouter.benchmark";
+	private static final Logger LOGGER = Logger.getLogger("DestinationStoreBenchmarkTest");
+	private static final String METADATA_KEY = "trackrouter.destination";
+	private static final int ENTITIES = 1000;
+	private static final int DESTINATIONS = 20;
+	private static final int PASSES = 200;
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Entity metadata as stored by the server.
+	 */
+	private static final class EntityMetadataStore extends MetadataStoreBase<Entity> {
+		@Override
+		protected String disambiguate(final Entity entity, final String key) {
+			return entity.getUniqueId().toString() + ":" + key;
+		}
+	}
+
+	private DestinationStore store;
+	private EntityMetadataStore metadata;
+	private Entity[] entities;
+
+	@Before
+	public void setUp() {
+		final Plugin plugin = new FakePlugin(new File(".")).getPlugin();
+		store = new DestinationStore(null);
+		metadata = new EntityMetadataStore();
+
+		// Every fourth minecart has no destination. The store only holds
+		// destination ids, so none need to be interned.
+		entities = new Entity[ENTITIES];
+		for (int i = 0; i < ENTITIES; i++) {
+			entities[i] = FakeEntities.minecart(i, new UUID(0, i));
+			if (i % 4 != 0) {
+				final int destination = i % DESTINATIONS;
+				store.set(entities[i], destination);
+				metadata.setMetadata(entities[i], METADATA_KEY, new FixedMetadataValue(plugin, destination));
+			}
+		}
+	}
+
+	@Test
+	public void agreesWithMetadata() {
+		for (Entity entity : entities) {
+			assertEquals(lookUpMetadata(metadata, entity), lookUpStore(store, entity));
+		}
+	}
+
+	@Test
+	public void compareWithMetadata() {
+		assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+		long storeBest = Long.MAX_VALUE;
+		long metadataBest = Long.MAX_VALUE;
+		long storeSum = 0;
+		long metadataSum = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (Entity entity : entities) {
+					storeSum += lookUpStore(store, entity);
+				}
+			}
+			storeBest = Math.min(storeBest, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (Entity entity : entities) {
+					metadataSum += lookUpMetadata(metadata, entity);
+				}
+			}
+			metadataBest = Math.min(metadataBest, System.nanoTime() - start);
+		}
+		assertEquals(metadataSum, storeSum);
+
+		final double lookups = (double) PASSES * ENTITIES;
+		LOGGER.info(String.format("DestinationStore: %.1f ns per lookup", storeBest / lookups));
+		LOGGER.info(String.format("Entity metadata:  %.1f ns per lookup", metadataBest / lookups));
+	}
+
+	private static int lookUpStore(final DestinationStore store, final Entity entity) {
+		return store.get(entity);
+	}
+
+	/**
+	 * Look up a destination the way the plug-in did with metadata.
+	 */
+	private static int lookUpMetadata(final EntityMetadataStore metadata, final Entity entity) {
+		if (!metadata.hasMetadata(entity, METADATA_KEY)) {
+			return DestinationRegistry.UNKNOWN;
+		}
+		final List<MetadataValue> values = metadata.getMetadata(entity, METADATA_KEY);
+		return values.get(0).asInt();
+	}
+}
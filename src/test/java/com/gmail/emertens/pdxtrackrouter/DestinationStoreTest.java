@@ -0,0 +1,96 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.bukkit.entity.Minecart;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link DestinationStore} keeps preferences across parking
+ * and restoring, and recovers them for entities re-created under a new
+ * entity id.
+ * @author Eric Mertens
+ */
+public class DestinationStoreTest {
+
+	private static final int STATION = 7;
+	private static final int DEPOT = 8;
+
+	private DestinationStore store;
+
+	@Before
+	public void setUp() {
+		store = new DestinationStore(null);
+	}
+
+	@Test
+	public void parkAndRestore() {
+		final UUID uuid = new UUID(0, 1);
+		store.set(FakeEntities.minecart(1, uuid), STATION);
+
+		store.park(FakeEntities.minecart(1, uuid));
+		assertEquals(0, store.size());
+		assertEquals(1, store.getParked());
+
+		final Minecart reloaded = FakeEntities.minecart(2, uuid);
+		store.restore(reloaded);
+		assertEquals(STATION, store.get(reloaded));
+		assertEquals(1, store.size());
+		assertEquals(0, store.getParked());
+	}
+
+	@Test
+	public void restoreKeepsNewerPreference() {
+		final UUID uuid = new UUID(0, 1);
+		store.park(uuid, STATION);
+
+		final Minecart loaded = FakeEntities.minecart(1, uuid);
+		store.set(loaded, DEPOT);
+		store.restore(loaded);
+		assertEquals(DEPOT, store.get(loaded));
+		assertEquals(0, store.getParked());
+	}
+
+	@Test
+	public void recoverAfterDimensionChange() {
+		final UUID uuid = new UUID(0, 1);
+		final Minecart before = FakeEntities.minecart(1, uuid);
+		store.set(before, STATION);
+
+		// Passing through a portal parks the old entity id
+		store.park(before);
+
+		// The minecart in the other world has a new entity id
+		final Minecart after = FakeEntities.minecart(2, uuid);
+		assertTrue(store.has(after));
+		assertEquals(STATION, store.get(after));
+		assertEquals(DestinationRegistry.UNKNOWN, store.get(before));
+		assertEquals(1, store.size());
+		assertEquals(0, store.getParked());
+	}
+
+	@Test
+	public void lookupMissLeavesOtherParkedEntries() {
+		store.park(new UUID(0, 1), STATION);
+
+		final Minecart other = FakeEntities.minecart(2, new UUID(0, 2));
+		assertFalse(store.has(other));
+		assertEquals(1, store.getParked());
+	}
+
+	@Test
+	public void remove() {
+		final Minecart cart = FakeEntities.minecart(1, new UUID(0, 1));
+		store.set(cart, STATION);
+
+		assertTrue(store.remove(cart));
+		assertFalse(store.remove(cart));
+		assertEquals(DestinationRegistry.UNKNOWN, store.get(cart));
+		assertEquals(0, store.size());
+	}
+}
@@ -0,0 +1,62 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Minecart;
+
+/**
+ * This class makes entities for tests. An entity only answers its
+ * entity id and unique id; anything else throws. The answers are boxed
+ * once, so reading them does not allocate.
+ * @author Eric Mertens
+ */
+public final class FakeEntities {
+
+	private FakeEntities() {
+	}
+
+	/**
+	 * Make a minecart.
+	 * @param entityId Entity id of the minecart
+	 * @param uniqueId Unique id of the minecart
+	 * @return a new minecart
+	 */
+	public static Minecart minecart(final int entityId, final UUID uniqueId) {
+		return entity(Minecart.class, entityId, uniqueId);
+	}
+
+	/**
+	 * Make an entity of any kind.
+	 * @param type Entity interface to implement
+	 * @param entityId Entity id of the entity
+	 * @param uniqueId Unique id of the entity
+	 * @return a new entity
+	 */
+	public static <T extends Entity> T entity(final Class<T> type, final int entityId, final UUID uniqueId) {
+		final Integer boxedId = entityId;
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+				new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				switch (method.getName()) {
+				case "getEntityId":
+					return boxedId;
+				case "getUniqueId":
+					return uniqueId;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return boxedId;
+				case "toString":
+					return "Fake" + type.getSimpleName() + "{" + entityId + "}";
+				default:
+					throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+				}
+			}
+		}));
+	}
+}
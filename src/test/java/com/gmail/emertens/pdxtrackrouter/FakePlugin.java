@@ -0,0 +1,156 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * This class is a plug-in and server for tests. Tasks given to the
+ * scheduler are queued and only run when the test asks for them, so a
+ * test decides exactly when each tick happens.
+ * @author Eric Mertens
+ */
+public final class FakePlugin {
+
+	private final File dataFolder;
+	private final Logger logger = Logger.getLogger("PdxTrackRouterTest");
+	private final List<World> worlds = new ArrayList<World>();
+	private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+	private final Plugin plugin;
+	private final Server server;
+	private final BukkitScheduler scheduler;
+	private final PluginManager pluginManager;
+	private int nextTaskId = 1;
+
+	/**
+	 * Construct a new FakePlugin.
+	 * @param dataFolder Folder returned as the plug-in's data folder
+	 */
+	public FakePlugin(final File dataFolder) {
+		this.dataFolder = dataFolder;
+		this.plugin = proxy(Plugin.class);
+		this.server = proxy(Server.class);
+		this.scheduler = proxy(BukkitScheduler.class);
+		this.pluginManager = proxy(PluginManager.class);
+	}
+
+	public Plugin getPlugin() {
+		return plugin;
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Add a world to those listed by the server.
+	 * @param world World to add
+	 */
+	public void addWorld(final World world) {
+		worlds.add(world);
+	}
+
+	/**
+	 * Run scheduled tasks, including those they schedule, until none are left.
+	 * @param limit Most tasks to run before giving up
+	 * @return the number of tasks run
+	 */
+	public int runTasks(final int limit) {
+		int count = 0;
+		while (!tasks.isEmpty()) {
+			if (count == limit) {
+				throw new IllegalStateException("Scheduled tasks did not finish after " + limit + " runs");
+			}
+			tasks.remove().run();
+			count++;
+		}
+		return count;
+	}
+
+	private <T> T proxy(final Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new Handler()));
+	}
+
+	private BukkitTask schedule(final Runnable task) {
+		tasks.add(task);
+		final int id = nextTaskId++;
+		return newTask(id);
+	}
+
+	private static BukkitTask newTask(final int id) {
+		return (BukkitTask) Proxy.newProxyInstance(BukkitTask.class.getClassLoader(),
+				new Class<?>[] {BukkitTask.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				switch (method.getName()) {
+				case "getTaskId":
+					return id;
+				case "hashCode":
+					return id;
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return "FakeTask{" + id + "}";
+				default:
+					throw new UnsupportedOperationException("BukkitTask." + method.getName());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Answers the plug-in, server, plug-in manager and scheduler.
+	 */
+	private final class Handler implements InvocationHandler {
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			switch (method.getName()) {
+			case "getServer":
+				return server;
+			case "getScheduler":
+				return scheduler;
+			case "getPluginManager":
+				return pluginManager;
+			case "getDataFolder":
+				return dataFolder;
+			case "getLogger":
+				return logger;
+			case "getName":
+			case "getVersion":
+			case "getBukkitVersion":
+				return "PdxTrackRouterTest";
+			case "getWorlds":
+				return new ArrayList<World>(worlds);
+			case "registerEvents":
+				return null;
+			case "scheduleSyncDelayedTask":
+				return schedule((Runnable) args[1]).getTaskId();
+			case "runTask":
+			case "runTaskLater":
+				return schedule((Runnable) args[1]);
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "FakePlugin";
+			default:
+				throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName()
+						+ "." + method.getName());
+			}
+		}
+	}
+}
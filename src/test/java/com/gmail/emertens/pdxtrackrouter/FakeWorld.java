@@ -0,0 +1,289 @@
+package com.gmail.emertens.pdxtrackrouter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+
+/**
+ * This class is an in-memory world for tests. Blocks at or below the
+ * ground level are stone and blocks above it are air until they are set.
+ * Every chunk is loaded. Only the parts of the Bukkit interfaces which
+ * routing reads are answered; anything else throws.
+ * @author Eric Mertens
+ */
+public final class FakeWorld {
+
+	private static final int MAX_HEIGHT = 256;
+
+	/**
+	 * Contents of a block which was set.
+	 */
+	private static final class Cell {
+		private final Material type;
+		private final byte data;
+		private final String[] lines;
+
+		Cell(final Material type, final byte data, final String[] lines) {
+			this.type = type;
+			this.data = data;
+			this.lines = lines;
+		}
+	}
+
+	private final String name;
+	private final UUID uid = UUID.randomUUID();
+	private final int groundLevel;
+	private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+	private final World world;
+
+	/**
+	 * Construct a new FakeWorld.
+	 * @param name Name of the world
+	 * @param groundLevel Highest Y coordinate which is stone by default
+	 */
+	public FakeWorld(final String name, final int groundLevel) {
+		this.name = name;
+		this.groundLevel = groundLevel;
+		this.world = (World) Proxy.newProxyInstance(World.class.getClassLoader(),
+				new Class<?>[] {World.class}, new WorldHandler());
+	}
+
+	public World getWorld() {
+		return world;
+	}
+
+	public Block getBlock(final int x, final int y, final int z) {
+		return world.getBlockAt(x, y, z);
+	}
+
+	/**
+	 * Set a block which has no data value or sign text.
+	 */
+	public void setType(final int x, final int y, final int z, final Material type) {
+		cells.put(BlockKey.pack(x, y, z), new Cell(type, (byte) 0, null));
+	}
+
+	/**
+	 * Set a plain rail.
+	 * @param data Rail data value giving its shape
+	 */
+	public void setRail(final int x, final int y, final int z, final int data) {
+		cells.put(BlockKey.pack(x, y, z), new Cell(Material.RAILS, (byte) data, null));
+	}
+
+	/**
+	 * Set a sign post with the given text. Missing lines are blank.
+	 */
+	public void setSign(final int x, final int y, final int z, final String... lines) {
+		final String[] text = {"", "", "", ""};
+		System.arraycopy(lines, 0, text, 0, Math.min(lines.length, text.length));
+		cells.put(BlockKey.pack(x, y, z), new Cell(Material.SIGN_POST, (byte) 0, text));
+	}
+
+	/**
+	 * Return a block to its default of stone or air.
+	 */
+	public void clear(final int x, final int y, final int z) {
+		cells.remove(BlockKey.pack(x, y, z));
+	}
+
+	public Material getType(final int x, final int y, final int z) {
+		final Cell cell = cells.get(BlockKey.pack(x, y, z));
+		if (cell != null) {
+			return cell.type;
+		}
+		return y <= groundLevel ? Material.STONE : Material.AIR;
+	}
+
+	private byte getData(final int x, final int y, final int z) {
+		final Cell cell = cells.get(BlockKey.pack(x, y, z));
+		return cell == null ? 0 : cell.data;
+	}
+
+	private String[] getLines(final int x, final int y, final int z) {
+		final Cell cell = cells.get(BlockKey.pack(x, y, z));
+		return cell == null || cell.lines == null ? null : cell.lines.clone();
+	}
+
+	private static UnsupportedOperationException unsupported(final Method method) {
+		return new UnsupportedOperationException(method.getDeclaringClass().getSimpleName()
+				+ "." + method.getName());
+	}
+
+	private final class WorldHandler implements InvocationHandler {
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			switch (method.getName()) {
+			case "getBlockAt":
+				if (args.length == 3) {
+					return newBlock((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+				}
+				break;
+			case "getName":
+				return name;
+			case "getUID":
+				return uid;
+			case "getMaxHeight":
+				return MAX_HEIGHT;
+			case "isChunkLoaded":
+			case "loadChunk":
+				return true;
+			case "getChunkAt":
+				return newChunk((Integer) args[0], (Integer) args[1]);
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return uid.hashCode();
+			case "toString":
+				return "FakeWorld{" + name + "}";
+			default:
+				break;
+			}
+			throw unsupported(method);
+		}
+	}
+
+	private Block newBlock(final int x, final int y, final int z) {
+		return (Block) Proxy.newProxyInstance(Block.class.getClassLoader(),
+				new Class<?>[] {Block.class}, new BlockHandler(x, y, z));
+	}
+
+	private Chunk newChunk(final int cx, final int cz) {
+		return (Chunk) Proxy.newProxyInstance(Chunk.class.getClassLoader(),
+				new Class<?>[] {Chunk.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				switch (method.getName()) {
+				case "getX":
+					return cx;
+				case "getZ":
+					return cz;
+				case "getWorld":
+					return world;
+				case "isLoaded":
+					return true;
+				case "getBlock":
+					return newBlock(cx * 16 + (Integer) args[0], (Integer) args[1], cz * 16 + (Integer) args[2]);
+				case "equals":
+					return args[0] instanceof Chunk && ((Chunk) args[0]).getWorld() == world
+							&& ((Chunk) args[0]).getX() == cx && ((Chunk) args[0]).getZ() == cz;
+				case "hashCode":
+					return cx * 31 + cz;
+				case "toString":
+					return "FakeChunk{" + cx + "," + cz + "}";
+				default:
+					throw unsupported(method);
+				}
+			}
+		});
+	}
+
+	private final class BlockHandler implements InvocationHandler {
+		private final int x;
+		private final int y;
+		private final int z;
+
+		BlockHandler(final int x, final int y, final int z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			switch (method.getName()) {
+			case "getX":
+				return x;
+			case "getY":
+				return y;
+			case "getZ":
+				return z;
+			case "getWorld":
+				return world;
+			case "getType":
+				return getType(x, y, z);
+			case "getData":
+				return getData(x, y, z);
+			case "getState":
+				return newState((Block) proxy, x, y, z);
+			case "getChunk":
+				return newChunk(x >> 4, z >> 4);
+			case "getRelative":
+				if (args.length == 3) {
+					return newBlock(x + (Integer) args[0], y + (Integer) args[1], z + (Integer) args[2]);
+				}
+				final BlockFace face = (BlockFace) args[0];
+				final int distance = args.length == 2 ? (Integer) args[1] : 1;
+				return newBlock(x + face.getModX() * distance, y + face.getModY() * distance,
+						z + face.getModZ() * distance);
+			case "equals":
+				if (!(args[0] instanceof Block)) {
+					return false;
+				}
+				final Block other = (Block) args[0];
+				return other.getWorld() == world && other.getX() == x && other.getY() == y && other.getZ() == z;
+			case "hashCode":
+				return (y << 24) ^ (x << 12) ^ z;
+			case "toString":
+				return "FakeBlock{" + x + "," + y + "," + z + "=" + getType(x, y, z) + "}";
+			default:
+				throw unsupported(method);
+			}
+		}
+	}
+
+	/**
+	 * Copy the state of a block, as {@link Block#getState()} does.
+	 */
+	private BlockState newState(final Block block, final int x, final int y, final int z) {
+		final Material type = getType(x, y, z);
+		final byte data = getData(x, y, z);
+		final String[] lines = getLines(x, y, z);
+		final Class<?> kind = lines != null ? Sign.class : BlockState.class;
+		return (BlockState) Proxy.newProxyInstance(kind.getClassLoader(),
+				new Class<?>[] {kind}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				switch (method.getName()) {
+				case "getLines":
+					return lines.clone();
+				case "getLine":
+					return lines[(Integer) args[0]];
+				case "getBlock":
+					return block;
+				case "getType":
+					return type;
+				case "getRawData":
+					return data;
+				case "getX":
+					return x;
+				case "getY":
+					return y;
+				case "getZ":
+					return z;
+				case "getWorld":
+					return world;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "FakeState{" + x + "," + y + "," + z + "=" + type + "}";
+				default:
+					throw unsupported(method);
+				}
+			}
+		});
+	}
+}
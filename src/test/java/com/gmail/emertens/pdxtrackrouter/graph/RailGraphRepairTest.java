@@ -0,0 +1,341 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.gmail.emertens.pdxtrackrouter.BlockFaceUtils;
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+import com.gmail.emertens.pdxtrackrouter.BlockProbeUtils;
+import com.gmail.emertens.pdxtrackrouter.FakePlugin;
+import com.gmail.emertens.pdxtrackrouter.FakeWorld;
+
+/**
+ * Checks that a graph kept up to date by {@link RailGraphBuilder#repair}
+ * matches a graph built from scratch after random changes to a network.
+ *
+ * The network is a lattice of track whose crossings are junctions, with
+ * two destinations which are never edited. Both graphs are compared on
+ * the part reachable from those destinations, as a repaired graph keeps
+ * junctions and destinations which have been cut off.
+ *
+ * The network's {@link ReachabilityAnalyzer}, which only recomputes what
+ * is upstream of each change, is also checked against a fresh analyzer.
+ * @author Eric Mertens
+ */
+public class RailGraphRepairTest {
+
+	private static final String DEFAULT_DESTINATION = "default";
+	private static final int GROUND = 63;
+	private static final int RAIL_Y = GROUND + 1;
+	private static final int CELLS = 4;
+	private static final int SPACING = 5;
+	private static final int SIZE = CELLS * SPACING;
+	private static final int SEEDS = 10;
+	private static final int ROUNDS = 100;
+	private static final int TASK_LIMIT = 10000;
+
+	private static final String[] NAMES = {"alpha", "beta", "gamma", "delta", DEFAULT_DESTINATION, "g*"};
+	private static final String[] EXITS = {"n", "e", "s", "w"};
+
+	/**
+	 * Anchor rails and the destination signs beside them, as {x, z} pairs.
+	 */
+	private static final int[][] ANCHOR_RAILS = {{2, 0}, {SIZE - 2, SIZE}};
+	private static final int[][] ANCHOR_SIGNS = {{2, -1}, {SIZE - 2, SIZE + 1}};
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() { }
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakePlugin plugin;
+	private FakeWorld world;
+	private RailNetwork network;
+	private Random random;
+
+	private void reset() throws IOException {
+		plugin = new FakePlugin(folder.newFolder());
+		world = new FakeWorld("lattice", GROUND);
+		plugin.addWorld(world.getWorld());
+	}
+
+	@Test
+	public void repairMatchesRebuild() throws IOException {
+		for (long seed = 1; seed <= SEEDS; seed++) {
+			reset();
+			random = new Random(seed);
+			network = new RailNetwork(plugin.getPlugin(), DEFAULT_DESTINATION);
+
+			layOutLattice();
+			for (int[] anchor : ANCHOR_RAILS) {
+				network.build(world.getBlock(anchor[0], RAIL_Y, anchor[1]), NOTHING);
+			}
+			plugin.runTasks(TASK_LIMIT);
+			assertMatchesRebuild("seed " + seed + " initial build");
+			assertAnalyzerMatches("seed " + seed + " initial build");
+
+			for (int round = 0; round < ROUNDS; round++) {
+				final int edits = 1 + random.nextInt(3);
+				for (int i = 0; i < edits; i++) {
+					edit();
+				}
+				plugin.runTasks(TASK_LIMIT);
+				assertMatchesRebuild("seed " + seed + " round " + round);
+				assertAnalyzerMatches("seed " + seed + " round " + round);
+			}
+			assertTrue(network.getAnalyzer(world.getWorld()).getUpdates() > 0);
+		}
+	}
+
+	private void layOutLattice() {
+		for (int a = 0; a <= SIZE; a++) {
+			for (int line = 0; line <= SIZE; line += SPACING) {
+				world.setRail(a, RAIL_Y, line, 1);
+				world.setRail(line, RAIL_Y, a, 0);
+			}
+		}
+		for (int x = 0; x <= SIZE; x += SPACING) {
+			for (int z = 0; z <= SIZE; z += SPACING) {
+				world.setRail(x, RAIL_Y, z, 1);
+				setJunctionSign(x, z);
+			}
+		}
+
+		final String[] anchorNames = {"north", "south"};
+		for (int i = 0; i < ANCHOR_SIGNS.length; i++) {
+			world.setSign(ANCHOR_SIGNS[i][0], RAIL_Y + 1, ANCHOR_SIGNS[i][1], "[destination]", anchorNames[i]);
+		}
+	}
+
+	private void setJunctionSign(final int x, final int z) {
+		final String[] lines = new String[4];
+		lines[0] = "[junction]";
+		for (int i = 1; i < lines.length; i++) {
+			lines[i] = NAMES[random.nextInt(NAMES.length)] + ":" + EXITS[random.nextInt(EXITS.length)];
+		}
+		world.setSign(x, RAIL_Y - 2, z, lines);
+	}
+
+	/**
+	 * Make a random change to the network and report it to the graph.
+	 */
+	private void edit() {
+		final int x;
+		final int y;
+		final int z;
+
+		switch (random.nextInt(5)) {
+		case 0:
+			// Remove, restore or reshape a rail of the lattice
+			final int[] rail = latticeRail();
+			x = rail[0];
+			y = RAIL_Y;
+			z = rail[1];
+			if (random.nextInt(3) == 0) {
+				world.setType(x, y, z, Material.AIR);
+			} else {
+				world.setRail(x, y, z, random.nextInt(10));
+			}
+			break;
+		case 1:
+			// Put the original straight rail back
+			final int[] straight = latticeRail();
+			x = straight[0];
+			y = RAIL_Y;
+			z = straight[1];
+			world.setRail(x, y, z, z % SPACING == 0 ? 1 : 0);
+			break;
+		case 2:
+			// Rewrite or remove the signs of a crossing
+			x = random.nextInt(CELLS + 1) * SPACING;
+			y = RAIL_Y - 2;
+			z = random.nextInt(CELLS + 1) * SPACING;
+			if (random.nextInt(4) == 0) {
+				world.clear(x, y, z);
+			} else {
+				setJunctionSign(x, z);
+			}
+			break;
+		case 3:
+			// Place or remove a destination sign beside the track
+			final int[] sign = besideLattice();
+			x = sign[0];
+			y = RAIL_Y + random.nextInt(2);
+			z = sign[1];
+			if (isAnchorSign(x, y, z)) {
+				return;
+			}
+			if (world.getType(x, y, z) == Material.SIGN_POST) {
+				world.clear(x, y, z);
+			} else {
+				world.setSign(x, y, z, "[destination]", NAMES[random.nextInt(NAMES.length)]);
+			}
+			break;
+		default:
+			// Place or remove a branch rail beside the track
+			final int[] branch = besideLattice();
+			x = branch[0];
+			y = RAIL_Y;
+			z = branch[1];
+			if (BlockProbeUtils.isRail(world.getType(x, y, z))) {
+				world.clear(x, y, z);
+			} else {
+				world.setRail(x, y, z, random.nextInt(10));
+			}
+			break;
+		}
+
+		network.blockChanged(world.getBlock(x, y, z));
+	}
+
+	/**
+	 * Pick a rail position of the lattice other than an anchor.
+	 */
+	private int[] latticeRail() {
+		while (true) {
+			final int along = random.nextInt(SIZE + 1);
+			final int line = random.nextInt(CELLS + 1) * SPACING;
+			final int[] rail = random.nextBoolean() ? new int[] {along, line} : new int[] {line, along};
+			if (!isAnchorRail(rail[0], rail[1])) {
+				return rail;
+			}
+		}
+	}
+
+	/**
+	 * Pick a position next to the lattice which is not on it.
+	 */
+	private int[] besideLattice() {
+		while (true) {
+			final int[] rail = latticeRail();
+			final BlockFace side = BlockFaceUtils.CARDINAL_DIRECTIONS[random.nextInt(4)];
+			final int x = rail[0] + side.getModX();
+			final int z = rail[1] + side.getModZ();
+			if (x % SPACING != 0 && z % SPACING != 0 || x < 0 || z < 0 || x > SIZE || z > SIZE) {
+				return new int[] {x, z};
+			}
+		}
+	}
+
+	private static boolean isAnchorRail(final int x, final int z) {
+		for (int[] anchor : ANCHOR_RAILS) {
+			if (anchor[0] == x && anchor[1] == z) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isAnchorSign(final int x, final int y, final int z) {
+		for (int[] anchor : ANCHOR_SIGNS) {
+			if (anchor[0] == x && y == RAIL_Y + 1 && anchor[1] == z) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void assertMatchesRebuild(final String message) {
+		final World w = world.getWorld();
+		final RailGraph fresh = new RailGraph();
+		final RailGraphBuilder builder = new RailGraphBuilder(plugin.getPlugin(), fresh, w, DEFAULT_DESTINATION);
+		for (int[] anchor : ANCHOR_RAILS) {
+			builder.start(world.getBlock(anchor[0], RAIL_Y, anchor[1]), NOTHING);
+		}
+		plugin.runTasks(TASK_LIMIT);
+
+		final Map<String, String> expected = describeReachable(fresh);
+		final Map<String, String> actual = describeReachable(network.getGraph(w));
+		assertTrue(message + ": anchors missing", expected.size() >= ANCHOR_RAILS.length);
+
+		final Set<String> positions = new TreeSet<String>(expected.keySet());
+		positions.addAll(actual.keySet());
+		for (String position : positions) {
+			assertEquals(message + " at " + position, expected.get(position), actual.get(position));
+		}
+	}
+
+	private void assertAnalyzerMatches(final String message) {
+		final RailGraph graph = network.getGraph(world.getWorld());
+		final ReachabilityAnalyzer kept = network.getAnalyzer(world.getWorld());
+		final ReachabilityAnalyzer fresh = new ReachabilityAnalyzer(graph, DEFAULT_DESTINATION);
+		for (RailNode node : new ArrayList<RailNode>(graph.getNodes())) {
+			for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				assertEquals(message + " leaving " + position(node.getKey()) + " " + direction,
+						fresh.departing(node.getKey(), direction), kept.departing(node.getKey(), direction));
+			}
+		}
+	}
+
+	/**
+	 * Describe every node reachable from the anchors along with its exits.
+	 */
+	private static Map<String, String> describeReachable(final RailGraph graph) {
+		final Map<String, String> result = new TreeMap<String, String>();
+		final Queue<RailNode> queue = new LinkedList<RailNode>();
+		for (int[] anchor : ANCHOR_RAILS) {
+			final RailNode node = graph.getNode(BlockKey.pack(anchor[0], RAIL_Y, anchor[1]));
+			if (node != null) {
+				queue.add(node);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			final RailNode node = queue.remove();
+			final String key = position(node.getKey());
+			if (result.containsKey(key)) {
+				continue;
+			}
+
+			final List<String> exits = new ArrayList<String>();
+			for (BlockFace direction : BlockFaceUtils.CARDINAL_DIRECTIONS) {
+				final RailEdge edge = node.getExit(direction);
+				if (edge == null) {
+					continue;
+				}
+				exits.add(describe(edge));
+				final RailNode target = graph.getNode(edge.getTo());
+				if (target != null) {
+					queue.add(target);
+				}
+			}
+			result.put(key, node.getType() + " open=" + node.getOpenSide() + " lines=" + node.getLines()
+					+ " destination=" + node.getDestination() + " exits={" + exits + "}");
+		}
+		return result;
+	}
+
+	private static String describe(final RailEdge edge) {
+		final StringBuilder path = new StringBuilder();
+		for (long key : edge.getPath()) {
+			path.append(position(key));
+		}
+		return edge.getExit() + "->" + position(edge.getTo()) + " arriving " + edge.getArrival()
+				+ " slopes=" + edge.getSlopes() + " path=" + path;
+	}
+
+	private static String position(final long key) {
+		return "(" + BlockKey.unpackX(key) + "," + BlockKey.unpackY(key) + "," + BlockKey.unpackZ(key) + ")";
+	}
+}
@@ -0,0 +1,161 @@
+package com.gmail.emertens.pdxtrackrouter.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bukkit.block.BlockFace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.gmail.emertens.pdxtrackrouter.BlockKey;
+
+/**
+ * Checks that {@link RailGraphStore} reads back the graph it wrote, and
+ * rejects corrupt graph files with an {@link IOException}, which is all
+ * the network expects when loading.
+ * @author Eric Mertens
+ */
+public class RailGraphStoreTest {
+
+	/**
+	 * Offsets into a file holding a single junction: the magic number,
+	 * version and node count come first, then the node's key.
+	 */
+	private static final int TYPE_OFFSET = 20;
+	private static final int OPEN_SIDE_OFFSET = 21;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		final long west = BlockKey.pack(0, 64, 0);
+		final long east = BlockKey.pack(4, 65, 0);
+		final long loop = BlockKey.pack(0, 64, 9);
+		final long far = BlockKey.pack(0, 64, -9);
+
+		final RailGraph graph = new RailGraph();
+		graph.addNode(RailNode.junction(west, BlockFace.WEST, Arrays.asList("a:n", "*:e")));
+		graph.addNode(RailNode.destination(east, "a"));
+		graph.addNode(RailNode.terminal(loop, RailNode.Type.LOOP));
+		graph.addNode(RailNode.terminal(far, RailNode.Type.DEAD_END));
+
+		// A segment with a slope, traveled both ways
+		graph.addEdge(new RailEdge(west, BlockFace.EAST, east, BlockFace.EAST, new long[] {
+			BlockKey.pack(1, 64, 0), BlockKey.pack(2, 65, 0), BlockKey.pack(3, 65, 0), east}, 1));
+		graph.addEdge(new RailEdge(east, BlockFace.WEST, west, BlockFace.WEST, new long[] {
+			BlockKey.pack(3, 65, 0), BlockKey.pack(2, 65, 0), BlockKey.pack(1, 64, 0), west}, 0));
+
+		// A segment ending where a track closes on itself, traveled one way
+		graph.addEdge(new RailEdge(west, BlockFace.SOUTH, loop, BlockFace.SOUTH, new long[] {
+			BlockKey.pack(0, 64, 1), BlockKey.pack(0, 64, 2)}, 0));
+
+		// A path with a gap, as no walk would produce
+		graph.addEdge(new RailEdge(west, BlockFace.NORTH, far, BlockFace.NORTH, new long[] {
+			BlockKey.pack(0, 64, -1), BlockKey.pack(0, 70, -5), far}, 0));
+
+		final File file = folder.newFile();
+		RailGraphStore.write(graph, file);
+		final RailGraph read = RailGraphStore.read(file);
+
+		assertEquals(graph.getNodeCount(), read.getNodeCount());
+		assertEquals(graph.getEdgeCount(), read.getEdgeCount());
+		assertEquals(describe(graph), describe(read));
+	}
+
+	@Test
+	public void readsEdgeVersion() throws IOException {
+		final long from = BlockKey.pack(0, 64, 0);
+		final long to = BlockKey.pack(2, 64, 0);
+		final long[] path = {BlockKey.pack(1, 64, 0), to};
+
+		// Version 2 stored each edge on its own with absolute keys
+		final File file = folder.newFile();
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(0x50545247);
+			out.writeInt(2);
+			out.writeInt(2);
+			for (long key : new long[] {from, to}) {
+				out.writeLong(key);
+				out.writeByte(RailNode.Type.DESTINATION.ordinal());
+				out.writeUTF("a");
+			}
+			out.writeInt(1);
+			out.writeLong(from);
+			out.writeByte(1);
+			out.writeLong(to);
+			out.writeByte(1);
+			out.writeInt(0);
+			out.writeInt(path.length);
+			for (long key : path) {
+				out.writeLong(key);
+			}
+		} finally {
+			out.close();
+		}
+
+		final RailGraph graph = new RailGraph();
+		graph.addNode(RailNode.destination(from, "a"));
+		graph.addNode(RailNode.destination(to, "a"));
+		graph.addEdge(new RailEdge(from, BlockFace.EAST, to, BlockFace.EAST, path, 0));
+		assertEquals(describe(graph), describe(RailGraphStore.read(file)));
+	}
+
+	@Test(expected = IOException.class)
+	public void badNodeType() throws IOException {
+		RailGraphStore.read(corrupt(TYPE_OFFSET, 99));
+	}
+
+	@Test(expected = IOException.class)
+	public void badDirection() throws IOException {
+		RailGraphStore.read(corrupt(OPEN_SIDE_OFFSET, 9));
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeDirection() throws IOException {
+		RailGraphStore.read(corrupt(OPEN_SIDE_OFFSET, -5));
+	}
+
+	private static Set<String> describe(final RailGraph graph) {
+		final Set<String> result = new TreeSet<String>();
+		for (RailNode node : graph.getNodes()) {
+			result.add(node.getKey() + " " + node.getType() + " open=" + node.getOpenSide()
+					+ " lines=" + node.getLines() + " destination=" + node.getDestination());
+			for (BlockFace d : BlockFace.values()) {
+				final RailEdge edge = node.getExit(d);
+				if (edge != null) {
+					result.add(edge.getFrom() + " " + edge.getExit() + "->" + edge.getTo() + " arriving "
+							+ edge.getArrival() + " slopes=" + edge.getSlopes()
+							+ " path=" + Arrays.toString(edge.getPath()));
+				}
+			}
+		}
+		return result;
+	}
+
+	private File corrupt(final int offset, final int value) throws IOException {
+		final RailGraph graph = new RailGraph();
+		graph.addNode(RailNode.junction(BlockKey.pack(1, 64, 2), BlockFace.NORTH, Arrays.asList("a:n")));
+		final File file = folder.newFile();
+		RailGraphStore.write(graph, file);
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.writeByte(value);
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+}
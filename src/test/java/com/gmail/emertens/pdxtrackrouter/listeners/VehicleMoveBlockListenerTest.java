@@ -0,0 +1,112 @@
+package com.gmail.emertens.pdxtrackrouter.listeners;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Minecart;
+import org.bukkit.entity.Vehicle;
+import org.bukkit.event.vehicle.VehicleMoveEvent;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gmail.emertens.pdxtrackrouter.FakeEntities;
+import com.gmail.emertens.pdxtrackrouter.FakePlugin;
+import com.gmail.emertens.pdxtrackrouter.FakeWorld;
+import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockDispatcher;
+import com.gmail.emertens.pdxtrackrouter.events.VehicleMoveBlockHandler;
+
+/**
+ * Checks that {@link VehicleMoveBlockListener} returns without allocating
+ * for the moves it ignores: a minecart staying within one block and any
+ * vehicle which is not a minecart.
+ * @author Eric Mertens
+ */
+public class VehicleMoveBlockListenerTest {
+
+	private static final int WARMUP_MOVES = 50000;
+	private static final int MEASURED_MOVES = 100000;
+
+	private World world;
+	private VehicleMoveBlockListener listener;
+	private int dispatched;
+
+	@BeforeClass
+	public static void setUpServer() {
+		// The listener finds the plug-in manager through Bukkit
+		if (Bukkit.getServer() == null) {
+			Bukkit.setServer(new FakePlugin(new File(".")).getServer());
+		}
+	}
+
+	@Before
+	public void setUp() {
+		world = new FakeWorld("moves", 63).getWorld();
+		final VehicleMoveBlockDispatcher dispatcher = new VehicleMoveBlockDispatcher();
+		dispatcher.register(new VehicleMoveBlockHandler() {
+			@Override
+			public void onVehicleMoveBlock(final Block block, final BlockFace direction, final Minecart minecart) {
+				dispatched++;
+			}
+		});
+		listener = new VehicleMoveBlockListener(dispatcher);
+	}
+
+	@Test
+	public void minecartWithinBlockDoesNotAllocate() {
+		final VehicleMoveEvent event = new VehicleMoveEvent(FakeEntities.minecart(1, new UUID(0, 1)),
+				new Location(world, 10.2, 64.0, -5.9), new Location(world, 10.8, 64.1, -5.1));
+		assertNoAllocation(event);
+		assertEquals(0, dispatched);
+	}
+
+	@Test
+	public void otherVehicleDoesNotAllocate() {
+		final VehicleMoveEvent event = new VehicleMoveEvent(FakeEntities.entity(Vehicle.class, 2, new UUID(0, 2)),
+				new Location(world, 10.8, 64.0, 5.5), new Location(world, 11.2, 64.0, 5.5));
+		assertNoAllocation(event);
+		assertEquals(0, dispatched);
+	}
+
+	@Test
+	public void minecartEnteringBlockIsDispatched() {
+		final VehicleMoveEvent event = new VehicleMoveEvent(FakeEntities.minecart(3, new UUID(0, 3)),
+				new Location(world, 10.8, 64.0, 5.5), new Location(world, 11.2, 64.0, 5.5));
+		listener.onVehicleMoveEvent(event);
+		assertEquals(1, dispatched);
+	}
+
+	/**
+	 * Deliver an event many times and check that the thread allocated
+	 * less than one byte per delivery.
+	 */
+	private void assertNoAllocation(final VehicleMoveEvent event) {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+		final long thread = Thread.currentThread().getId();
+
+		for (int i = 0; i < WARMUP_MOVES; i++) {
+			listener.onVehicleMoveEvent(event);
+		}
+
+		final long before = bean.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < MEASURED_MOVES; i++) {
+			listener.onVehicleMoveEvent(event);
+		}
+		final long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+		assertTrue(allocated + " bytes allocated by " + MEASURED_MOVES + " moves", allocated < MEASURED_MOVES);
+	}
+}